@@ -0,0 +1,74 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.realsense.boofcv;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import boofcv.struct.calib.IntrinsicParameters;
+
+/**
+ * Shared pixel ray tables keyed by resolution. The table of a resolution is computed once
+ * and replaced only if the intrinsics of that resolution change.
+ *
+ * @author Eike Mansfeld
+ */
+public class CalibrationCache {
+
+	private static final Map<Integer,PixelRayTable> tables = new HashMap<Integer,PixelRayTable>();
+
+	/**
+	 * @return Pixel ray table of the intrinsics, computed on first use
+	 */
+	public static synchronized PixelRayTable get(IntrinsicParameters intrinsics) {
+		int key = intrinsics.width << 16 | intrinsics.height;
+		PixelRayTable table = tables.get(key);
+		if(table == null || !isSame(table.getIntrinsics(), intrinsics)) {
+			table = new PixelRayTable(new IntrinsicParameters(intrinsics));
+			tables.put(key, table);
+		}
+		return table;
+	}
+
+	public static synchronized void clear() {
+		tables.clear();
+	}
+
+	private static boolean isSame(IntrinsicParameters a, IntrinsicParameters b) {
+		return a.fx == b.fx && a.fy == b.fy && a.cx == b.cx && a.cy == b.cy && a.skew == b.skew
+				&& a.t1 == b.t1 && a.t2 == b.t2 && Arrays.equals(a.radial, b.radial);
+	}
+}
@@ -0,0 +1,178 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.realsense.boofcv;
+
+import static boofcv.alg.distort.LensDistortionOps.transformPoint;
+
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.distort.PointTransform_F64;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.point.Point3D_F64;
+
+/**
+ * Normalized image coordinates and unit rays of all pixels of a camera, computed once from
+ * the lens distortion model. Integer pixels are a table read, sub-pixel positions are
+ * interpolated bilinearly. Positions outside the image use the distortion model.
+ *
+ * @see CalibrationCache
+ *
+ * @author Eike Mansfeld
+ */
+public class PixelRayTable {
+
+	private final IntrinsicParameters intrinsics;
+	private final int width;
+	private final int height;
+
+	// normalized image coordinates per pixel
+	private final float[] nx;
+	private final float[] ny;
+	// unit rays per pixel
+	private final float[] rx;
+	private final float[] ry;
+	private final float[] rz;
+
+	private final PointTransform_F64 model;
+	private final PointTransform_F64 pixelToNorm;
+
+	public PixelRayTable(IntrinsicParameters intrinsics) {
+		this.intrinsics = intrinsics;
+		this.width  = intrinsics.width;
+		this.height = intrinsics.height;
+
+		this.model = transformPoint(intrinsics).undistort_F64(true,false);
+
+		int size = width * height;
+		nx = new float[size]; ny = new float[size];
+		rx = new float[size]; ry = new float[size]; rz = new float[size];
+
+		Point2D_F64 n = new Point2D_F64();
+		for(int y = 0, i = 0; y < height; y++) {
+			for(int x = 0; x < width; x++, i++) {
+				model.compute(x, y, n);
+				nx[i] = (float)n.x;
+				ny[i] = (float)n.y;
+				double l = 1.0 / Math.sqrt(n.x * n.x + n.y * n.y + 1);
+				rx[i] = (float)(n.x * l);
+				ry[i] = (float)(n.y * l);
+				rz[i] = (float)l;
+			}
+		}
+
+		this.pixelToNorm = (x, y, out) -> normalized(x, y, out);
+	}
+
+	/**
+	 * Normalized image coordinates of a sub-pixel position
+	 */
+	public void normalized(double x, double y, Point2D_F64 out) {
+		if(!(x >= 0 && y >= 0 && x < width - 1 && y < height - 1)) {
+			model.compute(x, y, out);
+			return;
+		}
+		int x0 = (int)x, y0 = (int)y;
+		double ax = x - x0, ay = y - y0;
+		int i = y0 * width + x0;
+
+		double w00 = (1 - ax) * (1 - ay), w10 = ax * (1 - ay), w01 = (1 - ax) * ay, w11 = ax * ay;
+		out.x = w00 * nx[i] + w10 * nx[i+1] + w01 * nx[i+width] + w11 * nx[i+width+1];
+		out.y = w00 * ny[i] + w10 * ny[i+1] + w01 * ny[i+width] + w11 * ny[i+width+1];
+	}
+
+	/**
+	 * Point at the given depth along the ray of an integer pixel
+	 *
+	 * @return false if the pixel is outside the image
+	 */
+	public boolean pointAtDepth(int x, int y, double z, Point3D_F64 out) {
+		if(x < 0 || y < 0 || x >= width || y >= height)
+			return false;
+		int i = y * width + x;
+		out.set(nx[i] * z, ny[i] * z, z);
+		return true;
+	}
+
+	/**
+	 * Point at the given range along the ray of an integer pixel
+	 *
+	 * @return false if the pixel is outside the image
+	 */
+	public boolean pointAtRange(int x, int y, double range, Point3D_F64 out) {
+		if(x < 0 || y < 0 || x >= width || y >= height)
+			return false;
+		int i = y * width + x;
+		out.set(rx[i] * range, ry[i] * range, rz[i] * range);
+		return true;
+	}
+
+	/**
+	 * @return Transform from pixels to normalized image coordinates backed by the table
+	 */
+	public PointTransform_F64 getPixelToNorm() {
+		return pixelToNorm;
+	}
+
+	public float[] getNormX() {
+		return nx;
+	}
+
+	public float[] getNormY() {
+		return ny;
+	}
+
+	public float[] getRayX() {
+		return rx;
+	}
+
+	public float[] getRayY() {
+		return ry;
+	}
+
+	public float[] getRayZ() {
+		return rz;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public IntrinsicParameters getIntrinsics() {
+		return intrinsics;
+	}
+}
@@ -0,0 +1,99 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.util.Random;
+
+/**
+ * Maps binary descriptors to words of the inverted file. A word is formed by a fixed
+ * selection of descriptor bits, each table uses a different selection. The selection
+ * depends only on the number of tables and bits, so words are stable across runs.
+ *
+ * @author Eike Mansfeld
+ */
+public class BinaryWords {
+
+	private final int tables;
+	private final int bits;
+
+	// selected descriptor bits per table
+	private final int[][] selection;
+
+	public BinaryWords(int tables, int bits) {
+		this.tables    = tables;
+		this.bits      = bits;
+		this.selection = new int[tables][bits];
+
+		Random rand = new Random(4711);
+		for(int t = 0; t < tables; t++) {
+			int[] perm = new int[KeyFrame.WORDS * 64];
+			for(int i = 0; i < perm.length; i++)
+				perm[i] = i;
+			for(int i = 0; i < bits; i++) {
+				int j = i + rand.nextInt(perm.length - i);
+				int tmp = perm[i]; perm[i] = perm[j]; perm[j] = tmp;
+				selection[t][i] = perm[i];
+			}
+		}
+	}
+
+	/**
+	 * @return Word of the descriptor in the table, words of different tables do not overlap
+	 */
+	public int word(long[] desc, int offset, int table) {
+		final int[] sel = selection[table];
+		int w = 0;
+		for(int i = 0; i < bits; i++) {
+			int b = sel[i];
+			w = (w << 1) | (int)((desc[offset + (b >> 6)] >>> (b & 63)) & 1);
+		}
+		return (table << bits) | w;
+	}
+
+	public int getTables() {
+		return tables;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return Number of words of all tables
+	 */
+	public int size() {
+		return tables << bits;
+	}
+}
@@ -0,0 +1,82 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Features of a keyframe: Pixel location, binary descriptor and 3D location in the
+ * camera frame of each feature together with the camera pose.
+ *
+ * @author Eike Mansfeld
+ */
+public class KeyFrame {
+
+	// number of 64 bit words of a descriptor
+	public static final int WORDS = KeyFrameDescriber.WORDS;
+
+	public final long    id;
+	public final long    tms;
+
+	// transform from the camera to the world frame
+	public final Se3_F64 cameraToWorld = new Se3_F64();
+
+	public final int     size;
+	public final float[] x;
+	public final float[] y;
+	// x,y,z per feature
+	public final float[] points;
+	// WORDS per feature
+	public final long[]  desc;
+
+	// slot and words in the index, set by KeyFrameIndex
+	int   slot = -1;
+	int[] words;
+
+	public KeyFrame(long id, long tms, int size) {
+		this.id     = id;
+		this.tms    = tms;
+		this.size   = size;
+		this.x      = new float[size];
+		this.y      = new float[size];
+		this.points = new float[size * 3];
+		this.desc   = new long[size * WORDS];
+	}
+
+	@Override
+	public String toString() {
+		return "KeyFrame "+id+": "+size+" features at "+cameraToWorld.T;
+	}
+}
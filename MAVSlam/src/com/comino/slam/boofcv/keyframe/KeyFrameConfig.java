@@ -0,0 +1,101 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+/**
+ * Configuration of {@link KeyFrameRelocalizer} and {@link KeyFrameIndex}.
+ *
+ * @author Eike Mansfeld
+ */
+public class KeyFrameConfig {
+
+	/** Maximum number of keyframes kept, the least recently used keyframe is evicted */
+	public int capacity = 100;
+	/** Maximum number of features described per keyframe */
+	public int maxFeatures = 300;
+	/** Minimum number of features with depth to store a keyframe */
+	public int minPoints = 40;
+	/** Maximum number of keyframes in the persistent database */
+	public int databaseCapacity = 20000;
+
+	/** FAST: intensity difference to the center pixel */
+	public int pixelTol = 20;
+	/** FAST: number of continuous pixels on the circle */
+	public int minContinuous = 9;
+	/** Radius of the region the descriptor pairs are sampled from */
+	public int descriptorRadius = 12;
+	/** Radius of the box filter applied before sampling */
+	public int blurRadius = 2;
+
+	/** Number of hash tables of the inverted file */
+	public int tables = 4;
+	/** Number of descriptor bits forming a word, each table has 2^wordBits words */
+	public int wordBits = 16;
+	/** Maximum number of candidate keyframes verified by PnP */
+	public int candidates = 3;
+	/** Minimum number of shared words of a candidate keyframe */
+	public int minScore = 8;
+
+	/** Maximum Hamming distance of a match, out of 256 bits */
+	public int maxHamming = 50;
+	/** Maximum ratio of the best to the second best distance of a match */
+	public double ratio = 0.8;
+
+	/** Minimum number of PnP inliers of a relocalization */
+	public int minInliers = 25;
+	/** Reprojection error of an inlier in pixels */
+	public double inlierPixelTol = 1.5;
+	public int ransacIterations = 200;
+	public int refineIterations = 10;
+
+	/** Minimum number of keyframes between the keyframes of a loop within a segment */
+	public int loopMinDistance = 20;
+	/** Minimum number of PnP inliers of a loop closure */
+	public int loopInliers = 40;
+	/** Maximum difference in meters of a loop to the current estimate within a connected part of the graph */
+	public double loopMaxError = 1.0;
+	/** Standard deviation in meters of the odometry per square root of the distance traveled */
+	public double odometrySigma = 0.05;
+	/** Standard deviation in meters of a loop closure */
+	public double loopSigma = 0.05;
+	/** Maximum number of conjugate gradient iterations of the pose graph optimization */
+	public int graphIterations = 100;
+
+	/** A new keyframe is added after this distance in meters to the last keyframe */
+	public double keyframeDistance = 0.3;
+	/** A new keyframe is added after this rotation in degrees to the last keyframe */
+	public double keyframeAngle = 15;
+
+}
@@ -0,0 +1,324 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Persistent keyframe store in two memory mapped files. The index file holds a header,
+ * the first entry of each word of the inverted file and the entries as linked lists of
+ * records. The data file holds the keyframes as records of fixed size.
+ *
+ * Opening the database only maps the files, keyframes are decoded when returned by a
+ * query. Keyframes are appended until the capacity is reached. The counts in the header
+ * are written before the heads of the inverted file are moved to the new entries, so no
+ * head refers to an entry beyond the count if the process terminates during an append.
+ *
+ * @author Eike Mansfeld
+ */
+public class KeyFrameDatabase {
+
+	private static final int MAGIC   = 0x4D53504B;
+	private static final int VERSION = 1;
+
+	private static final int HEADER  = 64;
+	private static final int H_MAGIC = 0, H_VERSION = 4, H_TABLES = 8, H_BITS = 12, H_FEATURES = 16,
+			H_CAPACITY = 20, H_COUNT = 24, H_ENTRIES = 28, H_NEXT_ID = 32;
+
+	// id, tms, 12 doubles pose, size, reserved
+	private static final int RECORD_HEADER  = 8 + 8 + 12 * 8 + 4 + 4;
+	// x, y, 3D location as floats and the descriptor
+	private static final int FEATURE_BYTES  = 5 * 4 + KeyFrame.WORDS * 8;
+	private static final int ENTRY_BYTES    = 8;
+
+	private final KeyFrameConfig config;
+	private final BinaryWords    binaryWords;
+
+	private final int  maxFeatures;
+	private final int  capacity;
+	private final long recordSize;
+	private final long entriesOffset;
+	private final int  maxEntries;
+
+	private RandomAccessFile indexFile;
+	private RandomAccessFile dataFile;
+	private MappedByteBuffer index;
+	private MappedByteBuffer data;
+
+	private int  count;
+	private int  entryCount;
+	private long nextId;
+
+	// query scratch
+	private final int[] score;
+	private final int[] touched;
+	private int[] best = new int[0];
+
+	/**
+	 * Opens or creates the database in the directory. An existing database with a different
+	 * layout is replaced.
+	 */
+	public KeyFrameDatabase(KeyFrameConfig config, File directory) throws IOException {
+		this.config        = config;
+		this.binaryWords   = new BinaryWords(config.tables, config.wordBits);
+		this.maxFeatures   = config.maxFeatures;
+		this.capacity      = config.databaseCapacity;
+		this.recordSize    = RECORD_HEADER + (long)maxFeatures * FEATURE_BYTES;
+		this.entriesOffset = HEADER + 4L * binaryWords.size();
+		this.maxEntries    = (int)Math.min(Integer.MAX_VALUE / ENTRY_BYTES,
+				(long)capacity * maxFeatures * config.tables);
+
+		this.score   = new int[capacity];
+		this.touched = new int[capacity];
+
+		if(capacity * recordSize > Integer.MAX_VALUE || entriesOffset + (long)maxEntries * ENTRY_BYTES > Integer.MAX_VALUE)
+			throw new IOException("Keyframe database capacity too large");
+
+		if(!directory.exists() && !directory.mkdirs())
+			throw new IOException("Cannot create "+directory);
+
+		indexFile = new RandomAccessFile(new File(directory, "keyframes.idx"), "rw");
+		dataFile  = new RandomAccessFile(new File(directory, "keyframes.dat"), "rw");
+
+		// files are sparse, pages are allocated when written
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, entriesOffset + (long)maxEntries * ENTRY_BYTES);
+		data  = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity * recordSize);
+
+		if(index.getInt(H_MAGIC) == MAGIC && index.getInt(H_VERSION) == VERSION
+				&& index.getInt(H_TABLES) == config.tables && index.getInt(H_BITS) == config.wordBits
+				&& index.getInt(H_FEATURES) == maxFeatures && index.getInt(H_CAPACITY) == capacity) {
+			count      = index.getInt(H_COUNT);
+			entryCount = index.getInt(H_ENTRIES);
+			nextId     = index.getLong(H_NEXT_ID);
+		} else
+			clear();
+	}
+
+	/**
+	 * Appends the keyframe, features beyond the maximum number are not stored
+	 *
+	 * @return false if the database is full
+	 */
+	public synchronized boolean append(KeyFrame kf) {
+		int size = Math.min(kf.size, maxFeatures);
+		if(count >= capacity || entryCount + size * config.tables > maxEntries)
+			return false;
+
+		int record = count;
+		long pos = record * recordSize;
+		data.putLong((int)pos, kf.id); pos += 8;
+		data.putLong((int)pos, kf.tms); pos += 8;
+		for(int i = 0; i < 9; i++, pos += 8)
+			data.putDouble((int)pos, kf.cameraToWorld.R.data[i]);
+		data.putDouble((int)pos, kf.cameraToWorld.T.x); pos += 8;
+		data.putDouble((int)pos, kf.cameraToWorld.T.y); pos += 8;
+		data.putDouble((int)pos, kf.cameraToWorld.T.z); pos += 8;
+		data.putInt((int)pos, size); pos += 8;
+
+		for(int i = 0; i < size; i++) {
+			data.putFloat((int)pos, kf.x[i]); pos += 4;
+			data.putFloat((int)pos, kf.y[i]); pos += 4;
+			for(int k = 0; k < 3; k++, pos += 4)
+				data.putFloat((int)pos, kf.points[i * 3 + k]);
+			for(int k = 0; k < KeyFrame.WORDS; k++, pos += 8)
+				data.putLong((int)pos, kf.desc[i * KeyFrame.WORDS + k]);
+		}
+
+		// entries are linked to the published heads, heads are stored +1, so that a zero
+		// filled file has no entries
+		int first = entryCount;
+		for(int i = 0; i < size; i++) {
+			for(int t = 0; t < config.tables; t++) {
+				int w = binaryWords.word(kf.desc, i * KeyFrame.WORDS, t);
+				int entryPos = (int)(entriesOffset + (long)entryCount++ * ENTRY_BYTES);
+				index.putInt(entryPos, record);
+				index.putInt(entryPos + 4, index.getInt(HEADER + w * 4) - 1);
+			}
+		}
+
+		count++;
+		nextId = Math.max(nextId, kf.id + 1);
+		index.putInt(H_ENTRIES, entryCount);
+		index.putLong(H_NEXT_ID, nextId);
+		index.putInt(H_COUNT, count);
+
+		// heads are published last, each head and link always refers to a counted entry.
+		// Entries sharing a word within the keyframe are linked to each other on the way
+		for(int i = 0, e = first; i < size; i++) {
+			for(int t = 0; t < config.tables; t++, e++) {
+				int headPos = HEADER + binaryWords.word(kf.desc, i * KeyFrame.WORDS, t) * 4;
+				index.putInt((int)(entriesOffset + (long)e * ENTRY_BYTES) + 4, index.getInt(headPos) - 1);
+				index.putInt(headPos, e + 1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the keyframes sharing most words with the features and decodes them
+	 *
+	 * @param desc Descriptors, WORDS per feature
+	 * @param size Number of features
+	 * @param minScore Minimum number of shared words
+	 * @param max Maximum number of candidates
+	 * @param candidates Decoded keyframes, best first, are added to the list
+	 * @return Number of candidates added
+	 */
+	public synchronized int query(long[] desc, int size, int minScore, int max, List<KeyFrame> candidates) {
+		int n = 0;
+		for(int i = 0; i < size; i++) {
+			for(int t = 0; t < config.tables; t++) {
+				int e = index.getInt(HEADER + binaryWords.word(desc, i * KeyFrame.WORDS, t) * 4) - 1;
+				// entries link to older entries only, anything else is a damaged file
+				int limit = entryCount;
+				while(e >= 0 && e < limit) {
+					int entryPos = (int)(entriesOffset + (long)e * ENTRY_BYTES);
+					int r = index.getInt(entryPos);
+					if(r >= 0 && r < count && score[r]++ == 0)
+						touched[n++] = r;
+					limit = e;
+					e = index.getInt(entryPos + 4);
+				}
+			}
+		}
+
+		if(best.length < max)
+			best = new int[max];
+
+		int found = 0;
+		for(int i = 0; i < n && max > 0; i++) {
+			int r = touched[i];
+			if(score[r] < minScore || (found == max && score[best[max - 1]] >= score[r]))
+				continue;
+			int j = found < max ? found : max - 1;
+			while(j > 0 && score[best[j - 1]] < score[r]) {
+				best[j] = best[j - 1];
+				j--;
+			}
+			best[j] = r;
+			if(found < max)
+				found++;
+		}
+
+		for(int i = 0; i < n; i++)
+			score[touched[i]] = 0;
+
+		for(int i = 0; i < found; i++)
+			candidates.add(read(best[i]));
+		return found;
+	}
+
+	/**
+	 * Decodes the keyframe of the record
+	 */
+	public synchronized KeyFrame read(int record) {
+		long pos = record * recordSize;
+		long id  = data.getLong((int)pos); pos += 8;
+		long tms = data.getLong((int)pos); pos += 8;
+		double[] pose = new double[12];
+		for(int i = 0; i < 12; i++, pos += 8)
+			pose[i] = data.getDouble((int)pos);
+		int size = Math.min(Math.max(0, data.getInt((int)pos)), maxFeatures); pos += 8;
+
+		KeyFrame kf = new KeyFrame(id, tms, size);
+		System.arraycopy(pose, 0, kf.cameraToWorld.R.data, 0, 9);
+		kf.cameraToWorld.T.set(pose[9], pose[10], pose[11]);
+		for(int i = 0; i < size; i++) {
+			kf.x[i] = data.getFloat((int)pos); pos += 4;
+			kf.y[i] = data.getFloat((int)pos); pos += 4;
+			for(int k = 0; k < 3; k++, pos += 4)
+				kf.points[i * 3 + k] = data.getFloat((int)pos);
+			for(int k = 0; k < KeyFrame.WORDS; k++, pos += 8)
+				kf.desc[i * KeyFrame.WORDS + k] = data.getLong((int)pos);
+		}
+		return kf;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized boolean isFull() {
+		return count >= capacity;
+	}
+
+	/**
+	 * @return Id to be used for the next keyframe, ids are unique across sessions
+	 */
+	public synchronized long getNextId() {
+		return nextId;
+	}
+
+	/**
+	 * Removes all keyframes
+	 */
+	public synchronized void clear() {
+		for(int i = 0; i < binaryWords.size(); i++)
+			index.putInt(HEADER + i * 4, 0);
+		count = 0; entryCount = 0; nextId = 0;
+		index.putInt(H_MAGIC, MAGIC);
+		index.putInt(H_VERSION, VERSION);
+		index.putInt(H_TABLES, config.tables);
+		index.putInt(H_BITS, config.wordBits);
+		index.putInt(H_FEATURES, maxFeatures);
+		index.putInt(H_CAPACITY, capacity);
+		index.putInt(H_ENTRIES, entryCount);
+		index.putLong(H_NEXT_ID, nextId);
+		index.putInt(H_COUNT, count);
+	}
+
+	/**
+	 * Writes modified pages to the files
+	 */
+	public synchronized void flush() {
+		data.force();
+		index.force();
+	}
+
+	public synchronized void close() {
+		try {
+			flush();
+			indexFile.close();
+			dataFile.close();
+		} catch(IOException e) {
+			System.err.println("Keyframe database: "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import boofcv.abst.feature.detect.interest.ConfigFast;
+import boofcv.abst.feature.detect.interest.ConfigGeneralDetector;
+import boofcv.alg.feature.detect.interest.GeneralFeatureDetector;
+import boofcv.alg.filter.blur.BlurImageOps;
+import boofcv.factory.feature.detect.interest.FactoryDetectPoint;
+import boofcv.struct.QueueCorner;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayS16;
+import boofcv.struct.image.GrayU8;
+import georegression.struct.point.Point2D_I16;
+
+/**
+ * Detects FAST corners and describes them by 256 bit BRIEF descriptors. The features
+ * are ordered by their corner intensity, strongest first.
+ *
+ * @author Eike Mansfeld
+ */
+public class KeyFrameDescriber {
+
+	// number of 64 bit words of a descriptor
+	public static final int WORDS = 4;
+	private static final int BITS = WORDS * 64;
+
+	private final KeyFrameConfig config;
+	private final GeneralFeatureDetector<GrayU8, GrayS16> detector;
+
+	// sampling pattern relative to the feature
+	private final int[] ax = new int[BITS], ay = new int[BITS];
+	private final int[] bx = new int[BITS], by = new int[BITS];
+	private final int[] offA = new int[BITS], offB = new int[BITS];
+	private int stride = -1;
+
+	private GrayU8 blurred = new GrayU8(1,1);
+	private GrayU8 storage = new GrayU8(1,1);
+
+	private int    size;
+	private float[] x    = new float[0];
+	private float[] y    = new float[0];
+	private long[] desc  = new long[0];
+	private long[] order = new long[0];
+
+	public KeyFrameDescriber(KeyFrameConfig config) {
+		this.config = config;
+
+		// the detector returns more corners than kept to select the strongest ones
+		this.detector = FactoryDetectPoint.createFast(new ConfigFast(config.pixelTol, config.minContinuous),
+				new ConfigGeneralDetector(config.maxFeatures * 2, 3, 1f), GrayU8.class);
+
+		Random rand = new Random(234);
+		int r = config.descriptorRadius;
+		for(int k = 0; k < BITS; k++) {
+			ax[k] = sample(rand, r); ay[k] = sample(rand, r);
+			bx[k] = sample(rand, r); by[k] = sample(rand, r);
+		}
+	}
+
+	private static int sample(Random rand, int r) {
+		int v;
+		do {
+			v = (int)Math.round(rand.nextGaussian() * r / 2.0);
+		} while(v < -r || v > r);
+		return v;
+	}
+
+	public void process(GrayU8 image) {
+		blurred.reshape(image.width, image.height);
+		storage.reshape(image.width, image.height);
+		BlurImageOps.mean(image, blurred, config.blurRadius, storage);
+
+		if(stride != blurred.stride) {
+			stride = blurred.stride;
+			for(int k = 0; k < BITS; k++) {
+				offA[k] = ay[k] * stride + ax[k];
+				offB[k] = by[k] * stride + bx[k];
+			}
+		}
+
+		detector.process(image, null, null, null, null, null);
+		QueueCorner found = detector.getMaximums();
+		GrayF32 intensity = detector.getIntensity();
+
+		// order by intensity, strongest first. The pixel index breaks ties.
+		if(order.length < found.size)
+			order = new long[found.size * 2];
+		int border = config.descriptorRadius;
+		int n = 0;
+		for(int i = 0; i < found.size; i++) {
+			Point2D_I16 p = found.get(i);
+			if(p.x < border || p.y < border || p.x >= image.width - border || p.y >= image.height - border)
+				continue;
+			int index = p.y * image.width + p.x;
+			order[n++] = ((long)Float.floatToIntBits(Math.max(0, intensity.get(p.x, p.y))) << 32)
+					| (0xFFFFFFFFL - index);
+		}
+		Arrays.sort(order, 0, n);
+
+		int keep = Math.min(n, config.maxFeatures);
+		if(x.length < keep) {
+			x    = new float[keep];
+			y    = new float[keep];
+			desc = new long[keep * WORDS];
+		}
+
+		size = 0;
+		for(int i = n - 1; i >= n - keep; i--) {
+			int index = (int)(0xFFFFFFFFL - (order[i] & 0xFFFFFFFFL));
+			x[size] = index % image.width;
+			y[size] = index / image.width;
+			describe(index % image.width, index / image.width, desc, size * WORDS);
+			size++;
+		}
+	}
+
+	private void describe(int px, int py, long[] out, int offset) {
+		final byte[] data = blurred.data;
+		final int c = blurred.startIndex + py * stride + px;
+		int k = 0;
+		for(int w = 0; w < WORDS; w++) {
+			long bits = 0;
+			for(int b = 0; b < 64; b++, k++) {
+				if((data[c + offA[k]] & 0xFF) < (data[c + offB[k]] & 0xFF))
+					bits |= 1L << b;
+			}
+			out[offset + w] = bits;
+		}
+	}
+
+	/**
+	 * Hamming distance of two descriptors
+	 */
+	public static int hamming(long[] a, int offsetA, long[] b, int offsetB) {
+		return Long.bitCount(a[offsetA] ^ b[offsetB]) + Long.bitCount(a[offsetA + 1] ^ b[offsetB + 1])
+			 + Long.bitCount(a[offsetA + 2] ^ b[offsetB + 2]) + Long.bitCount(a[offsetA + 3] ^ b[offsetB + 3]);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public float getX(int index) {
+		return x[index];
+	}
+
+	public float getY(int index) {
+		return y[index];
+	}
+
+	/**
+	 * @return Pixel x coordinates of the features
+	 */
+	public float[] getXs() {
+		return x;
+	}
+
+	/**
+	 * @return Pixel y coordinates of the features
+	 */
+	public float[] getYs() {
+		return y;
+	}
+
+	/**
+	 * @return Descriptors, WORDS per feature
+	 */
+	public long[] getDescriptors() {
+		return desc;
+	}
+}
@@ -0,0 +1,256 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Bounded store of keyframes with an inverted file of binary words. A word is formed by
+ * a fixed selection of descriptor bits, each of the hash tables uses a different selection.
+ * Similar descriptors share words with high probability, so a query counts the words a
+ * keyframe shares with the query features without comparing descriptors.
+ *
+ * The least recently used keyframe is evicted if the capacity is exceeded. Adding a
+ * keyframe and returning it as a candidate counts as use.
+ *
+ * @author Eike Mansfeld
+ */
+public class KeyFrameIndex {
+
+	private final int capacity;
+	private final int tables;
+	private final BinaryWords binaryWords;
+
+	// first entry per word, entries are single linked lists of slots
+	private final int[] head;
+	private int[] entrySlot = new int[1024];
+	private int[] entryNext = new int[1024];
+	private int   entryFree = -1;
+	private int   entryCount = 0;
+
+	// keyframes by id in access order and by slot
+	private final LinkedHashMap<Long,KeyFrame> frames;
+	private final KeyFrame[] slots;
+	private final int[] freeSlots;
+	private int freeCount;
+
+	// query scratch
+	private final int[] score;
+	private final int[] touched;
+
+	public KeyFrameIndex(KeyFrameConfig config) {
+		this.capacity  = config.capacity;
+		this.tables    = config.tables;
+		this.binaryWords = new BinaryWords(config.tables, config.wordBits);
+
+		this.head = new int[binaryWords.size()];
+		Arrays.fill(head, -1);
+
+		this.frames    = new LinkedHashMap<Long,KeyFrame>(capacity * 2, 0.75f, true);
+		this.slots     = new KeyFrame[capacity];
+		this.freeSlots = new int[capacity];
+		for(int i = 0; i < capacity; i++)
+			freeSlots[i] = capacity - 1 - i;
+		this.freeCount = capacity;
+
+		this.score   = new int[capacity];
+		this.touched = new int[capacity];
+	}
+
+	/**
+	 * Adds the keyframe and evicts the least recently used one if the capacity is exceeded
+	 *
+	 * @return Evicted keyframe or null
+	 */
+	public synchronized KeyFrame add(KeyFrame kf) {
+		KeyFrame evicted = null;
+		if(freeCount == 0) {
+			Iterator<KeyFrame> it = frames.values().iterator();
+			evicted = it.next();
+			it.remove();
+			unlink(evicted);
+		}
+
+		kf.slot = freeSlots[--freeCount];
+		slots[kf.slot] = kf;
+		frames.put(kf.id, kf);
+
+		kf.words = new int[kf.size * tables];
+		for(int i = 0, k = 0; i < kf.size; i++) {
+			for(int t = 0; t < tables; t++, k++) {
+				int w = binaryWords.word(kf.desc, i * KeyFrame.WORDS, t);
+				kf.words[k] = w;
+				int e = newEntry();
+				entrySlot[e] = kf.slot;
+				entryNext[e] = head[w];
+				head[w] = e;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Finds the keyframes sharing most words with the features
+	 *
+	 * @param desc Descriptors, WORDS per feature
+	 * @param size Number of features
+	 * @param minScore Minimum number of shared words
+	 * @param max Maximum number of candidates
+	 * @param candidates Keyframes, best first
+	 * @return Number of candidates
+	 */
+	public int query(long[] desc, int size, int minScore, int max, List<KeyFrame> candidates) {
+		return query(desc, size, minScore, max, null, candidates);
+	}
+
+	/**
+	 * Finds the keyframes sharing most words with the features. Keyframes not accepted by the
+	 * filter are skipped before the best candidates are selected.
+	 *
+	 * @param desc Descriptors, WORDS per feature
+	 * @param size Number of features
+	 * @param minScore Minimum number of shared words
+	 * @param max Maximum number of candidates
+	 * @param filter Accepted keyframes, null for all
+	 * @param candidates Keyframes, best first
+	 * @return Number of candidates
+	 */
+	public synchronized int query(long[] desc, int size, int minScore, int max, Predicate<KeyFrame> filter,
+			List<KeyFrame> candidates) {
+		candidates.clear();
+
+		int n = 0;
+		for(int i = 0; i < size; i++) {
+			for(int t = 0; t < tables; t++) {
+				for(int e = head[binaryWords.word(desc, i * KeyFrame.WORDS, t)]; e != -1; e = entryNext[e]) {
+					int s = entrySlot[e];
+					if(score[s]++ == 0)
+						touched[n++] = s;
+				}
+			}
+		}
+
+		for(int i = 0; i < n; i++) {
+			int s = touched[i];
+			if(score[s] < minScore || (filter != null && !filter.test(slots[s])))
+				continue;
+			int j = candidates.size();
+			while(j > 0 && score[candidates.get(j - 1).slot] < score[s])
+				j--;
+			if(j < max) {
+				candidates.add(j, slots[s]);
+				if(candidates.size() > max)
+					candidates.remove(max);
+			}
+		}
+
+		for(int i = 0; i < n; i++)
+			score[touched[i]] = 0;
+
+		for(KeyFrame kf : candidates)
+			frames.get(kf.id);
+
+		return candidates.size();
+	}
+
+	public synchronized KeyFrame get(long id) {
+		return frames.get(id);
+	}
+
+	/**
+	 * @return All keyframes, least recently used first
+	 */
+	public synchronized List<KeyFrame> getKeyFrames() {
+		return new ArrayList<KeyFrame>(frames.values());
+	}
+
+	public synchronized int size() {
+		return frames.size();
+	}
+
+	public synchronized void clear() {
+		for(KeyFrame kf : frames.values())
+			kf.slot = -1;
+		frames.clear();
+		Arrays.fill(slots, null);
+		Arrays.fill(head, -1);
+		for(int i = 0; i < capacity; i++)
+			freeSlots[i] = capacity - 1 - i;
+		freeCount  = capacity;
+		entryFree  = -1;
+		entryCount = 0;
+	}
+
+	private int newEntry() {
+		if(entryFree != -1) {
+			int e = entryFree;
+			entryFree = entryNext[e];
+			return e;
+		}
+		if(entryCount == entrySlot.length) {
+			entrySlot = Arrays.copyOf(entrySlot, entryCount * 2);
+			entryNext = Arrays.copyOf(entryNext, entryCount * 2);
+		}
+		return entryCount++;
+	}
+
+	private void unlink(KeyFrame kf) {
+		for(int w : kf.words) {
+			int prev = -1;
+			for(int e = head[w]; e != -1; ) {
+				int next = entryNext[e];
+				if(entrySlot[e] == kf.slot) {
+					if(prev == -1)
+						head[w] = next;
+					else
+						entryNext[prev] = next;
+					entryNext[e] = entryFree;
+					entryFree = e;
+				} else
+					prev = e;
+				e = next;
+			}
+		}
+		slots[kf.slot] = null;
+		freeSlots[freeCount++] = kf.slot;
+		kf.slot = -1;
+		kf.words = null;
+	}
+}
@@ -0,0 +1,143 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ddogleg.fitting.modelset.ModelMatcher;
+import org.ddogleg.fitting.modelset.ransac.Ransac;
+
+import com.comino.realsense.boofcv.CalibrationCache;
+
+import boofcv.abst.geo.RefinePnP;
+import boofcv.alg.geo.pose.PnPDistanceReprojectionSq;
+import boofcv.factory.geo.EnumPNP;
+import boofcv.factory.geo.EstimatorToGenerator;
+import boofcv.factory.geo.FactoryMultiView;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.distort.PointTransform_F64;
+import boofcv.struct.geo.Point2D3D;
+import georegression.fitting.se.ModelManagerSe3_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Estimates the pose of a view relative to a keyframe. Features of the view are matched
+ * to the keyframe by their Hamming distance, the pose is estimated by P3P in RANSAC
+ * followed by a non-linear refinement.
+ *
+ * @author Eike Mansfeld
+ */
+public class KeyFramePnP {
+
+	private final KeyFrameConfig config;
+
+	private PointTransform_F64 pixelToNorm;
+
+	private final ModelMatcher<Se3_F64, Point2D3D> motion;
+	private final PnPDistanceReprojectionSq distance = new PnPDistanceReprojectionSq();
+	private final RefinePnP refine;
+
+	private final List<Point2D3D> matches = new ArrayList<Point2D3D>();
+	private final List<Point2D3D> pool    = new ArrayList<Point2D3D>();
+
+	public KeyFramePnP(KeyFrameConfig config) {
+		this.config = config;
+		this.motion = new Ransac<Se3_F64, Point2D3D>(2323, new ModelManagerSe3_F64(),
+				new EstimatorToGenerator<Se3_F64,Point2D3D>(FactoryMultiView.computePnP_1(EnumPNP.P3P_FINSTERWALDER,-1,2)),
+				distance, config.ransacIterations, config.inlierPixelTol * config.inlierPixelTol);
+		this.refine = config.refineIterations > 0 ? FactoryMultiView.refinePnP(1e-12, config.refineIterations) : null;
+	}
+
+	public void setCalibration(IntrinsicParameters param) {
+		pixelToNorm = CalibrationCache.get(param).getPixelToNorm();
+		distance.setIntrinsic(param.fx, param.fy, param.skew);
+	}
+
+	/**
+	 * Estimates the transform from the keyframe to the view
+	 *
+	 * @param key Keyframe providing the 3D locations
+	 * @param desc Descriptors of the view, WORDS per feature
+	 * @param x Pixel x coordinates of the view's features
+	 * @param y Pixel y coordinates of the view's features
+	 * @param n Number of features of the view
+	 * @param keyToCurr Estimated transform if successful
+	 * @return Number of inliers or 0 if less than the minimum number
+	 */
+	public int estimate(KeyFrame key, long[] desc, float[] x, float[] y, int n, Se3_F64 keyToCurr) {
+		match(key, desc, x, y, n);
+		if(matches.size() < config.minInliers || !motion.process(matches))
+			return 0;
+
+		int count = motion.getMatchSet().size();
+		if(count < config.minInliers)
+			return 0;
+
+		if(refine != null)
+			refine.fitModel(motion.getMatchSet(), motion.getModelParameters(), keyToCurr);
+		else
+			keyToCurr.set(motion.getModelParameters());
+		return count;
+	}
+
+	/**
+	 * Associates each feature of the view to the keyframe feature with the smallest Hamming
+	 * distance, if the distance is small and distinctive enough
+	 */
+	private void match(KeyFrame key, long[] desc, float[] x, float[] y, int n) {
+		matches.clear();
+		for(int i = 0; i < n; i++) {
+			int best = Integer.MAX_VALUE, second = Integer.MAX_VALUE, bestIndex = -1;
+			for(int j = 0; j < key.size; j++) {
+				int d = KeyFrameDescriber.hamming(desc, i * KeyFrame.WORDS, key.desc, j * KeyFrame.WORDS);
+				if(d < best) {
+					second = best; best = d; bestIndex = j;
+				} else if(d < second)
+					second = d;
+			}
+			if(best > config.maxHamming || best >= config.ratio * second)
+				continue;
+
+			int k = matches.size();
+			if(k == pool.size())
+				pool.add(new Point2D3D());
+			Point2D3D p = pool.get(k);
+			pixelToNorm.compute(x[i], y[i], p.observation);
+			p.location.set(key.points[bestIndex * 3], key.points[bestIndex * 3 + 1], key.points[bestIndex * 3 + 2]);
+			matches.add(p);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.comino.slam.boofcv.odometry.MAVDepthVisualOdometry;
+
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.image.GrayU8;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Stores keyframes while the odometry is valid and recovers the camera pose from them
+ * after tracking has been lost. Candidate keyframes are looked up in the inverted file
+ * and verified by {@link KeyFramePnP}.
+ *
+ * @author Eike Mansfeld
+ */
+public class KeyFrameRelocalizer {
+
+	private final KeyFrameConfig    config;
+	private final KeyFrameDescriber describer;
+	private final KeyFrameIndex     index;
+	private KeyFrameDatabase        database = null;
+
+	private final KeyFramePnP       pnp;
+
+	private final List<KeyFrame>  candidates = new ArrayList<KeyFrame>();
+	private final List<KeyFrame>  stored     = new ArrayList<KeyFrame>();
+
+	private final Se3_F64 keyToCurr = new Se3_F64();
+	private final Se3_F64 currToKey = new Se3_F64();
+	private final Se3_F64 temp      = new Se3_F64();
+
+	// last keyframe added
+	private final Se3_F64 last = new Se3_F64();
+	private boolean hasLast = false;
+
+	private long nextId = 0;
+
+	// result of the last relocalization
+	private KeyFrame matched = null;
+	private int      inliers = 0;
+
+	public KeyFrameRelocalizer(KeyFrameConfig config) {
+		this.config    = config;
+		this.describer = new KeyFrameDescriber(config);
+		this.index     = new KeyFrameIndex(config);
+		this.pnp       = new KeyFramePnP(config);
+	}
+
+	public void setCalibration(IntrinsicParameters param) {
+		pnp.setCalibration(param);
+	}
+
+	/**
+	 * Keyframes are additionally stored in the database and looked up there when relocalizing,
+	 * so that keyframes of earlier sessions can be used.
+	 */
+	public void setDatabase(KeyFrameDatabase database) {
+		this.database = database;
+		if(database != null)
+			nextId = Math.max(nextId, database.getNextId());
+	}
+
+	/**
+	 * @return true if no keyframes are available
+	 */
+	public boolean isEmpty() {
+		return index.size() == 0 && (database == null || database.size() == 0);
+	}
+
+	/**
+	 * @param cameraToWorld Current camera pose
+	 * @return true if the camera has moved or turned far enough from the last keyframe
+	 */
+	public boolean isKeyFrameRequired(Se3_F64 cameraToWorld) {
+		if(!hasLast)
+			return true;
+		if(cameraToWorld.T.distance(last.T) > config.keyframeDistance)
+			return true;
+		// angle of the relative rotation
+		double trace = 0;
+		for(int i = 0; i < 3; i++)
+			for(int j = 0; j < 3; j++)
+				trace += last.R.get(j, i) * cameraToWorld.R.get(j, i);
+		double angle = Math.acos(Math.max(-1, Math.min(1, (trace - 1) / 2)));
+		return Math.toDegrees(angle) > config.keyframeAngle;
+	}
+
+	/**
+	 * Describes the image and stores the features with a depth measurement as keyframe
+	 *
+	 * @param image Current image
+	 * @param odometry Provides the 3D location of pixels in the current frame
+	 * @param cameraToWorld Current camera pose
+	 * @return the keyframe or null if too few features have a depth
+	 */
+	public KeyFrame addKeyFrame(GrayU8 image, MAVDepthVisualOdometry<?,?> odometry, Se3_F64 cameraToWorld) {
+		describer.process(image);
+
+		int n = describer.getSize();
+		int[] valid = new int[n];
+		float[] xyz = new float[n * 3];
+		int count = 0;
+		for(int i = 0; i < n; i++) {
+			Point3D_F64 p = odometry.getPoint3DFromPixel((int)describer.getX(i), (int)describer.getY(i));
+			if(p == null || p.z <= 0)
+				continue;
+			xyz[count * 3]     = (float)p.x;
+			xyz[count * 3 + 1] = (float)p.y;
+			xyz[count * 3 + 2] = (float)p.z;
+			valid[count++] = i;
+		}
+		if(count < config.minPoints)
+			return null;
+
+		KeyFrame kf = new KeyFrame(nextId++, System.currentTimeMillis(), count);
+		kf.cameraToWorld.set(cameraToWorld);
+		long[] desc = describer.getDescriptors();
+		for(int k = 0; k < count; k++) {
+			int i = valid[k];
+			kf.x[k] = describer.getX(i);
+			kf.y[k] = describer.getY(i);
+			System.arraycopy(desc, i * KeyFrame.WORDS, kf.desc, k * KeyFrame.WORDS, KeyFrame.WORDS);
+		}
+		System.arraycopy(xyz, 0, kf.points, 0, count * 3);
+
+		index.add(kf);
+		if(database != null && !database.isFull() && !database.append(kf))
+			System.out.println("[vis] Keyframe database full");
+		last.set(cameraToWorld);
+		hasLast = true;
+		return kf;
+	}
+
+	/**
+	 * Estimates the camera pose from the keyframes
+	 *
+	 * @param image Current image
+	 * @param cameraToWorld Estimated camera pose if successful
+	 * @return true if a keyframe supports the pose with enough inliers
+	 */
+	public boolean relocalize(GrayU8 image, Se3_F64 cameraToWorld) {
+		matched = null;
+		inliers = 0;
+
+		describer.process(image);
+		final int n = describer.getSize();
+		final long[] desc = describer.getDescriptors();
+
+		index.query(desc, n, config.minScore, config.candidates, candidates);
+
+		// keyframes of this session are in the index already
+		if(database != null) {
+			stored.clear();
+			database.query(desc, n, config.minScore, config.candidates, stored);
+			for(KeyFrame kf : stored) {
+				if(index.get(kf.id) == null)
+					candidates.add(kf);
+			}
+		}
+
+		if(candidates.isEmpty())
+			return false;
+
+		for(KeyFrame kf : candidates) {
+			int count = pnp.estimate(kf, desc, describer.getXs(), describer.getYs(), n, keyToCurr);
+			if(count <= inliers)
+				continue;
+
+			keyToCurr.invert(currToKey);
+			currToKey.concat(kf.cameraToWorld, temp);
+			cameraToWorld.set(temp);
+			matched = kf;
+			inliers = count;
+		}
+		return matched != null;
+	}
+
+	public KeyFrameIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return Keyframe of the last successful relocalization
+	 */
+	public KeyFrame getMatchedKeyFrame() {
+		return matched;
+	}
+
+	/**
+	 * @return Number of PnP inliers of the last successful relocalization
+	 */
+	public int getInliers() {
+		return inliers;
+	}
+}
@@ -0,0 +1,252 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import boofcv.struct.calib.IntrinsicParameters;
+import georegression.geometry.GeometryMath_F64;
+import georegression.struct.point.Vector3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Detects loops between keyframes and optimizes the pose graph on a background thread.
+ * Keyframes are passed with the correction applied to their position at that time, so
+ * that the graph is built from the uncorrected odometry. Loop candidates are looked up
+ * in the keyframe index and verified by PnP. After each loop closure the graph is
+ * optimized and the correction of the latest keyframe is provided to the estimator.
+ *
+ * @author Eike Mansfeld
+ */
+public class LoopClosure implements Runnable {
+
+	private static final int QUEUE_SIZE = 50;
+
+	private final KeyFrameConfig config;
+	private final KeyFrameIndex  index;
+	private final KeyFramePnP    pnp;
+	private final PoseGraph      graph;
+
+	private final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(QUEUE_SIZE);
+	private Thread thread = null;
+
+	// graph node of each keyframe
+	private final Map<Long,Integer> nodes = new HashMap<Long,Integer>();
+	// segment of each node
+	private int[]    segment  = new int[64];
+	private int      segments = 0;
+	// segments joined by loops, union find
+	private int[]    parent   = new int[64];
+
+	private final List<KeyFrame> candidates = new ArrayList<KeyFrame>();
+	private final Se3_F64        keyToCurr  = new Se3_F64();
+	private final Se3_F64        currToKey  = new Se3_F64();
+	private final Vector3D_F64   measured   = new Vector3D_F64();
+	private final Vector3D_F64   estimated  = new Vector3D_F64();
+	private final Vector3D_F64   tmp        = new Vector3D_F64();
+
+	// correction of the latest keyframe
+	private final Vector3D_F64 correction = new Vector3D_F64();
+	private int  version = 0;
+	private long optimization_ms = 0;
+
+	public LoopClosure(KeyFrameConfig config, KeyFrameIndex index) {
+		this.config = config;
+		this.index  = index;
+		this.pnp    = new KeyFramePnP(config);
+		this.graph  = new PoseGraph(config.odometrySigma);
+	}
+
+	public void setCalibration(IntrinsicParameters param) {
+		pnp.setCalibration(param);
+	}
+
+	public void start() {
+		if(thread != null)
+			return;
+		thread = new Thread(this, "Loop closure");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		if(thread != null)
+			thread.interrupt();
+		thread = null;
+	}
+
+	/**
+	 * Queues a keyframe, does not block
+	 *
+	 * @param kf Keyframe
+	 * @param applied Correction contained in the keyframe's position
+	 * @param newSegment true if the odometry has been reset since the previous keyframe
+	 * @return false if the queue is full and the keyframe has been dropped
+	 */
+	public boolean add(KeyFrame kf, Vector3D_F64 applied, boolean newSegment) {
+		Item item = new Item();
+		item.kf = kf;
+		item.applied.set(applied);
+		item.newSegment = newSegment;
+		return queue.offer(item);
+	}
+
+	/**
+	 * @param out Correction to be applied to the estimated position
+	 * @return Version of the correction, increased with each optimization
+	 */
+	public synchronized int getCorrection(Vector3D_F64 out) {
+		out.set(correction);
+		return version;
+	}
+
+	@Override
+	public void run() {
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+				process(queue.take());
+			} catch(InterruptedException e) {
+				break;
+			} catch(Exception e) {
+				System.out.println("[vis] Loop closure failure: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Adds the keyframe to the graph, closes loops and optimizes the graph
+	 */
+	public void process(Item item) {
+		KeyFrame kf = item.kf;
+
+		boolean newSegment = item.newSegment || graph.size() == 0;
+		GeometryMath_F64.sub(kf.cameraToWorld.T, item.applied, measured);
+		int node = graph.addNode(measured, newSegment);
+		if(newSegment)
+			parent = grow(parent, segments + 1, segments++);
+		if(segment.length <= node)
+			segment = Arrays.copyOf(segment, segment.length * 2);
+		segment[node] = newSegment ? segments - 1 : segment[node - 1];
+
+		boolean closed = false;
+		// the keyframe itself and its recent predecessors would take the best slots
+		index.query(kf.desc, kf.size, config.minScore, config.candidates, candidate -> {
+			Integer c = nodes.get(candidate.id);
+			return c != null && (segment[c] != segment[node] || node - c >= config.loopMinDistance);
+		}, candidates);
+		for(KeyFrame candidate : candidates) {
+			int c = nodes.get(candidate.id);
+
+			if(pnp.estimate(candidate, kf.desc, kf.x, kf.y, kf.size, keyToCurr) < config.loopInliers)
+				continue;
+
+			// displacement in the world frame given by the candidate's rotation
+			keyToCurr.invert(currToKey);
+			GeometryMath_F64.mult(candidate.cameraToWorld.R, currToKey.T, tmp);
+
+			// reject loops which contradict the current estimate of a connected part of the graph
+			if(find(segment[c]) == find(segment[node])) {
+				graph.getPosition(node, estimated);
+				graph.getPosition(c, measured);
+				GeometryMath_F64.sub(estimated, measured, estimated);
+				GeometryMath_F64.sub(estimated, tmp, estimated);
+				if(estimated.norm() > config.loopMaxError)
+					continue;
+			}
+
+			graph.addLoop(c, node, tmp, config.loopSigma);
+			parent[find(segment[c])] = find(segment[node]);
+			closed = true;
+		}
+		nodes.put(kf.id, node);
+
+		if(!closed)
+			return;
+
+		long tms = System.currentTimeMillis();
+		graph.optimize(config.graphIterations, 1e-9);
+
+		graph.getPosition(node, estimated);
+		graph.getMeasured(node, measured);
+		synchronized(this) {
+			GeometryMath_F64.sub(estimated, measured, correction);
+			version++;
+			optimization_ms = System.currentTimeMillis() - tms;
+		}
+	}
+
+	private int[] grow(int[] a, int size, int init) {
+		if(a.length < size)
+			a = Arrays.copyOf(a, size * 2);
+		a[init] = init;
+		return a;
+	}
+
+	private int find(int s) {
+		while(parent[s] != s) {
+			parent[s] = parent[parent[s]];
+			s = parent[s];
+		}
+		return s;
+	}
+
+	public int getNodeCount() {
+		return graph.size();
+	}
+
+	public int getLoopCount() {
+		return graph.getLoopCount();
+	}
+
+	public synchronized long getOptimizationTime() {
+		return optimization_ms;
+	}
+
+	public PoseGraph getGraph() {
+		return graph;
+	}
+
+	static class Item {
+		KeyFrame     kf;
+		Vector3D_F64 applied = new Vector3D_F64();
+		boolean      newSegment;
+	}
+}
@@ -0,0 +1,277 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.keyframe;
+
+import java.util.Arrays;
+
+import georegression.struct.point.Vector3D_F64;
+
+/**
+ * Pose graph of keyframe positions. The orientation of the camera is given by the attitude,
+ * so only the positions are optimized and the least squares problem is linear. Consecutive
+ * keyframes of a segment are connected by their odometry, loop closures connect arbitrary
+ * keyframes. A new segment starts after the odometry has been reset.
+ *
+ * The normal equations are solved by conjugate gradients preconditioned with the odometry
+ * chains, which are tridiagonal and solved exactly in linear time. The preconditioned
+ * system differs from the identity only by the loop closures, so few iterations are
+ * required and the optimization scales linear with the number of keyframes and loops.
+ *
+ * @author Eike Mansfeld
+ */
+public class PoseGraph {
+
+	// weight of the prior fixing the first keyframe
+	private static final double ANCHOR_WEIGHT  = 1e6;
+	// weight of the prior keeping a segment in place if not connected by loops
+	private static final double SEGMENT_WEIGHT = 1e-6;
+	// minimum distance in meters an odometry weight is based on
+	private static final double MIN_DISTANCE   = 0.1;
+
+	private final double odometrySigma;
+
+	// measured and optimized positions, 3 per node
+	private double[]  raw   = new double[3 * 64];
+	private double[]  pos   = new double[3 * 64];
+	// weight of the odometry edge to the previous node, 0 at the start of a segment
+	private double[]  odo   = new double[64];
+	private double[]  prior = new double[64];
+	private int n = 0;
+
+	// loop closures from node a to node b with the measured displacement b - a
+	private int[]     loopA = new int[16];
+	private int[]     loopB = new int[16];
+	private double[]  loopD = new double[3 * 16];
+	private double[]  loopW = new double[16];
+	private int m = 0;
+
+	// solver scratch
+	private double[] b, x, r, z, p, ap, diag, fac;
+
+	public PoseGraph(double odometrySigma) {
+		this.odometrySigma = odometrySigma;
+	}
+
+	/**
+	 * Adds a node at the measured position. The optimized position of a node continuing a
+	 * segment is its measured displacement applied to the optimized position of its predecessor.
+	 *
+	 * @param newSegment true if the node is not connected to its predecessor by odometry
+	 * @return Index of the node
+	 */
+	public int addNode(Vector3D_F64 measured, boolean newSegment) {
+		if(n == odo.length)
+			grow(n * 2);
+
+		int i = n++;
+		raw[3*i] = measured.x; raw[3*i+1] = measured.y; raw[3*i+2] = measured.z;
+
+		if(i == 0 || newSegment) {
+			odo[i]   = 0;
+			prior[i] = i == 0 ? ANCHOR_WEIGHT : SEGMENT_WEIGHT;
+			System.arraycopy(raw, 3*i, pos, 3*i, 3);
+		} else {
+			double dx = raw[3*i] - raw[3*i-3], dy = raw[3*i+1] - raw[3*i-2], dz = raw[3*i+2] - raw[3*i-1];
+			double d  = Math.max(MIN_DISTANCE, Math.sqrt(dx*dx + dy*dy + dz*dz));
+			odo[i]   = 1.0 / (odometrySigma * odometrySigma * d);
+			prior[i] = 0;
+			pos[3*i] = pos[3*i-3] + dx; pos[3*i+1] = pos[3*i-2] + dy; pos[3*i+2] = pos[3*i-1] + dz;
+		}
+		return i;
+	}
+
+	/**
+	 * Adds a loop closure
+	 *
+	 * @param a Index of the first node
+	 * @param b Index of the second node
+	 * @param displacement Measured position of b minus position of a
+	 * @param sigma Standard deviation of the displacement in meters
+	 */
+	public void addLoop(int a, int b, Vector3D_F64 displacement, double sigma) {
+		if(m == loopA.length) {
+			loopA = Arrays.copyOf(loopA, m * 2);
+			loopB = Arrays.copyOf(loopB, m * 2);
+			loopD = Arrays.copyOf(loopD, m * 6);
+			loopW = Arrays.copyOf(loopW, m * 2);
+		}
+		loopA[m] = a; loopB[m] = b;
+		loopD[3*m] = displacement.x; loopD[3*m+1] = displacement.y; loopD[3*m+2] = displacement.z;
+		loopW[m] = 1.0 / (sigma * sigma);
+		m++;
+	}
+
+	/**
+	 * Optimizes the positions starting from the current ones
+	 *
+	 * @param maxIterations Maximum number of iterations per axis
+	 * @param tol Relative tolerance of the residual
+	 * @return Total number of iterations
+	 */
+	public int optimize(int maxIterations, double tol) {
+		if(n == 0)
+			return 0;
+		if(x == null || x.length < n) {
+			int s = odo.length;
+			b = new double[s]; x = new double[s]; r = new double[s]; z = new double[s];
+			p = new double[s]; ap = new double[s]; diag = new double[s]; fac = new double[s];
+		}
+
+		factorize();
+
+		int iterations = 0;
+		for(int axis = 0; axis < 3; axis++) {
+			for(int i = 0; i < n; i++) {
+				x[i] = pos[3*i+axis];
+				// segments without loops keep their place
+				b[i] = prior[i] * (i == 0 ? raw[axis] : pos[3*i+axis]);
+			}
+			for(int i = 1; i < n; i++) {
+				if(odo[i] == 0)
+					continue;
+				double d = odo[i] * (raw[3*i+axis] - raw[3*i-3+axis]);
+				b[i] += d; b[i-1] -= d;
+			}
+			for(int k = 0; k < m; k++) {
+				double d = loopW[k] * loopD[3*k+axis];
+				b[loopB[k]] += d; b[loopA[k]] -= d;
+			}
+
+			double bb = dot(b, b);
+			multiply(x, ap);
+			for(int i = 0; i < n; i++)
+				r[i] = b[i] - ap[i];
+			solve(r, z);
+			System.arraycopy(z, 0, p, 0, n);
+			double rz = dot(r, z);
+
+			for(int it = 0; it < maxIterations; it++) {
+				if(dot(r, r) <= tol * tol * bb)
+					break;
+				iterations++;
+				multiply(p, ap);
+				double alpha = rz / dot(p, ap);
+				for(int i = 0; i < n; i++) {
+					x[i] += alpha * p[i];
+					r[i] -= alpha * ap[i];
+				}
+				solve(r, z);
+				double rzNew = dot(r, z);
+				double beta = rzNew / rz;
+				rz = rzNew;
+				for(int i = 0; i < n; i++)
+					p[i] = z[i] + beta * p[i];
+			}
+
+			for(int i = 0; i < n; i++)
+				pos[3*i+axis] = x[i];
+		}
+		return iterations;
+	}
+
+	/**
+	 * out = A * v with A the normal matrix of odometry, loops and priors
+	 */
+	private void multiply(double[] v, double[] out) {
+		for(int i = 0; i < n; i++)
+			out[i] = prior[i] * v[i];
+		for(int i = 1; i < n; i++) {
+			if(odo[i] == 0)
+				continue;
+			double d = odo[i] * (v[i] - v[i-1]);
+			out[i] += d; out[i-1] -= d;
+		}
+		for(int k = 0; k < m; k++) {
+			double d = loopW[k] * (v[loopB[k]] - v[loopA[k]]);
+			out[loopB[k]] += d; out[loopA[k]] -= d;
+		}
+	}
+
+	/**
+	 * LDL' factorization of the tridiagonal preconditioner of odometry and priors
+	 */
+	private void factorize() {
+		for(int i = 0; i < n; i++)
+			diag[i] = prior[i] + odo[i] + (i + 1 < n ? odo[i+1] : 0);
+		// fac holds the subdiagonal of L, diag the diagonal of D
+		fac[0] = 0;
+		for(int i = 1; i < n; i++) {
+			fac[i]   = -odo[i] / diag[i-1];
+			diag[i] -= fac[i] * -odo[i];
+		}
+	}
+
+	/**
+	 * Solves the preconditioner system M * out = v
+	 */
+	private void solve(double[] v, double[] out) {
+		out[0] = v[0];
+		for(int i = 1; i < n; i++)
+			out[i] = v[i] - fac[i] * out[i-1];
+		out[n-1] /= diag[n-1];
+		for(int i = n - 2; i >= 0; i--)
+			out[i] = out[i] / diag[i] - fac[i+1] * out[i+1];
+	}
+
+	private double dot(double[] a, double[] c) {
+		double s = 0;
+		for(int i = 0; i < n; i++)
+			s += a[i] * c[i];
+		return s;
+	}
+
+	private void grow(int size) {
+		raw   = Arrays.copyOf(raw, 3 * size);
+		pos   = Arrays.copyOf(pos, 3 * size);
+		odo   = Arrays.copyOf(odo, size);
+		prior = Arrays.copyOf(prior, size);
+	}
+
+	public void getPosition(int index, Vector3D_F64 out) {
+		out.set(pos[3*index], pos[3*index+1], pos[3*index+2]);
+	}
+
+	public void getMeasured(int index, Vector3D_F64 out) {
+		out.set(raw[3*index], raw[3*index+1], raw[3*index+2]);
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public int getLoopCount() {
+		return m;
+	}
+}
@@ -0,0 +1,74 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.odometry;
+
+/**
+ * Configuration of {@link MAVOdomDepthICP}.
+ *
+ * @author Eike Mansfeld
+ */
+public class DepthICPConfig {
+
+	/** Width of the finest level, the depth image is decimated by an integer factor to about this width */
+	public int width = 160;
+	/** Gauss-Newton iterations per level, finest level first. The number of entries is the number of levels */
+	public int[] iterations = { 4, 6, 8 };
+
+	/** Scale of the depth image to meters */
+	public double depthScale = 1e-3;
+	/** Depth beyond this range in meters is ignored */
+	public double maxDepth = 5.0;
+	/** Relative depth difference of neighbours treated as a discontinuity */
+	public double depthJump = 0.05;
+
+	/** Maximum distance of associated points in meters */
+	public double maxDistance = 0.10;
+	/** Maximum angle between associated normals in degrees */
+	public double maxAngle = 30;
+	/** Residuals beyond this point-to-plane distance in meters are down weighted (Huber) */
+	public double huber = 0.02;
+
+	/** Minimum number of associated points at the finest level */
+	public int minInliers = 400;
+	/** Minimum ratio of associated to valid points at the finest level */
+	public double minInlierRatio = 0.2;
+	/** The current frame becomes the key frame below this ratio of associated points */
+	public double keyframeRatio = 0.6;
+	/** The current frame becomes the key frame beyond this distance to the key frame in meters */
+	public double keyframeDistance = 0.3;
+
+	/** Number of workers including the calling thread */
+	public int threads = 2;
+
+}
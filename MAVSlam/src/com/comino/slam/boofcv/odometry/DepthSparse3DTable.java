@@ -0,0 +1,101 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import com.comino.realsense.boofcv.CalibrationCache;
+import com.comino.realsense.boofcv.PixelRayTable;
+
+import boofcv.alg.sfm.DepthSparse3D;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.distort.PixelTransform_F32;
+import boofcv.struct.image.GrayI;
+import georegression.struct.point.Point3D_F64;
+
+/**
+ * {@link DepthSparse3D} for integer depth images which takes the rays of the visual pixels
+ * from the shared {@link PixelRayTable} instead of evaluating the distortion model.
+ *
+ * @author Eike Mansfeld
+ */
+public class DepthSparse3DTable<T extends GrayI> extends DepthSparse3D<T> {
+
+	private final double depthScale;
+
+	private PixelRayTable      table;
+	private PixelTransform_F32 visualToDepth;
+
+	private final Point3D_F64 worldPt = new Point3D_F64();
+
+	/**
+	 * @param depthScale Scale of the depth image to meters
+	 */
+	public DepthSparse3DTable(double depthScale) {
+		super(depthScale);
+		this.depthScale = depthScale;
+	}
+
+	@Override
+	public void configure(IntrinsicParameters paramVisual, PixelTransform_F32 visualToDepth) {
+		super.configure(paramVisual, visualToDepth);
+		this.table = CalibrationCache.get(paramVisual);
+		this.visualToDepth = visualToDepth;
+	}
+
+	@Override
+	public boolean process(int x, int y) {
+		visualToDepth.compute(x, y);
+		int depthX = (int)visualToDepth.distX;
+		int depthY = (int)visualToDepth.distY;
+
+		if(!depthImage.isInBounds(depthX, depthY))
+			return false;
+
+		int value = depthImage.unsafe_get(depthX, depthY);
+		if(value == 0)
+			return false;
+
+		return table.pointAtDepth(x, y, value * depthScale, worldPt);
+	}
+
+	@Override
+	public Point3D_F64 getWorldPt() {
+		return worldPt;
+	}
+
+	@Override
+	protected double lookupDepth(int depthX, int depthY) {
+		return depthImage.unsafe_get(depthX, depthY);
+	}
+}
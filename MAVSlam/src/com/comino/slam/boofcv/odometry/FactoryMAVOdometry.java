@@ -34,6 +34,7 @@ import boofcv.factory.geo.EnumPNP;
 import boofcv.factory.geo.EstimatorToGenerator;
 import boofcv.factory.geo.FactoryMultiView;
 import boofcv.struct.geo.Point2D3D;
+import boofcv.struct.image.GrayU16;
 import boofcv.struct.image.ImageGray;
 import boofcv.struct.image.ImageType;
 import georegression.fitting.se.ModelManagerSe3_F64;
@@ -46,6 +47,10 @@ import georegression.struct.se.Se3_F64;
  */
 public class FactoryMAVOdometry {
 
+	// standard deviation of a tracked feature in pixels
+	private static final double PIXEL_SIGMA = 0.5;
+	// standard deviation of the depth at 1m in meters, R200 depth error grows quadratically with the range
+	private static final double DEPTH_NOISE = 0.01;
 
 
 	/**
@@ -72,12 +77,46 @@ public class FactoryMAVOdometry {
 												 DepthSparse3D<Depth> sparseDepth,
 												 PointTrackerTwoPass<Vis> tracker ,
 												 Class<Vis> visualType , Class<Depth> depthType ) {
+		return depthDepthPnP(inlierPixelTol, thresholdAdd, thresholdRetire, ransacIterations, refineIterations,
+				doublePass, false, false, sparseDepth, tracker, null, visualType, depthType);
+	}
+
+	/**
+	 * Depth sensor based visual odometry as {@link #depthDepthPnP(double, int, int, int, int, boolean, DepthSparse3D,
+	 * PointTrackerTwoPass, Class, Class)} whose key frames are optionally refined by a sliding window bundle
+	 * adjustment and whose motion is optionally estimated in single precision. Reprojection errors are
+	 * optionally weighted by the depth uncertainty of the tracks.
+	 *
+	 * @see LocalBundleAdjustment
+	 * @see RansacPnP_F32
+	 * @see PnPDistanceReprojectionWeighted
+	 *
+	 * @param singlePrecision Score RANSAC hypotheses and refine the motion in float
+	 * @param depthWeighted Weight reprojection errors by the depth uncertainty of the tracks
+	 * @param bundleAdjustment Bundle adjustment of the key frames, started by the caller. Can be null.
+	 */
+	public static <Vis extends ImageGray, Depth extends ImageGray>
+	MAVDepthVisualOdometry<Vis,Depth> depthDepthPnP(double inlierPixelTol,
+												 int thresholdAdd,
+												 int thresholdRetire ,
+												 int ransacIterations ,
+												 int refineIterations ,
+												 boolean doublePass ,
+												 boolean singlePrecision ,
+												 boolean depthWeighted ,
+												 DepthSparse3D<Depth> sparseDepth,
+												 PointTrackerTwoPass<Vis> tracker ,
+												 LocalBundleAdjustment bundleAdjustment ,
+												 Class<Vis> visualType , Class<Depth> depthType ) {
 
 		// Range from sparse disparity
 		ImagePixelTo3D pixelTo3D = new DepthSparse3D_to_PixelTo3D<Depth>(sparseDepth);
 
 		Estimate1ofPnP estimator = FactoryMultiView.computePnP_1(EnumPNP.P3P_FINSTERWALDER,-1,2);
-		final DistanceModelMonoPixels<Se3_F64,Point2D3D> distance = new PnPDistanceReprojectionSq();
+		// reprojection error optionally weighted by the depth uncertainty of the points
+		final DistanceModelMonoPixels<Se3_F64,Point2D3D> distance = depthWeighted
+				? new PnPDistanceReprojectionWeighted(PIXEL_SIGMA) : new PnPDistanceReprojectionSq();
+		double pixelSigma = depthWeighted ? PIXEL_SIGMA : 0;
 
 		ModelManagerSe3_F64 manager = new ModelManagerSe3_F64();
 		EstimatorToGenerator<Se3_F64,Point2D3D> generator = new EstimatorToGenerator<Se3_F64,Point2D3D>(estimator);
@@ -85,21 +124,102 @@ public class FactoryMAVOdometry {
 		// 1/2 a pixel tolerance for RANSAC inliers
 		double ransacTOL = inlierPixelTol * inlierPixelTol;
 
-		ModelMatcher<Se3_F64, Point2D3D> motion =
-				new Ransac<Se3_F64, Point2D3D>(2323, manager, generator, distance, ransacIterations, ransacTOL);
+		ModelMatcher<Se3_F64, Point2D3D> motion;
+		if( singlePrecision ) {
+			RansacPnP_F32 ransac = new RansacPnP_F32(2323, estimator, ransacIterations, inlierPixelTol);
+			ransac.setPixelSigma(pixelSigma);
+			motion = ransac;
+		} else
+			motion = new Ransac<Se3_F64, Point2D3D>(2323, manager, generator, distance, ransacIterations, ransacTOL);
 
 		RefinePnP refine = null;
 
+		// Huber loss at the inlier tolerance, stops if the cost decreases by less than 1e-6
 		if( refineIterations > 0 ) {
-			refine = FactoryMultiView.refinePnP(1e-12,refineIterations);
+			if( singlePrecision ) {
+				RefinePnPHuber_F32 huber = new RefinePnPHuber_F32(inlierPixelTol, 1e-6, refineIterations);
+				huber.setPixelSigma(pixelSigma);
+				refine = huber;
+			} else {
+				RefinePnPHuber huber = new RefinePnPHuber(inlierPixelTol, 1e-6, refineIterations);
+				huber.setPixelSigma(pixelSigma);
+				refine = huber;
+			}
 		}
 
 		MAVOdomPixelDepthPnP<Vis> alg = new MAVOdomPixelDepthPnP<Vis>
 						(thresholdAdd,thresholdRetire ,doublePass,motion,pixelTo3D,refine,tracker,null,null);
+		alg.setBundleAdjustment(bundleAdjustment);
+		alg.setDepthNoise(depthWeighted ? DEPTH_NOISE : 0);
 
 		return new MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis,Depth>
 				(sparseDepth,alg,distance, ImageType.single(visualType),depthType);
 	}
 
+	/**
+	 * Depth sensor based visual odometry algorithm which runs a sparse feature tracker in the visual camera and
+	 * measures the range of all active tracks in every frame. The motion is estimated by closed form 3D-3D
+	 * alignment, which is much cheaper than P3P followed by a non-linear refinement.
+	 *
+	 * @see MAVOdomPixelDepth3D
+	 *
+	 * @param inlierPixelTol Reprojection error of an inlier in pixels
+	 * @param thresholdAdd Add new tracks when less than this number are in the inlier set.  Tracker dependent. Set to
+	 *                     a value &le; 0 to add features every frame.
+	 * @param thresholdRetire Discard a track if it is not in the inlier set after this many updates.  Try 2
+	 * @param refitIterations Number of times the inliers of the fitted motion are fitted again. Try 2
+	 * @param sparseDepth Extracts depth of pixels from a depth sensor.
+	 * @param visualType Type of visual image being processed.
+	 * @param depthType Type of depth image being processed.
+	 * @return StereoVisualOdometry
+	 */
+	public static <Vis extends ImageGray, Depth extends ImageGray>
+	MAVDepthVisualOdometry<Vis,Depth> depthDepth3D(double inlierPixelTol,
+												 int thresholdAdd,
+												 int thresholdRetire ,
+												 int ransacIterations ,
+												 int refitIterations ,
+												 boolean doublePass ,
+												 DepthSparse3D<Depth> sparseDepth,
+												 PointTrackerTwoPass<Vis> tracker ,
+												 Class<Vis> visualType , Class<Depth> depthType ) {
+
+		// Range from sparse disparity
+		ImagePixelTo3D pixelTo3D = new DepthSparse3D_to_PixelTo3D<Depth>(sparseDepth);
+
+		Point3D3DDistanceReprojectionSq distance = new Point3D3DDistanceReprojectionSq();
+
+		ModelManagerSe3_F64 manager = new ModelManagerSe3_F64();
+
+		double ransacTOL = inlierPixelTol * inlierPixelTol;
+
+		ModelMatcher<Se3_F64, Point3D3DTrack> motion =
+				new Ransac<Se3_F64, Point3D3DTrack>(2323, manager, new Se3FromPoint3D3DGenerator(), distance,
+						ransacIterations, ransacTOL);
+
+		MAVOdomPixelDepth3D<Vis> alg = new MAVOdomPixelDepth3D<Vis>
+						(thresholdAdd,thresholdRetire ,doublePass,motion,new Se3FromPoint3D3DGenerator(),
+						 distance,ransacTOL,refitIterations,pixelTo3D,
+						 tracker,null,null);
+
+		return new MAVOdomPixelDepth3D_to_DepthVisualOdometry<Vis,Depth>
+				(sparseDepth,alg,distance, ImageType.single(visualType),depthType);
+	}
+
+	/**
+	 * Depth only visual odometry by point-to-plane ICP on a decimated depth image. Does not need any
+	 * texture in the visual image.
+	 *
+	 * @see MAVOdomDepthICP
+	 *
+	 * @param config ICP configuration
+	 * @param qualityScale Quality reported if all points of the current frame are associated with the key frame
+	 * @param visualType Type of visual image being processed.
+	 * @return DepthVisualOdometry
+	 */
+	public static <Vis extends ImageGray>
+	MAVDepthVisualOdometry<Vis,GrayU16> depthICP(DepthICPConfig config, double qualityScale, Class<Vis> visualType) {
+		return new MAVOdomDepthICP<Vis>(config, qualityScale, ImageType.single(visualType));
+	}
 
 }
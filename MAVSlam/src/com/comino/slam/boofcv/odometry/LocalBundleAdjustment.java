@@ -0,0 +1,661 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import boofcv.struct.calib.IntrinsicParameters;
+import georegression.struct.point.Vector3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Sliding window bundle adjustment of the key frames of the visual odometry on a background
+ * thread. Key frames are passed with the normalized observations of their inlier tracks and
+ * the inverse depth of the tracks spawned in them. Points are initialized from their measured
+ * depth, which also fixes the scale. The oldest key frame of the window is kept fixed.
+ *
+ * Levenberg-Marquardt steps are solved by the Schur complement: the point blocks are 3x3 and
+ * eliminated, leaving a small dense system of the key frame poses. The translation correction
+ * of the latest key frame is provided to the estimator, which shifts its position by changes
+ * of the correction without waiting for the optimization. The odometry itself is not corrected,
+ * so corrections do not appear as motion of the camera.
+ *
+ * @author Eike Mansfeld
+ */
+public class LocalBundleAdjustment implements Runnable {
+
+	private final BundleAdjustmentConfig config;
+	private final BlockingQueue<KeyFrame> queue;
+	private Thread thread = null;
+
+	// weights of residuals in normalized image coordinates and inverse depth
+	private double obsWeight   = 1;
+	private double depthWeight = 1;
+
+	// segment of the odometry, increased by each reset. Guarded by this
+	private int segment = 0;
+
+	// window, oldest key frame first
+	private final List<KeyFrame> frames = new ArrayList<KeyFrame>();
+	private final Map<Long,Landmark> landmarks = new HashMap<Long,Landmark>();
+	private final List<Landmark> active = new ArrayList<Landmark>();
+	private int windowSegment = -1;
+
+	// correction of the latest key frame
+	private final Vector3D_F64 correction = new Vector3D_F64();
+	private int  version = 0;
+	private long optimization_ms = 0;
+	private int  optimizations = 0;
+
+	// normal equations: poses, points and their coupling per observation
+	private double[] hcc = new double[0], bc = new double[0];
+	private double[] hpp = new double[0], bp = new double[0], hppInv = new double[0];
+	private double[] s = new double[0], g = new double[0], dc = new double[0], dp = new double[0];
+	private double[] w = new double[18 * 256];
+	private int[]    obsCam = new int[256], obsNext = new int[256], pointHead = new int[0];
+	private int      nobs = 0;
+
+	// state saved during a step
+	private double[] savedPoses = new double[0], savedPoints = new double[0];
+
+	// scratch of one observation
+	private final double[] xc = new double[3], jc = new double[18], jp = new double[9], err = new double[3];
+	private final double[] proj = new double[9], dr = new double[9], rtmp = new double[9];
+
+	public LocalBundleAdjustment(BundleAdjustmentConfig config) {
+		this.config = config;
+		this.queue  = new ArrayBlockingQueue<KeyFrame>(config.queueSize);
+	}
+
+	public void setCalibration(IntrinsicParameters param) {
+		double sigma = config.pixelSigma / param.fx;
+		obsWeight   = 1.0 / (sigma * sigma);
+		depthWeight = 1.0 / (config.inverseDepthSigma * config.inverseDepthSigma);
+	}
+
+	public void start() {
+		if(thread != null)
+			return;
+		thread = new Thread(this, "Bundle adjustment");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		if(thread != null)
+			thread.interrupt();
+		thread = null;
+	}
+
+	/**
+	 * Queues a key frame, does not block
+	 *
+	 * @return false if the queue is full and the key frame has been dropped
+	 */
+	public boolean add(KeyFrame kf) {
+		synchronized(this) {
+			kf.segment = segment;
+		}
+		return queue.offer(kf);
+	}
+
+	/**
+	 * Starts a new window with the next key frame. Corrections of the previous window are discarded.
+	 */
+	public synchronized void reset() {
+		segment++;
+		correction.set(0, 0, 0);
+		version++;
+	}
+
+	/**
+	 * @param out Translation correction of the latest optimized key frame
+	 * @return Version of the correction, increased with each optimization
+	 */
+	public synchronized int getCorrection(Vector3D_F64 out) {
+		out.set(correction);
+		return version;
+	}
+
+	@Override
+	public void run() {
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+				process(queue.take());
+			} catch(InterruptedException e) {
+				break;
+			} catch(Exception e) {
+				System.out.println("[vis] Bundle adjustment failure: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Adds the key frame to the window and optimizes the window if no further key frames are waiting
+	 */
+	public void process(KeyFrame kf) {
+		if(kf.segment != windowSegment) {
+			frames.clear();
+			landmarks.clear();
+			windowSegment = kf.segment;
+		}
+
+		// continue the correction of the previous key frame
+		if(!frames.isEmpty()) {
+			KeyFrame last = frames.get(frames.size() - 1);
+			for(int i = 0; i < 3; i++)
+				kf.t[i] += last.t[i] - last.raw[i];
+		}
+		addObservations(kf);
+		frames.add(kf);
+
+		if(frames.size() > config.windowSize)
+			removeObservations(frames.remove(0));
+
+		if(frames.size() < 2 || !queue.isEmpty())
+			return;
+
+		long tms = System.currentTimeMillis();
+		if(!optimize())
+			return;
+
+		KeyFrame last = frames.get(frames.size() - 1);
+		synchronized(this) {
+			if(kf.segment != segment)
+				return;
+			correction.set(last.t[0] - last.raw[0], last.t[1] - last.raw[1], last.t[2] - last.raw[2]);
+			version++;
+			optimizations++;
+			optimization_ms = System.currentTimeMillis() - tms;
+		}
+	}
+
+	private void addObservations(KeyFrame kf) {
+		for(int i = 0; i < kf.size; i++) {
+			Landmark l = landmarks.get(kf.ids[i]);
+			if(l == null) {
+				double id = kf.invDepth[i];
+				// a point is initialized from its measured depth
+				if(!(id > 0)) {
+					kf.ids[i] = -1;
+					continue;
+				}
+				l = new Landmark();
+				double x = kf.obs[2*i] / id, y = kf.obs[2*i+1] / id, z = 1 / id;
+				for(int k = 0; k < 3; k++)
+					l.X[k] = kf.R[3*k] * x + kf.R[3*k+1] * y + kf.R[3*k+2] * z + kf.t[k];
+				landmarks.put(kf.ids[i], l);
+			}
+			l.frames++;
+		}
+	}
+
+	private void removeObservations(KeyFrame kf) {
+		for(int i = 0; i < kf.size; i++) {
+			if(kf.ids[i] < 0)
+				continue;
+			Landmark l = landmarks.get(kf.ids[i]);
+			if(l != null && --l.frames == 0)
+				landmarks.remove(kf.ids[i]);
+		}
+	}
+
+	/**
+	 * Levenberg-Marquardt on the poses of all but the oldest key frame and on all points
+	 * observed by at least two key frames
+	 *
+	 * @return true if the cost has been decreased
+	 */
+	private boolean optimize() {
+		active.clear();
+		for(Landmark l : landmarks.values()) {
+			l.index = l.frames >= 2 ? active.size() : -1;
+			if(l.index >= 0)
+				active.add(l);
+		}
+		if(active.isEmpty())
+			return false;
+
+		allocate(6 * (frames.size() - 1), active.size());
+
+		boolean improved = false;
+		double lambda = config.lambda;
+		double cost = evaluate(true);
+
+		for(int it = 0; it < config.iterations; it++) {
+			double next = Double.MAX_VALUE;
+			while(lambda < 1e8) {
+				if(solve(lambda)) {
+					save();
+					step();
+					next = evaluate(false);
+					if(next < cost)
+						break;
+					restore();
+				}
+				lambda *= 10;
+			}
+			if(!(next < cost))
+				break;
+
+			improved = true;
+			lambda = Math.max(1e-9, lambda * 0.1);
+			boolean converged = cost - next < 1e-6 * cost;
+			cost = evaluate(true);
+			if(converged)
+				break;
+		}
+		return improved;
+	}
+
+	/**
+	 * Computes the robust cost and optionally the normal equations
+	 */
+	private double evaluate(boolean linearize) {
+		final int nc = bc.length;
+		final int np = active.size();
+		if(linearize) {
+			Arrays.fill(hcc, 0, nc * nc, 0);
+			Arrays.fill(bc, 0, nc, 0);
+			Arrays.fill(hpp, 0, 9 * np, 0);
+			Arrays.fill(bp, 0, 3 * np, 0);
+			Arrays.fill(pointHead, 0, np, -1);
+			nobs = 0;
+		}
+
+		double cost = 0;
+		for(int f = 0; f < frames.size(); f++) {
+			KeyFrame kf = frames.get(f);
+			int cam = f - 1;
+			for(int i = 0; i < kf.size; i++) {
+				if(kf.ids[i] < 0)
+					continue;
+				Landmark l = landmarks.get(kf.ids[i]);
+				if(l == null || l.index < 0)
+					continue;
+
+				// point in the camera frame
+				double dx = l.X[0] - kf.t[0], dy = l.X[1] - kf.t[1], dz = l.X[2] - kf.t[2];
+				double[] R = kf.R;
+				xc[0] = R[0] * dx + R[3] * dy + R[6] * dz;
+				xc[1] = R[1] * dx + R[4] * dy + R[7] * dz;
+				xc[2] = R[2] * dx + R[5] * dy + R[8] * dz;
+				if(xc[2] <= 1e-3) {
+					cost += config.huber * config.huber * 4;
+					continue;
+				}
+				double iz = 1 / xc[2];
+
+				err[0] = xc[0] * iz - kf.obs[2*i];
+				err[1] = xc[1] * iz - kf.obs[2*i+1];
+				boolean depth = kf.invDepth[i] > 0;
+				err[2] = depth ? iz - kf.invDepth[i] : 0;
+
+				double wr = huber(Math.sqrt((err[0] * err[0] + err[1] * err[1]) * obsWeight));
+				double wd = depth ? huber(Math.abs(err[2]) * Math.sqrt(depthWeight)) : 0;
+				cost += cost(Math.sqrt((err[0] * err[0] + err[1] * err[1]) * obsWeight));
+				if(depth)
+					cost += cost(Math.abs(err[2]) * Math.sqrt(depthWeight));
+
+				if(!linearize)
+					continue;
+
+				int rows = depth ? 3 : 2;
+				jacobian(R, iz);
+
+				int p = l.index;
+				int o = -1;
+				if(cam >= 0) {
+					o = nobs++;
+					if(obsCam.length <= o) {
+						obsCam  = Arrays.copyOf(obsCam, o * 2);
+						obsNext = Arrays.copyOf(obsNext, o * 2);
+						w       = Arrays.copyOf(w, 18 * o * 2);
+					}
+					obsCam[o]    = cam;
+					obsNext[o]   = pointHead[p];
+					pointHead[p] = o;
+					Arrays.fill(w, 18 * o, 18 * o + 18, 0);
+				}
+
+				for(int r = 0; r < rows; r++) {
+					double wt = r < 2 ? obsWeight * wr : depthWeight * wd;
+					double e  = err[r];
+					for(int a = 0; a < 3; a++) {
+						double ja = jp[3*r+a] * wt;
+						bp[3*p+a] -= ja * e;
+						for(int b = 0; b < 3; b++)
+							hpp[9*p+3*a+b] += ja * jp[3*r+b];
+					}
+					if(cam < 0)
+						continue;
+					int c0 = 6 * cam;
+					for(int a = 0; a < 6; a++) {
+						double ja = jc[6*r+a] * wt;
+						bc[c0+a] -= ja * e;
+						for(int b = 0; b < 6; b++)
+							hcc[(c0+a) * nc + c0 + b] += ja * jc[6*r+b];
+						for(int b = 0; b < 3; b++)
+							w[18*o+3*a+b] += ja * jp[3*r+b];
+					}
+				}
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Jacobians of normalized coordinates and inverse depth with respect to the pose update
+	 * R*exp(theta), t+delta and the point
+	 */
+	private void jacobian(double[] R, double iz) {
+		double x = xc[0], y = xc[1], z = xc[2];
+		double iz2 = iz * iz;
+		// derivative of the projection with respect to the point in the camera frame
+		proj[0] = iz; proj[1] = 0;  proj[2] = -x * iz2;
+		proj[3] = 0;  proj[4] = iz; proj[5] = -y * iz2;
+		proj[6] = 0;  proj[7] = 0;  proj[8] = -iz2;
+		for(int r = 0; r < 3; r++) {
+			double p0 = proj[3*r], p1 = proj[3*r+1], p2 = proj[3*r+2];
+			// rotation: d xc / d theta = [xc]x
+			jc[6*r]   = p1 * z - p2 * y;
+			jc[6*r+1] = -p0 * z + p2 * x;
+			jc[6*r+2] = p0 * y - p1 * x;
+			// translation and point: d xc / d t = -R', d xc / d X = R'
+			for(int k = 0; k < 3; k++) {
+				double v = p0 * R[3*k] + p1 * R[3*k+1] + p2 * R[3*k+2];
+				jc[6*r+3+k] = -v;
+				jp[3*r+k]   = v;
+			}
+		}
+	}
+
+	/**
+	 * Solves the damped normal equations by eliminating the points
+	 */
+	private boolean solve(double lambda) {
+		final int nc = bc.length;
+		final int np = active.size();
+
+		for(int i = 0; i < nc * nc; i++)
+			s[i] = hcc[i];
+		for(int i = 0; i < nc; i++) {
+			s[i * nc + i] *= 1 + lambda;
+			g[i] = bc[i];
+		}
+
+		for(int p = 0; p < np; p++) {
+			if(!invert(p, lambda))
+				return false;
+			// v = W * Hpp^-1 for each observation of the point
+			for(int a = pointHead[p]; a >= 0; a = obsNext[a]) {
+				int ca = 6 * obsCam[a];
+				for(int i = 0; i < 6; i++) {
+					double v0 = 0, v1 = 0, v2 = 0;
+					for(int k = 0; k < 3; k++) {
+						double wk = w[18*a+3*i+k];
+						v0 += wk * hppInv[9*p+3*k];
+						v1 += wk * hppInv[9*p+3*k+1];
+						v2 += wk * hppInv[9*p+3*k+2];
+					}
+					g[ca+i] -= v0 * bp[3*p] + v1 * bp[3*p+1] + v2 * bp[3*p+2];
+					for(int b = pointHead[p]; b >= 0; b = obsNext[b]) {
+						int cb = 6 * obsCam[b];
+						for(int j = 0; j < 6; j++)
+							s[(ca+i) * nc + cb + j] -= v0 * w[18*b+3*j] + v1 * w[18*b+3*j+1] + v2 * w[18*b+3*j+2];
+					}
+				}
+			}
+		}
+
+		if(!cholesky(s, nc))
+			return false;
+		solveCholesky(s, nc, g, dc);
+
+		// back substitution of the points
+		for(int p = 0; p < np; p++) {
+			double r0 = bp[3*p], r1 = bp[3*p+1], r2 = bp[3*p+2];
+			for(int a = pointHead[p]; a >= 0; a = obsNext[a]) {
+				int ca = 6 * obsCam[a];
+				for(int i = 0; i < 6; i++) {
+					double d = dc[ca+i];
+					r0 -= w[18*a+3*i] * d;
+					r1 -= w[18*a+3*i+1] * d;
+					r2 -= w[18*a+3*i+2] * d;
+				}
+			}
+			for(int k = 0; k < 3; k++)
+				dp[3*p+k] = hppInv[9*p+3*k] * r0 + hppInv[9*p+3*k+1] * r1 + hppInv[9*p+3*k+2] * r2;
+		}
+		return true;
+	}
+
+	/**
+	 * Inverts the damped 3x3 block of a point
+	 */
+	private boolean invert(int p, double lambda) {
+		int o = 9 * p;
+		double a = hpp[o]   * (1 + lambda), b = hpp[o+1], c = hpp[o+2];
+		double d = hpp[o+4] * (1 + lambda), e = hpp[o+5];
+		double f = hpp[o+8] * (1 + lambda);
+
+		double A =  d * f - e * e, B = -(b * f - c * e), C = b * e - c * d;
+		double det = a * A + b * B + c * C;
+		if(!(Math.abs(det) > 1e-30))
+			return false;
+		double id = 1 / det;
+		hppInv[o]   = A * id;
+		hppInv[o+1] = hppInv[o+3] = B * id;
+		hppInv[o+2] = hppInv[o+6] = C * id;
+		hppInv[o+4] = (a * f - c * c) * id;
+		hppInv[o+5] = hppInv[o+7] = -(a * e - b * c) * id;
+		hppInv[o+8] = (a * d - b * b) * id;
+		return true;
+	}
+
+	private static boolean cholesky(double[] m, int n) {
+		for(int j = 0; j < n; j++) {
+			double sum = m[j * n + j];
+			for(int k = 0; k < j; k++)
+				sum -= m[j * n + k] * m[j * n + k];
+			if(!(sum > 0))
+				return false;
+			double l = Math.sqrt(sum);
+			m[j * n + j] = l;
+			for(int i = j + 1; i < n; i++) {
+				double v = m[i * n + j];
+				for(int k = 0; k < j; k++)
+					v -= m[i * n + k] * m[j * n + k];
+				m[i * n + j] = v / l;
+			}
+		}
+		return true;
+	}
+
+	private static void solveCholesky(double[] l, int n, double[] b, double[] x) {
+		for(int i = 0; i < n; i++) {
+			double v = b[i];
+			for(int k = 0; k < i; k++)
+				v -= l[i * n + k] * x[k];
+			x[i] = v / l[i * n + i];
+		}
+		for(int i = n - 1; i >= 0; i--) {
+			double v = x[i];
+			for(int k = i + 1; k < n; k++)
+				v -= l[k * n + i] * x[k];
+			x[i] = v / l[i * n + i];
+		}
+	}
+
+	private void step() {
+		for(int f = 1; f < frames.size(); f++) {
+			KeyFrame kf = frames.get(f);
+			int c = 6 * (f - 1);
+			rodrigues(dc[c], dc[c+1], dc[c+2], dr);
+			for(int i = 0; i < 3; i++)
+				for(int j = 0; j < 3; j++)
+					rtmp[3*i+j] = kf.R[3*i] * dr[j] + kf.R[3*i+1] * dr[3+j] + kf.R[3*i+2] * dr[6+j];
+			System.arraycopy(rtmp, 0, kf.R, 0, 9);
+			for(int i = 0; i < 3; i++)
+				kf.t[i] += dc[c+3+i];
+		}
+		for(int p = 0; p < active.size(); p++) {
+			double[] X = active.get(p).X;
+			for(int i = 0; i < 3; i++)
+				X[i] += dp[3*p+i];
+		}
+	}
+
+	private void save() {
+		for(int f = 0; f < frames.size(); f++) {
+			System.arraycopy(frames.get(f).R, 0, savedPoses, 12 * f, 9);
+			System.arraycopy(frames.get(f).t, 0, savedPoses, 12 * f + 9, 3);
+		}
+		for(int p = 0; p < active.size(); p++)
+			System.arraycopy(active.get(p).X, 0, savedPoints, 3 * p, 3);
+	}
+
+	private void restore() {
+		for(int f = 0; f < frames.size(); f++) {
+			System.arraycopy(savedPoses, 12 * f, frames.get(f).R, 0, 9);
+			System.arraycopy(savedPoses, 12 * f + 9, frames.get(f).t, 0, 3);
+		}
+		for(int p = 0; p < active.size(); p++)
+			System.arraycopy(savedPoints, 3 * p, active.get(p).X, 0, 3);
+	}
+
+	private static void rodrigues(double x, double y, double z, double[] R) {
+		double theta = Math.sqrt(x * x + y * y + z * z);
+		double a, b;
+		if(theta < 1e-8) {
+			a = 1; b = 0.5;
+		} else {
+			a = Math.sin(theta) / theta;
+			b = (1 - Math.cos(theta)) / (theta * theta);
+		}
+		R[0] = 1 - b * (y * y + z * z); R[1] = -a * z + b * x * y;    R[2] = a * y + b * x * z;
+		R[3] = a * z + b * x * y;       R[4] = 1 - b * (x * x + z * z); R[5] = -a * x + b * y * z;
+		R[6] = -a * y + b * x * z;      R[7] = a * x + b * y * z;       R[8] = 1 - b * (x * x + y * y);
+	}
+
+	private double huber(double s) {
+		return s <= config.huber ? 1 : config.huber / s;
+	}
+
+	private double cost(double s) {
+		return s <= config.huber ? s * s : 2 * config.huber * s - config.huber * config.huber;
+	}
+
+	private void allocate(int nc, int np) {
+		if(bc.length != nc) {
+			hcc = new double[nc * nc]; s = new double[nc * nc];
+			bc  = new double[nc]; g = new double[nc]; dc = new double[nc];
+		}
+		if(bp.length < 3 * np) {
+			hpp = new double[18 * np]; hppInv = new double[18 * np];
+			bp  = new double[6 * np];  dp = new double[6 * np];
+			pointHead   = new int[2 * np];
+			savedPoints = new double[6 * np];
+		}
+		if(savedPoses.length < 12 * frames.size())
+			savedPoses = new double[12 * frames.size()];
+	}
+
+	public synchronized long getOptimizationTime() {
+		return optimization_ms;
+	}
+
+	public synchronized int getOptimizations() {
+		return optimizations;
+	}
+
+	public int getWindowSize() {
+		return frames.size();
+	}
+
+	/**
+	 * Key frame passed to the bundle adjustment with the uncorrected pose of the odometry.
+	 */
+	public static class KeyFrame {
+		// camera to world, rotation row major
+		final double[] R   = new double[9];
+		final double[] t   = new double[3];
+		final double[] raw = new double[3];
+
+		public final long[]   ids;
+		// normalized image coordinates
+		public final double[] obs;
+		// inverse depth of tracks spawned in this key frame, 0 if not measured
+		public final double[] invDepth;
+		public int size = 0;
+
+		int segment;
+
+		public KeyFrame(int capacity) {
+			ids      = new long[capacity];
+			obs      = new double[2 * capacity];
+			invDepth = new double[capacity];
+		}
+
+		public void setPose(Se3_F64 cameraToWorld) {
+			for(int i = 0; i < 9; i++)
+				R[i] = cameraToWorld.R.data[i];
+			raw[0] = cameraToWorld.T.x;
+			raw[1] = cameraToWorld.T.y;
+			raw[2] = cameraToWorld.T.z;
+			System.arraycopy(raw, 0, t, 0, 3);
+		}
+
+		public void add(long id, double x, double y, double inverseDepth) {
+			ids[size] = id;
+			obs[2*size] = x;
+			obs[2*size+1] = y;
+			invDepth[size] = inverseDepth;
+			size++;
+		}
+	}
+
+	private static class Landmark {
+		final double[] X = new double[3];
+		int frames = 0;
+		int index  = -1;
+	}
+}
@@ -17,6 +17,13 @@ public interface MAVDepthVisualOdometry<Vis extends ImageBase, Depth extends Ima
 
 	public void reset(Se3_F64 initialState);
 
+	/**
+	 * Re-anchors the odometry at the given state keeping as much of its tracking state as possible.
+	 *
+	 * @return false if nothing could be kept and the odometry has been reset
+	 */
+	public boolean softReset(Se3_F64 initialState);
+
 	public boolean process(Vis visual, Depth depth, Se3_F64 currentAttitude);
 
 	public Point3D_F64 getPoint3DFromPixel(int pixelx, int pixely);
@@ -0,0 +1,675 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.interfaces.linsol.LinearSolver;
+
+import boofcv.abst.sfm.AccessPointTracks3D;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.distort.PixelTransform_F32;
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.ImageBase;
+import boofcv.struct.image.ImageType;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Depth only visual odometry for scenes without texture. The depth image is decimated to
+ * about 160 pixels width and reduced to a pyramid of vertex and normal maps. The motion to
+ * the key frame is estimated coarse to fine by Gauss-Newton on the point-to-plane distance of
+ * the current vertices to the key frame surface, associated by projection into the key frame.
+ * Normals and the normal equations are computed row-parallel on a pool of workers.
+ *
+ * The visual image is not used. The vertices of the coarsest level are provided as tracks,
+ * so detectors work as with the feature based odometry.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVOdomDepthICP<Vis extends ImageBase>
+	implements MAVDepthVisualOdometry<Vis,GrayU16>, AccessPointTracks3D {
+
+	// entries of the normal equations: upper triangle of A, b, count, valid, chi2
+	private static final int SUMS  = 30;
+	private static final int COUNT = 27;
+	private static final int VALID = 28;
+
+	private final DepthICPConfig config;
+	private final ImageType<Vis> visualType;
+	private final double qualityScale;
+	private final double cosMaxAngle;
+	private final int    levels;
+	private final int    threads;
+
+	private IntrinsicParameters intrinsic;
+	private int decimation;
+
+	// vertex and normal maps of the current and the key frame, finest level first
+	private DepthMap[] current;
+	private DepthMap[] key;
+
+	private GrayU16 depth;
+
+	// transform from key frame to world frame
+	private Se3_F64 keyToWorld = new Se3_F64();
+	// transform from the current camera view to the key frame
+	private Se3_F64 currToKey = new Se3_F64();
+	// transform from the current camera view to the world frame
+	private Se3_F64 currToWorld = new Se3_F64();
+	private Se3_F64 temp = new Se3_F64();
+
+	private boolean first = true;
+	private boolean success;
+	// the key frame maps hold the last processed frame
+	private boolean keyIsCurrent;
+	private double  quality;
+	private int     inlierCount;
+	private int     validCount;
+
+	// normal equations
+	private final double[][] sums;
+	private final DenseMatrix64F A  = new DenseMatrix64F(6,6);
+	private final DenseMatrix64F b  = new DenseMatrix64F(6,1);
+	private final DenseMatrix64F dx = new DenseMatrix64F(6,1);
+	private final LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.symmPosDef(6);
+	private final double[] dR = new double[9];
+
+	// vertices of the coarsest level provided as tracks
+	private final List<Point2D_F64> trackPixels    = new ArrayList<Point2D_F64>();
+	private final List<Point3D_F64> trackLocations = new ArrayList<Point3D_F64>();
+	private final List<Point2D_F64> pixelPool      = new ArrayList<Point2D_F64>();
+	private final List<Point3D_F64> locationPool   = new ArrayList<Point3D_F64>();
+	private int[] trackIndex = new int[0];
+
+	private ExecutorService pool;
+	private List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	/**
+	 * @param config ICP configuration
+	 * @param qualityScale Quality reported if all points are associated
+	 * @param visualType Type of visual image, which is not used
+	 */
+	public MAVOdomDepthICP(DepthICPConfig config, double qualityScale, ImageType<Vis> visualType) {
+		this.config       = config;
+		this.visualType   = visualType;
+		this.qualityScale = qualityScale;
+		this.cosMaxAngle  = Math.cos(Math.toRadians(config.maxAngle));
+		this.levels       = config.iterations.length;
+		this.threads      = Math.max(1, config.threads);
+
+		this.current = new DepthMap[levels];
+		this.key     = new DepthMap[levels];
+		for(int l = 0; l < levels; l++) {
+			current[l] = new DepthMap();
+			key[l]     = new DepthMap();
+		}
+
+		this.sums = new double[threads][SUMS];
+
+		if(threads > 1) {
+			pool = Executors.newFixedThreadPool(threads - 1, r -> {
+				Thread t = new Thread(r, "ICP worker");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	@Override
+	public void setCalibration(IntrinsicParameters paramVisual, PixelTransform_F32 visToDepth) {
+		this.intrinsic  = paramVisual;
+		this.decimation = Math.max(1, Math.round(paramVisual.width / (float)config.width));
+	}
+
+	@Override
+	public boolean process(Vis visual, GrayU16 depth, Se3_F64 state) {
+		setRotation(state);
+		return process(visual, depth);
+	}
+
+	@Override
+	public boolean process(Vis visual, GrayU16 depth) {
+		if(intrinsic == null)
+			throw new IllegalArgumentException("Calibration has not been set");
+
+		this.depth = depth;
+		buildMaps(depth, current);
+
+		if(first) {
+			first = false;
+			swapKeyFrame();
+			keyIsCurrent = true;
+			quality = qualityScale;
+			success = true;
+			updateTracks();
+			return true;
+		}
+
+		keyIsCurrent = false;
+		success = align();
+		if(!success)
+			return false;
+
+		// continue with a new key frame if the overlap gets small or the key frame is far away
+		double ratio = inlierCount / Math.max(1.0, validCount);
+		if(ratio < config.keyframeRatio || currToKey.T.norm() > config.keyframeDistance) {
+			concatMotion();
+			swapKeyFrame();
+			keyIsCurrent = true;
+		}
+
+		updateTracks();
+		return true;
+	}
+
+	/**
+	 * Estimates currToKey coarse to fine, starting with the motion of the last frame.
+	 *
+	 * @return true if the final motion is supported by enough points
+	 */
+	private boolean align() {
+		for(int l = levels - 1; l >= 0; l--) {
+			for(int i = 0; i < config.iterations[l]; i++) {
+				double[] s = accumulate(l);
+				if(s[COUNT] < 12)
+					return false;
+				if(!solve(s))
+					return false;
+				if(dx.data[0]*dx.data[0] + dx.data[1]*dx.data[1] + dx.data[2]*dx.data[2] < 1e-12 &&
+				   dx.data[3]*dx.data[3] + dx.data[4]*dx.data[4] + dx.data[5]*dx.data[5] < 1e-12)
+					break;
+			}
+		}
+
+		double[] s = accumulate(0);
+		inlierCount = (int)s[COUNT];
+		validCount  = (int)s[VALID];
+		double ratio = s[COUNT] / Math.max(1.0, s[VALID]);
+		if(inlierCount < config.minInliers || ratio < config.minInlierRatio)
+			return false;
+
+		quality = ratio * qualityScale;
+		return true;
+	}
+
+	/**
+	 * Solves the normal equations and applies the increment to currToKey from the left
+	 */
+	private boolean solve(double[] s) {
+		int k = 0;
+		for(int i = 0; i < 6; i++) {
+			for(int j = i; j < 6; j++) {
+				A.unsafe_set(i, j, s[k]);
+				A.unsafe_set(j, i, s[k]);
+				k++;
+			}
+		}
+		for(int i = 0; i < 6; i++)
+			b.data[i] = -s[21 + i];
+
+		if(!solver.setA(A))
+			return false;
+		solver.solve(b, dx);
+
+		rodrigues(dx.data[0], dx.data[1], dx.data[2], dR);
+
+		double[] R = currToKey.R.data;
+		double r0, r1, r2;
+		for(int c = 0; c < 3; c++) {
+			r0 = R[c]; r1 = R[3 + c]; r2 = R[6 + c];
+			R[c]     = dR[0]*r0 + dR[1]*r1 + dR[2]*r2;
+			R[3 + c] = dR[3]*r0 + dR[4]*r1 + dR[5]*r2;
+			R[6 + c] = dR[6]*r0 + dR[7]*r1 + dR[8]*r2;
+		}
+		double tx = currToKey.T.x, ty = currToKey.T.y, tz = currToKey.T.z;
+		currToKey.T.x = dR[0]*tx + dR[1]*ty + dR[2]*tz + dx.data[3];
+		currToKey.T.y = dR[3]*tx + dR[4]*ty + dR[5]*tz + dx.data[4];
+		currToKey.T.z = dR[6]*tx + dR[7]*ty + dR[8]*tz + dx.data[5];
+		return true;
+	}
+
+	private static void rodrigues(double wx, double wy, double wz, double[] R) {
+		double theta = Math.sqrt(wx*wx + wy*wy + wz*wz);
+		double a, c;
+		if(theta < 1e-10) {
+			a = 1; c = 0.5;
+		} else {
+			a = Math.sin(theta) / theta;
+			c = (1 - Math.cos(theta)) / (theta * theta);
+		}
+		R[0] = 1 - c*(wy*wy + wz*wz); R[1] = -a*wz + c*wx*wy;        R[2] =  a*wy + c*wx*wz;
+		R[3] =  a*wz + c*wx*wy;       R[4] = 1 - c*(wx*wx + wz*wz);  R[5] = -a*wx + c*wy*wz;
+		R[6] = -a*wy + c*wx*wz;       R[7] =  a*wx + c*wy*wz;        R[8] = 1 - c*(wx*wx + wy*wy);
+	}
+
+	/**
+	 * Associates the current vertices of a level with the key frame and accumulates the
+	 * normal equations of the point-to-plane error row-parallel.
+	 *
+	 * @return sums of all workers
+	 */
+	private double[] accumulate(int level) {
+		final DepthMap c = current[level];
+		final DepthMap k = key[level];
+
+		final double[] R = currToKey.R.data;
+		final double tx = currToKey.T.x, ty = currToKey.T.y, tz = currToKey.T.z;
+		final double maxDist2 = config.maxDistance * config.maxDistance;
+		final double huber = config.huber;
+
+		runWorkers(w -> {
+			double[] s = sums[w];
+			for(int i = 0; i < SUMS; i++)
+				s[i] = 0;
+
+			for(int v = w; v < c.height; v += threads) {
+				for(int u = 0, i = v * c.width; u < c.width; u++, i++) {
+					if(c.vz[i] == 0 || Float.isNaN(c.nx[i]))
+						continue;
+					s[VALID]++;
+
+					double px = c.vx[i], py = c.vy[i], pz = c.vz[i];
+					double qx = R[0]*px + R[1]*py + R[2]*pz + tx;
+					double qy = R[3]*px + R[4]*py + R[5]*pz + ty;
+					double qz = R[6]*px + R[7]*py + R[8]*pz + tz;
+					if(qz <= 0)
+						continue;
+
+					// projective association
+					int ku = (int)(k.fx * qx / qz + k.cx + 0.5);
+					int kv = (int)(k.fy * qy / qz + k.cy + 0.5);
+					if(ku < 0 || kv < 0 || ku >= k.width || kv >= k.height)
+						continue;
+					int j = kv * k.width + ku;
+					if(k.vz[j] == 0 || Float.isNaN(k.nx[j]))
+						continue;
+
+					double ex = qx - k.vx[j], ey = qy - k.vy[j], ez = qz - k.vz[j];
+					if(ex*ex + ey*ey + ez*ez > maxDist2)
+						continue;
+
+					double nx = k.nx[j], ny = k.ny[j], nz = k.nz[j];
+					double cnx = c.nx[i], cny = c.ny[i], cnz = c.nz[i];
+					double dot = nx * (R[0]*cnx + R[1]*cny + R[2]*cnz)
+							   + ny * (R[3]*cnx + R[4]*cny + R[5]*cnz)
+							   + nz * (R[6]*cnx + R[7]*cny + R[8]*cnz);
+					if(dot < cosMaxAngle)
+						continue;
+
+					double r = nx*ex + ny*ey + nz*ez;
+					double weight = Math.abs(r) <= huber ? 1 : huber / Math.abs(r);
+
+					// jacobian of the residual: rotation q x n, translation n
+					double j0 = qy*nz - qz*ny, j1 = qz*nx - qx*nz, j2 = qx*ny - qy*nx;
+					double j3 = nx, j4 = ny, j5 = nz;
+
+					double wj0 = weight*j0, wj1 = weight*j1, wj2 = weight*j2;
+					double wj3 = weight*j3, wj4 = weight*j4, wj5 = weight*j5;
+
+					s[0]  += wj0*j0; s[1]  += wj0*j1; s[2]  += wj0*j2; s[3]  += wj0*j3; s[4]  += wj0*j4; s[5]  += wj0*j5;
+					s[6]  += wj1*j1; s[7]  += wj1*j2; s[8]  += wj1*j3; s[9]  += wj1*j4; s[10] += wj1*j5;
+					s[11] += wj2*j2; s[12] += wj2*j3; s[13] += wj2*j4; s[14] += wj2*j5;
+					s[15] += wj3*j3; s[16] += wj3*j4; s[17] += wj3*j5;
+					s[18] += wj4*j4; s[19] += wj4*j5;
+					s[20] += wj5*j5;
+
+					s[21] += wj0*r; s[22] += wj1*r; s[23] += wj2*r;
+					s[24] += wj3*r; s[25] += wj4*r; s[26] += wj5*r;
+
+					s[COUNT]++;
+					s[29] += weight*r*r;
+				}
+			}
+		});
+
+		// reduce in a fixed order
+		double[] s = sums[0];
+		for(int w = 1; w < threads; w++) {
+			for(int i = 0; i < SUMS; i++)
+				s[i] += sums[w][i];
+		}
+		return s;
+	}
+
+	/**
+	 * Decimates the depth image into the finest level, builds the coarser levels and
+	 * computes the vertex and normal maps of all levels.
+	 */
+	private void buildMaps(GrayU16 image, DepthMap[] maps) {
+		final float scale   = (float)config.depthScale;
+		final float maxDepth = (float)config.maxDepth;
+		final float jump    = (float)config.depthJump;
+
+		for(int l = 0; l < levels; l++) {
+			int s = decimation << l;
+			DepthMap m = maps[l];
+			m.reshape(image.width / s, image.height / s);
+			m.fx = intrinsic.fx / s;
+			m.fy = intrinsic.fy / s;
+			m.cx = (intrinsic.cx + 0.5) / s - 0.5;
+			m.cy = (intrinsic.cy + 0.5) / s - 0.5;
+		}
+
+		// finest level from the depth image
+		final DepthMap m0 = maps[0];
+		final int d = decimation;
+		runWorkers(w -> {
+			for(int v = w; v < m0.height; v += threads) {
+				for(int u = 0; u < m0.width; u++) {
+					float ref = 0, sum = 0; int n = 0;
+					for(int y = v * d; y < (v + 1) * d; y++) {
+						int index = image.startIndex + y * image.stride + u * d;
+						for(int x = 0; x < d; x++) {
+							float z = (image.data[index + x] & 0xFFFF) * scale;
+							if(z <= 0 || z > maxDepth)
+								continue;
+							if(n == 0)
+								ref = z;
+							else if(Math.abs(z - ref) > jump * ref)
+								continue;
+							sum += z; n++;
+						}
+					}
+					m0.depth[v * m0.width + u] = n > 0 ? sum / n : 0;
+				}
+			}
+		});
+
+		// coarser levels by 2x2 reduction
+		for(int l = 1; l < levels; l++) {
+			final DepthMap f = maps[l - 1];
+			final DepthMap m = maps[l];
+			runWorkers(w -> {
+				for(int v = w; v < m.height; v += threads) {
+					for(int u = 0; u < m.width; u++) {
+						float ref = 0, sum = 0; int n = 0;
+						for(int y = 2 * v; y < 2 * v + 2; y++) {
+							for(int x = 2 * u; x < 2 * u + 2; x++) {
+								float z = f.depth[y * f.width + x];
+								if(z == 0)
+									continue;
+								if(n == 0)
+									ref = z;
+								else if(Math.abs(z - ref) > jump * ref)
+									continue;
+								sum += z; n++;
+							}
+						}
+						m.depth[v * m.width + u] = n > 0 ? sum / n : 0;
+					}
+				}
+			});
+		}
+
+		for(int l = 0; l < levels; l++) {
+			final DepthMap m = maps[l];
+
+			runWorkers(w -> {
+				for(int v = w; v < m.height; v += threads) {
+					for(int u = 0, i = v * m.width; u < m.width; u++, i++) {
+						float z = m.depth[i];
+						m.vz[i] = z;
+						m.vx[i] = (float)((u - m.cx) * z / m.fx);
+						m.vy[i] = (float)((v - m.cy) * z / m.fy);
+					}
+				}
+			});
+
+			// normals from the right and lower neighbour, pointing towards the camera
+			runWorkers(w -> {
+				for(int v = w; v < m.height; v += threads) {
+					for(int u = 0, i = v * m.width; u < m.width; u++, i++) {
+						m.nx[i] = Float.NaN;
+						if(u + 1 >= m.width || v + 1 >= m.height)
+							continue;
+						int r = i + 1, b = i + m.width;
+						float z = m.vz[i];
+						if(z == 0 || m.vz[r] == 0 || m.vz[b] == 0)
+							continue;
+						if(Math.abs(m.vz[r] - z) > jump * z || Math.abs(m.vz[b] - z) > jump * z)
+							continue;
+
+						float ax = m.vx[r] - m.vx[i], ay = m.vy[r] - m.vy[i], az = m.vz[r] - z;
+						float bx = m.vx[b] - m.vx[i], by = m.vy[b] - m.vy[i], bz = m.vz[b] - z;
+						float nx = ay*bz - az*by, ny = az*bx - ax*bz, nz = ax*by - ay*bx;
+						float norm = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+						if(norm == 0)
+							continue;
+						if(nx*m.vx[i] + ny*m.vy[i] + nz*z > 0)
+							norm = -norm;
+						m.nx[i] = nx / norm; m.ny[i] = ny / norm; m.nz[i] = nz / norm;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Provides the valid vertices of the coarsest level of the current frame as tracks
+	 */
+	private void updateTracks() {
+		DepthMap m = current[levels - 1];
+		int s = decimation << (levels - 1);
+
+		trackPixels.clear();
+		trackLocations.clear();
+		if(trackIndex.length < m.width * m.height)
+			trackIndex = new int[m.width * m.height];
+
+		for(int i = 0; i < m.width * m.height; i++) {
+			if(m.vz[i] == 0)
+				continue;
+			int n = trackPixels.size();
+			if(n == pixelPool.size()) {
+				pixelPool.add(new Point2D_F64());
+				locationPool.add(new Point3D_F64());
+			}
+			Point2D_F64 p = pixelPool.get(n);
+			p.set(((i % m.width) + 0.5) * s - 0.5, ((i / m.width) + 0.5) * s - 0.5);
+			Point3D_F64 X = locationPool.get(n);
+			X.set(m.vx[i], m.vy[i], m.vz[i]);
+			trackIndex[n] = i;
+			trackPixels.add(p);
+			trackLocations.add(X);
+		}
+	}
+
+	private void swapKeyFrame() {
+		DepthMap[] t = key;
+		key = current;
+		current = t;
+	}
+
+	private void concatMotion() {
+		currToKey.concat(keyToWorld, temp);
+		keyToWorld.set(temp);
+		currToKey.reset();
+	}
+
+	public void setRotation(Se3_F64 state) {
+		keyToWorld.R.set(state.R);
+	}
+
+	/**
+	 * Runs the task for each worker. Worker 0 runs on the calling thread.
+	 */
+	private void runWorkers(WorkerTask task) {
+		pending.clear();
+		for( int w = 1; w < threads; w++ ) {
+			final int worker = w;
+			pending.add(pool.submit(() -> task.run(worker)));
+		}
+		task.run(0);
+		for( Future<?> f : pending ) {
+			try {
+				f.get();
+			} catch (Exception e) {
+				throw new RuntimeException("ICP worker failed: "+e.getMessage(), e);
+			}
+		}
+	}
+
+	@Override
+	public Point3D_F64 getPoint3DFromPixel(int pixelx, int pixely) {
+		if(depth == null || !depth.isInBounds(pixelx, pixely))
+			return null;
+		double z = depth.get(pixelx, pixely) * config.depthScale;
+		if(z <= 0)
+			return null;
+		return new Point3D_F64((pixelx - intrinsic.cx) * z / intrinsic.fx, (pixely - intrinsic.cy) * z / intrinsic.fy, z);
+	}
+
+	@Override
+	public Point3D_F64 getTrackLocation(int index) {
+		return trackLocations.get(index);
+	}
+
+	@Override
+	public long getTrackId(int index) {
+		return trackIndex[index];
+	}
+
+	@Override
+	public List<Point2D_F64> getAllTracks() {
+		return trackPixels;
+	}
+
+	@Override
+	public boolean isInlier(int index) {
+		return true;
+	}
+
+	@Override
+	public boolean isNew(int index) {
+		return false;
+	}
+
+	@Override
+	public int getInlierCount() {
+		return inlierCount;
+	}
+
+	@Override
+	public double getQuality() {
+		return quality;
+	}
+
+	@Override
+	public void reset() {
+		reset(new Se3_F64());
+	}
+
+	@Override
+	public void reset(Se3_F64 initialState) {
+		keyToWorld.set(initialState);
+		currToKey.reset();
+		first = true;
+		quality = 0;
+		inlierCount = 0;
+	}
+
+	/**
+	 * Makes the last successfully aligned frame the key frame and re-anchors it at the given state.
+	 */
+	@Override
+	public boolean softReset(Se3_F64 initialState) {
+		if(first || !success) {
+			reset(initialState);
+			return false;
+		}
+		if(!keyIsCurrent) {
+			swapKeyFrame();
+			keyIsCurrent = true;
+		}
+		keyToWorld.set(initialState);
+		currToKey.reset();
+		return true;
+	}
+
+	@Override
+	public boolean isFault() {
+		return !success;
+	}
+
+	@Override
+	public Se3_F64 getCameraToWorld() {
+		currToKey.concat(keyToWorld, currToWorld);
+		return currToWorld;
+	}
+
+	@Override
+	public ImageType<Vis> getVisualType() {
+		return visualType;
+	}
+
+	@Override
+	public Class<GrayU16> getDepthType() {
+		return GrayU16.class;
+	}
+
+	private interface WorkerTask {
+		void run(int worker);
+	}
+
+	private static class DepthMap {
+		int width, height;
+		double fx, fy, cx, cy;
+
+		// depth in meters, 0 if invalid
+		float[] depth = new float[0];
+		// vertices, vz is 0 if invalid
+		float[] vx = new float[0], vy = new float[0], vz = new float[0];
+		// normals, nx is NaN if invalid
+		float[] nx = new float[0], ny = new float[0], nz = new float[0];
+
+		void reshape(int width, int height) {
+			this.width  = width;
+			this.height = height;
+			int n = width * height;
+			if(depth.length < n) {
+				depth = new float[n];
+				vx = new float[n]; vy = new float[n]; vz = new float[n];
+				nx = new float[n]; ny = new float[n]; nz = new float[n];
+			}
+		}
+	}
+}
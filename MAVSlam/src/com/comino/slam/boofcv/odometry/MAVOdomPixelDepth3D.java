@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2011-2015, Peter Abeles, Eike Mansfeld. All Rights Reserved.
+ *
+ * This file is part of BoofCV (http://boofcv.org).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ddogleg.fitting.modelset.DistanceFromModel;
+import org.ddogleg.fitting.modelset.ModelGenerator;
+import org.ddogleg.fitting.modelset.ModelMatcher;
+
+import boofcv.abst.feature.tracker.PointTrack;
+import boofcv.abst.feature.tracker.PointTracker;
+import boofcv.abst.feature.tracker.PointTrackerTwoPass;
+import boofcv.abst.sfm.ImagePixelTo3D;
+import boofcv.struct.distort.PointTransform_F64;
+import boofcv.struct.image.ImageBase;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+import georegression.transform.se.SePointOps_F64;
+
+/**
+ * Full 6-DOF visual odometry which measures the depth of every active track in each frame
+ * and estimates the motion by aligning the key frame locations of the tracks with their
+ * current locations. Hypotheses are generated by a closed form 3D-3D rigid alignment
+ * inside RANSAC, inliers are determined by their reprojection error, and the final motion
+ * is the closed form alignment of all inliers, optionally iterated with the inliers of the
+ * fitted motion. No non-linear refinement is needed.
+ *
+ * When the key frame changes, the key frame locations of tracks measured in the current frame
+ * are replaced by the fresh measurement instead of transforming the stale one.
+ *
+ * Same track management as {@link MAVOdomPixelDepthPnP}.
+ *
+ * @author Peter Abeles, modified by Eike Mansfeld
+ */
+public class MAVOdomPixelDepth3D<T extends ImageBase> {
+
+	// when the inlier set is less than this number new features are detected
+	private int thresholdAdd;
+
+	// discard tracks after they have not been in the inlier set for this many
+	// updates in a row
+	private int thresholdRetire;
+
+	// run the tracker once or twice?
+	private boolean doublePass;
+
+	// tracks features in the image
+	private PointTrackerTwoPass<T> tracker;
+	// used to measure a feature's 3D position from image range data
+	private ImagePixelTo3D pixelTo3D;
+	// converts from pixel to normalized image coordinates
+	private PointTransform_F64 pixelToNorm;
+	// convert from normalized image coordinates to pixel
+	private PointTransform_F64 normToPixel;
+
+	// robust estimate of the motion from key frame to current frame
+	private ModelMatcher<Se3_F64, Point3D3DTrack> motionEstimator;
+	// least squares fit of the motion to all inliers
+	private ModelGenerator<Se3_F64, Point3D3DTrack> motionFit;
+	// reprojection error used to select the inliers of the fit
+	private DistanceFromModel<Se3_F64, Point3D3DTrack> distance;
+	// maximum error of an inlier
+	private double inlierTol;
+	// number of times the inliers are selected again and fitted
+	private int refitIterations;
+
+	// tracks with a depth measurement in the current frame
+	private List<Point3D3DTrack> observations = new ArrayList<Point3D3DTrack>();
+
+	// location of tracks in the image that are included in the inlier set
+	private List<Point3D3DTrack> inlierTracks = new ArrayList<Point3D3DTrack>();
+	private List<Point3D3DTrack> refitTracks  = new ArrayList<Point3D3DTrack>();
+
+	// transform from key frame to world frame
+	private Se3_F64 keyToWorld = new Se3_F64();
+	// transform from the current camera view to the key frame
+	private Se3_F64 currToKey = new Se3_F64();
+	// transform from the current camera view to the world frame
+	private Se3_F64 currToWorld = new Se3_F64();
+
+	// is this the first camera view being processed?
+	private boolean first = true;
+	// has the tracking of the last frame been completed?
+	private boolean tracked = false;
+	// number of frames processed.
+	private long tick;
+
+	// used when concating motion
+	private Se3_F64 temp = new Se3_F64();
+	private Se3_F64 keyToCurr = new Se3_F64();
+	private Se3_F64 fitted = new Se3_F64();
+
+	private double quality = 0;
+
+
+	/**
+	 * Configures magic numbers and estimation algorithms.
+	 *
+	 * @param thresholdAdd
+	 *            Add new tracks when less than this number are in the inlier
+	 *            set. Tracker dependent. Set to a value &le; 0 to add features
+	 *            every frame.
+	 * @param thresholdRetire
+	 *            Discard a track if it is not in the inlier set after this many
+	 *            updates. Try 2
+	 * @param doublePass
+	 *            Associate image features a second time using the estimated
+	 *            model from the first try to improve results
+	 * @param motionEstimator
+	 *            Robust 3D-3D motion estimator.
+	 * @param motionFit
+	 *            Closed form 3D-3D motion used to fit all inliers.
+	 * @param distance
+	 *            Error used to select inliers after the fit.
+	 * @param inlierTol
+	 *            Maximum error of an inlier
+	 * @param refitIterations
+	 *            Number of times inliers are selected by the fitted motion and fitted again.
+	 * @param pixelTo3D
+	 *            Computes the 3D location of pixels.
+	 * @param tracker
+	 *            Point feature tracker.
+	 * @param pixelToNorm
+	 *            Converts from raw image pixels into normalized image
+	 *            coordinates.
+	 * @param normToPixel
+	 *            Converts from normalized image coordinates into raw pixels
+	 */
+	public MAVOdomPixelDepth3D(int thresholdAdd, int thresholdRetire, boolean doublePass,
+			ModelMatcher<Se3_F64, Point3D3DTrack> motionEstimator, ModelGenerator<Se3_F64, Point3D3DTrack> motionFit,
+			DistanceFromModel<Se3_F64, Point3D3DTrack> distance, double inlierTol, int refitIterations,
+			ImagePixelTo3D pixelTo3D, PointTrackerTwoPass<T> tracker,
+			PointTransform_F64 pixelToNorm, PointTransform_F64 normToPixel) {
+		this.thresholdAdd = thresholdAdd;
+		this.thresholdRetire = thresholdRetire;
+		this.doublePass = doublePass;
+		this.motionEstimator = motionEstimator;
+		this.motionFit = motionFit;
+		this.distance = distance;
+		this.inlierTol = inlierTol;
+		this.refitIterations = refitIterations;
+		this.pixelTo3D = pixelTo3D;
+		this.tracker = tracker;
+		this.pixelToNorm = pixelToNorm;
+		this.normToPixel = normToPixel;
+	}
+
+	/**
+	 * Estimates the motion given the left camera image. The depth image of the same
+	 * frame must be passed to ImagePixelTo3D before invoking this function.
+	 *
+	 * @param image
+	 *            Camera image.
+	 * @return true if successful or false if it failed
+	 */
+	public boolean process(T image) {
+		tracker.process(image);
+
+		tick++;
+		inlierTracks.clear();
+		tracked = false;
+
+		if (first) {
+			addNewTracks();
+			first = false;
+		} else {
+			if (!estimateMotion()) {
+				return false;
+			}
+			tracked = true;
+
+			dropUnusedTracks();
+			int N = inlierTracks.size();
+
+			if (thresholdAdd <= 0 || N < thresholdAdd) {
+				changePoseToReference();
+				addNewTracks();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Makes the current frame the key frame. Tracks measured in this frame take the
+	 * measurement as key frame location, all others are transformed.
+	 */
+	private void changePoseToReference() {
+		currToKey.invert(keyToCurr);
+
+		List<PointTrack> all = tracker.getAllTracks(null);
+
+		for (PointTrack t : all) {
+			Point3D3DTrack p = t.getCookie();
+			if (p.lastMeasured == tick)
+				p.location.set(p.current);
+			else
+				SePointOps_F64.transform(keyToCurr, p.location, p.location);
+		}
+
+		concatMotion();
+	}
+
+	/**
+	 * Removes tracks which have not been included in the inlier set recently
+	 *
+	 * @return Number of dropped tracks
+	 */
+	private int dropUnusedTracks() {
+
+		List<PointTrack> all = tracker.getAllTracks(null);
+		int num = 0;
+
+		for (PointTrack t : all) {
+			Point3D3DTrack p = t.getCookie();
+			if (tick - p.lastInlier > thresholdRetire) {
+				tracker.dropTrack(t);
+				num++;
+			}
+		}
+
+		return num;
+	}
+
+	/**
+	 * Detects new features and measures their 3D coordinates
+	 */
+	private void addNewTracks() {
+
+		tracker.spawnTracks();
+		try {
+			List<PointTrack> spawned = tracker.getNewTracks(null);
+
+			for (PointTrack t : spawned) {
+				Point3D3DTrack p = t.getCookie();
+				if (p == null) {
+					t.cookie = p = new Point3D3DTrack();
+				}
+
+				// discard point if it can't localized
+				if (!measure(t, p)) {
+					tracker.dropTrack(t);
+				} else {
+					// translate the point into the key frame
+					SePointOps_F64.transform(currToKey, p.current, p.location);
+					p.lastInlier = tick;
+				}
+			}
+		} catch(Exception e) {
+			System.err.println("Add new tracks: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Measures the location of the track in the current frame
+	 *
+	 * @return true if the depth is known at the track's pixel
+	 */
+	private boolean measure(PointTrack t, Point3D3DTrack p) {
+		pixelToNorm.compute(t.x, t.y, p.observation);
+		if (!pixelTo3D.process(t.x, t.y) || pixelTo3D.getW() == 0)
+			return false;
+		p.current.set(pixelTo3D.getX(), pixelTo3D.getY(), pixelTo3D.getZ());
+		p.lastMeasured = tick;
+		return true;
+	}
+
+	/**
+	 * Collects the active tracks with a depth measurement in this frame
+	 */
+	private void measureTracks() {
+		observations.clear();
+		List<PointTrack> active = tracker.getActiveTracks(null);
+		for (PointTrack t : active) {
+			Point3D3DTrack p = t.getCookie();
+			if (measure(t, p))
+				observations.add(p);
+		}
+	}
+
+	/**
+	 * Estimates motion from the key frame and the current locations of the tracks
+	 *
+	 * @return true if successful.
+	 */
+	private boolean estimateMotion() {
+		measureTracks();
+
+		if (!motionEstimator.process(observations))
+			return false;
+
+		this.quality = motionEstimator.getFitQuality();
+
+		if (doublePass) {
+			if (!performSecondPass())
+				return false;
+		}
+		tracker.finishTracking();
+
+		keyToCurr.set(motionEstimator.getModelParameters());
+		inlierTracks.addAll(motionEstimator.getMatchSet());
+
+		// closed form fit to all inliers, the fitted motion usually has more inliers
+		for (int i = 0; i < refitIterations; i++) {
+			if (!motionFit.generate(inlierTracks, fitted))
+				break;
+
+			distance.setModel(fitted);
+			refitTracks.clear();
+			for (Point3D3DTrack p : observations) {
+				if (distance.computeDistance(p) <= inlierTol)
+					refitTracks.add(p);
+			}
+			if (refitTracks.size() < motionFit.getMinimumPoints())
+				break;
+
+			keyToCurr.set(fitted);
+			List<Point3D3DTrack> swap = inlierTracks;
+			inlierTracks = refitTracks;
+			refitTracks = swap;
+		}
+
+		keyToCurr.invert(currToKey);
+
+		// mark tracks as being inliers
+		for (int i = 0; i < inlierTracks.size(); i++)
+			inlierTracks.get(i).lastInlier = tick;
+
+		return true;
+	}
+
+	private boolean performSecondPass() {
+		Se3_F64 keyToCurr = motionEstimator.getModelParameters();
+
+		Point3D_F64 cameraPt = new Point3D_F64();
+		Point2D_F64 predicted = new Point2D_F64();
+
+		// predict where each track should be given the just estimated motion
+		List<PointTrack> all = tracker.getAllTracks(null);
+		for (PointTrack t : all) {
+			Point3D3DTrack p = t.getCookie();
+
+			SePointOps_F64.transform(keyToCurr, p.location, cameraPt);
+			normToPixel.compute(cameraPt.x / cameraPt.z, cameraPt.y / cameraPt.z, predicted);
+			tracker.setHint(predicted.x, predicted.y, t);
+		}
+
+		// redo tracking with the additional information
+		tracker.performSecondPass();
+
+		measureTracks();
+
+		return motionEstimator.process(observations);
+	}
+
+	//MSP
+	public Point3D3DTrack getObservation(int index) {
+		List<PointTrack> active = tracker.getActiveTracks(null);
+		return active.get(index).getCookie();
+	}
+
+	// MSP
+	public double getQuality() {
+		return this.quality;
+	}
+
+	private void concatMotion() {
+		currToKey.concat(keyToWorld, temp);
+		keyToWorld.set(temp);
+		currToKey.reset();
+	}
+
+	public Se3_F64 getCurrToWorld() {
+		currToKey.concat(keyToWorld, currToWorld);
+		return currToWorld;
+	}
+
+	/**
+	 * Resets the algorithm into its original state
+	 */
+	public void reset() {
+		tracker.reset();
+		keyToWorld.reset();
+		currToKey.reset();
+		first = true;
+		tick = 0;
+	}
+
+	public void reset(Se3_F64 initialState) {
+		tracker.reset();
+		keyToWorld.set(initialState);
+		currToKey.reset();
+		first = true;
+		tick = 0;
+	}
+
+	/**
+	 * Re-anchors the odometry at the given state and makes the current frame the key frame
+	 * without discarding the tracks. Tracks measured in the current frame take the measurement
+	 * as key frame location, all others are dropped. If the last frame has not been tracked
+	 * successfully, the odometry is reset.
+	 *
+	 * @param initialState
+	 *            New transform from the current frame to the world frame
+	 * @return true if tracks have been kept
+	 */
+	public boolean softReset(Se3_F64 initialState) {
+		if (first || !tracked) {
+			reset(initialState);
+			return false;
+		}
+
+		keyToWorld.set(initialState);
+		currToKey.reset();
+
+		for (PointTrack t : tracker.getAllTracks(null)) {
+			Point3D3DTrack p = t.getCookie();
+			if (p.lastMeasured != tick) {
+				tracker.dropTrack(t);
+				continue;
+			}
+			p.location.set(p.current);
+			p.lastInlier = tick;
+		}
+
+		if (tracker.getActiveTracks(null).size() < thresholdAdd)
+			addNewTracks();
+
+		if (tracker.getActiveTracks(null).isEmpty()) {
+			reset(initialState);
+			return false;
+		}
+		return true;
+	}
+
+	public void setRotation(Se3_F64 state) {
+		keyToWorld.R.set(state.R);
+	}
+
+	public PointTracker<T> getTracker() {
+		return tracker;
+	}
+
+	public ModelMatcher<Se3_F64, Point3D3DTrack> getMotionEstimator() {
+		return motionEstimator;
+	}
+
+	public List<Point3D3DTrack> getInlierTracks() {
+		return inlierTracks;
+	}
+
+	public void setPixelToNorm(PointTransform_F64 pixelToNorm) {
+		this.pixelToNorm = pixelToNorm;
+	}
+
+	public void setNormToPixel(PointTransform_F64 normToPixel) {
+		this.normToPixel = normToPixel;
+	}
+
+	public long getTick() {
+		return tick;
+	}
+}
@@ -40,7 +40,6 @@ import georegression.geometry.GeometryMath_F64;
 import georegression.struct.EulerType;
 import georegression.struct.point.Point2D_F64;
 import georegression.struct.point.Point3D_F64;
-import georegression.struct.point.Vector3D_F64;
 import georegression.struct.se.Se3_F64;
 import georegression.transform.se.SePointOps_F64;
 
@@ -106,16 +105,26 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 
 	// is this the first camera view being processed?
 	private boolean first = true;
+	// has the tracking of the last frame been completed?
+	private boolean tracked = false;
 	// number of frames processed.
 	private long tick;
 
 	// used when concating motion
 	private Se3_F64 temp = new Se3_F64();
+	// refined motion from key frame to current frame
+	private Se3_F64 refined = new Se3_F64();
 
 	private Point3D_F64 lastTrackAdded = new Point3D_F64();
 
 	private double quality = 0;
 
+	// standard deviation of the depth at 1m, the depth error grows quadratically with the range
+	private double depthNoise = 0;
+
+	// optional bundle adjustment of the key frames, its correction is not applied to keyToWorld
+	private LocalBundleAdjustment bundleAdjustment = null;
+
 
 	/**
 	 * Configures magic numbers and estimation algorithms.
@@ -175,14 +184,17 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 
 		tick++;
 		inlierTracks.clear();
+		tracked = false;
 
 		if (first) {
 			addNewTracks();
+			addBundleKeyFrame(false);
 			first = false;
 		} else {
 			if (!estimateMotion()) {
 				return false;
 			}
+			tracked = true;
 
 			dropUnusedTracks();
 			int N = motionEstimator.getMatchSet().size();
@@ -190,6 +202,7 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 			if (thresholdAdd <= 0 || N < thresholdAdd) {
 				changePoseToReference();
 				addNewTracks();
+				addBundleKeyFrame(false);
 			}
 
 			// System.out.println(" num inliers = "+N+" num dropped
@@ -217,6 +230,45 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 		concatMotion();
 	}
 
+	/**
+	 * Passes the key frame with its inlier tracks to the bundle adjustment. Tracks spawned in the
+	 * key frame carry their measured depth.
+	 *
+	 * @param measured true if the depth of all tracks has been measured in the key frame
+	 */
+	private void addBundleKeyFrame(boolean measured) {
+		if (bundleAdjustment == null)
+			return;
+
+		List<PointTrack> active = tracker.getActiveTracks(null);
+		List<PointTrack> spawned = tracker.getNewTracks(null);
+
+		LocalBundleAdjustment.KeyFrame kf = new LocalBundleAdjustment.KeyFrame(active.size());
+		kf.setPose(keyToWorld);
+
+		// feature ids are increasing, spawned tracks have the highest ones
+		long firstSpawned = Long.MAX_VALUE;
+		for (PointTrack t : spawned) {
+			Point2D3DTrack p = t.getCookie();
+			if (p == null || p.lastInlier != tick)
+				continue;
+			firstSpawned = Math.min(firstSpawned, t.featureId);
+			kf.add(t.featureId, p.observation.x, p.observation.y, 1.0 / p.location.z);
+		}
+		for (PointTrack t : active) {
+			Point2D3DTrack p = t.getCookie();
+			if (t.featureId < firstSpawned && p.lastInlier == tick)
+				kf.add(t.featureId, p.observation.x, p.observation.y, measured ? 1.0 / p.location.z : 0);
+		}
+		bundleAdjustment.add(kf);
+	}
+
+	private void resetBundleAdjustment() {
+		if (bundleAdjustment == null)
+			return;
+		bundleAdjustment.reset();
+	}
+
 	/**
 	 * Removes tracks which have not been included in the inlier set recently
 	 *
@@ -252,7 +304,7 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 			for (PointTrack t : spawned) {
 				Point2D3DTrack p = t.getCookie();
 				if (p == null) {
-					t.cookie = p = new Point2D3DTrack();
+					t.cookie = p = new Point2D3DVarTrack();
 				}
 
 				// discard point if it can't localized
@@ -263,6 +315,7 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 					Point3D_F64 X = p.getLocation();
 
 					X.set(pixelTo3D.getX(), pixelTo3D.getY(), pixelTo3D.getZ());
+					setDepthVariance(p, X.z);
 
 					lastTrackAdded.set(X);
 
@@ -280,6 +333,11 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 		}
 	}
 
+	private void setDepthVariance(Point2D3DTrack p, double z) {
+		if (p instanceof Point2D3DVarTrack)
+			((Point2D3DVarTrack) p).setDepthVariance(z, depthNoise);
+	}
+
 	/**
 	 * Estimates motion from the set of tracks and their 3D location
 	 *
@@ -310,7 +368,7 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 		Se3_F64 keyToCurr;
 
 		if (refine != null) {
-			keyToCurr = new Se3_F64();
+			keyToCurr = refined;
 			refine.fitModel(motionEstimator.getMatchSet(), motionEstimator.getModelParameters(), keyToCurr);
 		} else {
 			keyToCurr = motionEstimator.getModelParameters();
@@ -392,6 +450,7 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 	 */
 	public void reset() {
 		tracker.reset();
+		resetBundleAdjustment();
 		keyToWorld.reset();
 		currToKey.reset();
 		first = true;
@@ -400,12 +459,59 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 
 	public void reset(Se3_F64 initialState) {
 		tracker.reset();
+		resetBundleAdjustment();
 		keyToWorld.set(initialState);
 		currToKey.reset();
 		first = true;
 		tick = 0;
 	}
 
+	/**
+	 * Re-anchors the odometry at the given state and makes the current frame the key frame
+	 * without discarding the tracks. The 3D locations of all active tracks are measured again
+	 * in the current frame, tracks without depth are dropped. If the last frame has not been
+	 * tracked successfully, the odometry is reset.
+	 *
+	 * @param initialState
+	 *            New transform from the current frame to the world frame
+	 * @return true if tracks have been kept
+	 */
+	public boolean softReset(Se3_F64 initialState) {
+		if (first || !tracked) {
+			reset(initialState);
+			return false;
+		}
+
+		resetBundleAdjustment();
+		keyToWorld.set(initialState);
+		currToKey.reset();
+
+		List<PointTrack> active = tracker.getActiveTracks(null);
+		for (PointTrack t : tracker.getAllTracks(null)) {
+			Point2D3DTrack p = t.getCookie();
+			if (!active.contains(t) || !pixelTo3D.process(t.x, t.y) || pixelTo3D.getW() == 0) {
+				tracker.dropTrack(t);
+				continue;
+			}
+			p.location.set(pixelTo3D.getX(), pixelTo3D.getY(), pixelTo3D.getZ());
+			setDepthVariance(p, p.location.z);
+			pixelToNorm.compute(t.x, t.y, p.observation);
+			p.lastInlier = tick;
+		}
+
+		if (tracker.getActiveTracks(null).size() < thresholdAdd)
+			addNewTracks();
+
+		if (tracker.getActiveTracks(null).isEmpty()) {
+			reset(initialState);
+			return false;
+		}
+
+		// all kept tracks have been measured again
+		addBundleKeyFrame(true);
+		return true;
+	}
+
 	public void setRotation(Se3_F64 state) {
 		//		ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
 		//		0,
@@ -439,6 +545,25 @@ public class MAVOdomPixelDepthPnP<T extends ImageBase> {
 		this.normToPixel = normToPixel;
 	}
 
+	/**
+	 * @param depthNoise Standard deviation of the depth at 1m in meters, 0 if the depth is exact
+	 */
+	public void setDepthNoise(double depthNoise) {
+		this.depthNoise = depthNoise;
+	}
+
+	public RefinePnP getRefine() {
+		return refine;
+	}
+
+	public void setBundleAdjustment(LocalBundleAdjustment bundleAdjustment) {
+		this.bundleAdjustment = bundleAdjustment;
+	}
+
+	public LocalBundleAdjustment getBundleAdjustment() {
+		return bundleAdjustment;
+	}
+
 	public long getTick() {
 		return tick;
 	}
@@ -23,6 +23,8 @@ import static boofcv.alg.distort.LensDistortionOps.transformPoint;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.comino.realsense.boofcv.CalibrationCache;
+
 import boofcv.abst.feature.tracker.PointTrack;
 import boofcv.abst.sfm.AccessPointTracks3D;
 import boofcv.abst.sfm.d3.DepthVisualOdometry;
@@ -112,7 +114,8 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 	public void setCalibration(IntrinsicParameters paramVisual, PixelTransform_F32 visToDepth) {
 		sparse3D.configure(paramVisual,visToDepth);
 
-		leftPixelToNorm = transformPoint(paramVisual).undistort_F64(true,false);
+		// table lookup instead of the distortion model for each track
+		leftPixelToNorm = CalibrationCache.get(paramVisual).getPixelToNorm();
 		leftNormToPixel = transformPoint(paramVisual).distort_F64(false,true);
 
 		alg.setPixelToNorm(leftPixelToNorm);
@@ -120,6 +123,12 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 
 
 		distance.setIntrinsic(paramVisual.fx,paramVisual.fy,paramVisual.skew);
+		if(alg.getRefine() instanceof RefinePnPHuber)
+			((RefinePnPHuber)alg.getRefine()).setIntrinsic(paramVisual.fx,paramVisual.fy);
+		if(alg.getRefine() instanceof RefinePnPHuber_F32)
+			((RefinePnPHuber_F32)alg.getRefine()).setIntrinsic(paramVisual.fx,paramVisual.fy);
+		if(alg.getMotionEstimator() instanceof RansacPnP_F32)
+			((RansacPnP_F32)alg.getMotionEstimator()).setIntrinsic(paramVisual.fx,paramVisual.fy);
 	}
 
 
@@ -164,6 +173,11 @@ public class MAVOdomPixelDepthPnP_to_DepthVisualOdometry<Vis extends ImageBase,
 		alg.reset(initialState);
 	}
 
+	@Override
+	public boolean softReset(Se3_F64 initialState) {
+		return alg.softReset(initialState);
+	}
+
 	@Override
 	public boolean isFault() {
 		return !success;
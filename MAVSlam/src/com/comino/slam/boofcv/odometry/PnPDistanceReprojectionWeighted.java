@@ -0,0 +1,128 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.List;
+
+import boofcv.alg.geo.DistanceModelMonoPixels;
+import boofcv.struct.geo.Point2D3D;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Squared reprojection error in pixels which accounts for the depth uncertainty of the points.
+ * The depth error of a point moves its projection along the epipolar line by the parallax of
+ * the motion. The error is normalized by the resulting variance and scaled back to pixels, so
+ * that points with an exact depth keep their plain reprojection error.
+ *
+ * @author Eike Mansfeld
+ */
+public class PnPDistanceReprojectionWeighted implements DistanceModelMonoPixels<Se3_F64,Point2D3D> {
+
+	private final double pixelVariance;
+
+	private double fx = 1, fy = 1;
+
+	private final double[] R = new double[9];
+	private double tx, ty, tz;
+
+	/**
+	 * @param pixelSigma Standard deviation of an observation in pixels
+	 */
+	public PnPDistanceReprojectionWeighted(double pixelSigma) {
+		this.pixelVariance = pixelSigma * pixelSigma;
+	}
+
+	@Override
+	public void setIntrinsic(double fx, double fy, double skew) {
+		this.fx = fx;
+		this.fy = fy;
+	}
+
+	@Override
+	public void setModel(Se3_F64 model) {
+		System.arraycopy(model.R.data, 0, R, 0, 9);
+		tx = model.T.x; ty = model.T.y; tz = model.T.z;
+	}
+
+	@Override
+	public double computeDistance(Point2D3D pt) {
+		double X = pt.location.x, Y = pt.location.y, Z = pt.location.z;
+
+		// rotated location and point in the camera frame
+		double rx = R[0] * X + R[1] * Y + R[2] * Z;
+		double ry = R[3] * X + R[4] * Y + R[5] * Z;
+		double rz = R[6] * X + R[7] * Y + R[8] * Z;
+		double z  = rz + tz;
+		if(z <= 0)
+			return Double.MAX_VALUE;
+
+		double u = (rx + tx) / z, v = (ry + ty) / z;
+		double du = fx * (u - pt.observation.x);
+		double dv = fy * (v - pt.observation.y);
+
+		return (du * du + dv * dv) * weight(pixelVariance, Point2D3DVarTrack.getDepthVariance(pt),
+				fx, fy, rx, ry, rz, u, v, z, Z);
+	}
+
+	@Override
+	public void computeDistance(List<Point2D3D> data, double[] distance) {
+		for(int i = 0; i < data.size(); i++)
+			distance[i] = computeDistance(data.get(i));
+	}
+
+	/**
+	 * Ratio of the pixel variance to the variance of the projection including the depth error
+	 *
+	 * @param pixelVariance Variance of an observation in pixels^2
+	 * @param depthVariance Variance of the depth of the location in m^2
+	 * @param rx Rotated location, x
+	 * @param ry Rotated location, y
+	 * @param rz Rotated location, z
+	 * @param u Projection, x
+	 * @param v Projection, y
+	 * @param z Depth of the point in the camera frame
+	 * @param depth Depth of the location in its own frame
+	 */
+	public static double weight(double pixelVariance, double depthVariance, double fx, double fy,
+			double rx, double ry, double rz, double u, double v, double z, double depth) {
+		if(depthVariance <= 0 || depth <= 0)
+			return 1;
+		// derivative of the projection with respect to the depth of the location
+		double s = 1 / (z * depth);
+		double ju = fx * (rx - u * rz) * s;
+		double jv = fy * (ry - v * rz) * s;
+		return pixelVariance / (pixelVariance + (ju * ju + jv * jv) * depthVariance);
+	}
+}
@@ -0,0 +1,74 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.List;
+
+import boofcv.struct.geo.Point2D3D;
+
+/**
+ * Observations in normalized image coordinates and 3D locations of a list of {@link Point2D3D}
+ * packed into float arrays.
+ *
+ * @author Eike Mansfeld
+ */
+public class Point2D3DPacked_F32 {
+
+	// normalized image coordinates, 2 per point
+	public float[] obs = new float[2 * 256];
+	// locations, 3 per point
+	public float[] loc = new float[3 * 256];
+	// depth variance of the locations
+	public float[] var = new float[256];
+	public int size = 0;
+
+	public void set(List<Point2D3D> points) {
+		size = points.size();
+		if(loc.length < 3 * size) {
+			obs = new float[4 * size];
+			loc = new float[6 * size];
+			var = new float[2 * size];
+		}
+		for(int i = 0; i < size; i++) {
+			Point2D3D p = points.get(i);
+			obs[2*i]   = (float)p.observation.x;
+			obs[2*i+1] = (float)p.observation.y;
+			loc[3*i]   = (float)p.location.x;
+			loc[3*i+1] = (float)p.location.y;
+			loc[3*i+2] = (float)p.location.z;
+			var[i]     = (float)Point2D3DVarTrack.getDepthVariance(p);
+		}
+	}
+}
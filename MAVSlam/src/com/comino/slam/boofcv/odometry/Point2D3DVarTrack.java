@@ -0,0 +1,67 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import boofcv.struct.geo.Point2D3D;
+import boofcv.struct.sfm.Point2D3DTrack;
+
+/**
+ * {@link Point2D3DTrack} with the variance of the measured depth of its location.
+ *
+ * @author Eike Mansfeld
+ */
+public class Point2D3DVarTrack extends Point2D3DTrack {
+
+	/** Variance of the depth of the location in m^2, 0 if unknown */
+	public double depthVariance = 0;
+
+	/**
+	 * Sets the variance for a depth sensor whose error grows quadratically with the range
+	 *
+	 * @param z Measured depth in meters
+	 * @param depthNoise Standard deviation of the depth at 1m in meters
+	 */
+	public void setDepthVariance(double z, double depthNoise) {
+		double sigma = depthNoise * z * z;
+		depthVariance = sigma * sigma;
+	}
+
+	/**
+	 * @return Depth variance of the point, 0 if it is not a {@link Point2D3DVarTrack}
+	 */
+	public static double getDepthVariance(Point2D3D p) {
+		return p instanceof Point2D3DVarTrack ? ((Point2D3DVarTrack)p).depthVariance : 0;
+	}
+}
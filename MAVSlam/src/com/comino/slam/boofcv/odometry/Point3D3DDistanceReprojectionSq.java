@@ -0,0 +1,73 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.List;
+
+import boofcv.alg.geo.DistanceModelMonoPixels;
+import boofcv.alg.geo.pose.PnPDistanceReprojectionSq;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Squared reprojection error in pixels of the key frame location of a {@link Point3D3DTrack}.
+ * Same error as for the PnP odometry, so the same inlier tolerance applies.
+ *
+ * @author Eike Mansfeld
+ */
+public class Point3D3DDistanceReprojectionSq implements DistanceModelMonoPixels<Se3_F64, Point3D3DTrack> {
+
+	private final PnPDistanceReprojectionSq reprojection = new PnPDistanceReprojectionSq();
+
+	@Override
+	public void setIntrinsic(double fx, double fy, double skew) {
+		reprojection.setIntrinsic(fx, fy, skew);
+	}
+
+	@Override
+	public void setModel(Se3_F64 keyToCurr) {
+		reprojection.setModel(keyToCurr);
+	}
+
+	@Override
+	public double computeDistance(Point3D3DTrack pt) {
+		return reprojection.computeDistance(pt);
+	}
+
+	@Override
+	public void computeDistance(List<Point3D3DTrack> points, double[] distance) {
+		for(int i = 0; i < points.size(); i++)
+			distance[i] = reprojection.computeDistance(points.get(i));
+	}
+
+}
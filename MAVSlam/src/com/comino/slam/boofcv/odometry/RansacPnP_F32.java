@@ -0,0 +1,221 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ddogleg.fitting.modelset.ModelMatcher;
+
+import boofcv.abst.geo.Estimate1ofPnP;
+import boofcv.struct.geo.Point2D3D;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * RANSAC for PnP which scores the hypotheses in single precision on packed arrays. Hypotheses
+ * are computed from the minimal samples by the given estimator in double precision, as the
+ * P3P polynomial is ill conditioned in float and its cost is small compared to scoring all
+ * points for each hypothesis.
+ *
+ * @author Eike Mansfeld
+ */
+public class RansacPnP_F32 implements ModelMatcher<Se3_F64, Point2D3D> {
+
+	private final Estimate1ofPnP estimator;
+	private final int    maxIterations;
+	private final float  thresholdSq;
+	private final Random rand;
+
+	private float fx = 1, fy = 1;
+	private double pixelVariance = 0;
+
+	private final Point2D3DPacked_F32 packed = new Point2D3DPacked_F32();
+
+	private final List<Point2D3D> sample   = new ArrayList<Point2D3D>();
+	private final List<Point2D3D> matchSet = new ArrayList<Point2D3D>();
+	private final Se3_F64 candidate = new Se3_F64();
+	private final Se3_F64 best      = new Se3_F64();
+
+	private int[] candidateIdx = new int[256];
+	private int[] bestIdx      = new int[256];
+	private int   bestSize     = 0;
+	private int[] drawn        = new int[16];
+
+	/**
+	 * @param seed Seed of the random sampling
+	 * @param estimator Estimates a pose from a minimal sample
+	 * @param maxIterations Number of hypotheses
+	 * @param pixelTol Reprojection error of an inlier in pixels
+	 */
+	public RansacPnP_F32(long seed, Estimate1ofPnP estimator, int maxIterations, double pixelTol) {
+		this.estimator     = estimator;
+		this.maxIterations = maxIterations;
+		this.thresholdSq   = (float)(pixelTol * pixelTol);
+		this.rand          = new Random(seed);
+	}
+
+	/**
+	 * Sets the focal length the tolerance refers to. Without, errors are in normalized coordinates.
+	 */
+	public void setIntrinsic(double fx, double fy) {
+		this.fx = (float)fx;
+		this.fy = (float)fy;
+	}
+
+	/**
+	 * Enables the scoring by the depth uncertainty of {@link Point2D3DVarTrack} points
+	 *
+	 * @see PnPDistanceReprojectionWeighted
+	 *
+	 * @param pixelSigma Standard deviation of an observation in pixels
+	 */
+	public void setPixelSigma(double pixelSigma) {
+		this.pixelVariance = pixelSigma * pixelSigma;
+	}
+
+	@Override
+	public boolean process(List<Point2D3D> points) {
+		final int n = points.size();
+		final int sampleSize = estimator.getMinimumPoints();
+		bestSize = 0;
+		matchSet.clear();
+		if(n < sampleSize)
+			return false;
+
+		packed.set(points);
+		if(candidateIdx.length < n) {
+			candidateIdx = new int[n * 2];
+			bestIdx      = new int[n * 2];
+		}
+		if(drawn.length < sampleSize)
+			drawn = new int[sampleSize];
+
+		for(int it = 0; it < maxIterations && bestSize < n; it++) {
+			draw(points, n, sampleSize);
+			if(!estimator.process(sample, candidate))
+				continue;
+
+			int count = score(candidate);
+			if(count > bestSize) {
+				int[] tmp = bestIdx; bestIdx = candidateIdx; candidateIdx = tmp;
+				bestSize = count;
+				best.set(candidate);
+			}
+		}
+
+		if(bestSize == 0)
+			return false;
+		for(int i = 0; i < bestSize; i++)
+			matchSet.add(points.get(bestIdx[i]));
+		return true;
+	}
+
+	/**
+	 * Draws distinct points
+	 */
+	private void draw(List<Point2D3D> points, int n, int sampleSize) {
+		sample.clear();
+		for(int k = 0; k < sampleSize; k++) {
+			int index;
+			boolean used;
+			do {
+				index = rand.nextInt(n);
+				used = false;
+				for(int j = 0; j < k; j++)
+					used |= drawn[j] == index;
+			} while(used);
+			drawn[k] = index;
+			sample.add(points.get(index));
+		}
+	}
+
+	/**
+	 * Collects the inliers of the model in candidateIdx
+	 */
+	private int score(Se3_F64 model) {
+		final double[] d = model.R.data;
+		final float r0 = (float)d[0], r1 = (float)d[1], r2 = (float)d[2];
+		final float r3 = (float)d[3], r4 = (float)d[4], r5 = (float)d[5];
+		final float r6 = (float)d[6], r7 = (float)d[7], r8 = (float)d[8];
+		final float tx = (float)model.T.x, ty = (float)model.T.y, tz = (float)model.T.z;
+
+		final float[] loc = packed.loc, obs = packed.obs, var = packed.var;
+		int count = 0;
+		for(int i = 0; i < packed.size; i++) {
+			float X = loc[3*i], Y = loc[3*i+1], Z = loc[3*i+2];
+			float z = r6 * X + r7 * Y + r8 * Z + tz;
+			if(z <= 0)
+				continue;
+			float iz = 1f / z;
+			float rx = r0 * X + r1 * Y + r2 * Z, ry = r3 * X + r4 * Y + r5 * Z;
+			float u = (rx + tx) * iz, v = (ry + ty) * iz;
+			float du = fx * (u - obs[2*i]);
+			float dv = fy * (v - obs[2*i+1]);
+			float e2 = du * du + dv * dv;
+			if(pixelVariance > 0 && var[i] > 0)
+				e2 *= (float)PnPDistanceReprojectionWeighted.weight(pixelVariance, var[i], fx, fy,
+						rx, ry, z - tz, u, v, z, Z);
+			if(e2 <= thresholdSq)
+				candidateIdx[count++] = i;
+		}
+		return count;
+	}
+
+	@Override
+	public Se3_F64 getModelParameters() {
+		return best;
+	}
+
+	@Override
+	public List<Point2D3D> getMatchSet() {
+		return matchSet;
+	}
+
+	@Override
+	public int getInputIndex(int matchIndex) {
+		return bestIdx[matchIndex];
+	}
+
+	@Override
+	public double getFitQuality() {
+		return bestSize;
+	}
+
+	@Override
+	public int getMinimumSize() {
+		return estimator.getMinimumPoints();
+	}
+}
@@ -0,0 +1,279 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.List;
+
+import boofcv.abst.geo.RefinePnP;
+import boofcv.struct.geo.Point2D3D;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.point.Point3D_F64;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Gauss-Newton refinement of a PnP pose with a Huber loss on the reprojection error. The Jacobian
+ * is analytic and the 6x6 normal equations are solved by Cholesky on preallocated arrays, so no
+ * memory is allocated per call. Iterations stop as soon as the relative decrease of the cost is
+ * below the tolerance.
+ *
+ * @author Eike Mansfeld
+ */
+public class RefinePnPHuber implements RefinePnP {
+
+	private final double ftol;
+	private final int    maxIterations;
+	private final double huberPixels;
+
+	// focal length scaling normalized coordinates to pixels
+	private double fx = 1, fy = 1;
+	// variance of an observation in pixels, 0 if the depth uncertainty is ignored
+	private double pixelVariance = 0;
+
+	// current pose, rotation row major
+	private final double[] R  = new double[9];
+	private final double[] T  = new double[3];
+	private final double[] R0 = new double[9];
+	private final double[] T0 = new double[3];
+
+	private final double[] H  = new double[36];
+	private final double[] g  = new double[6];
+	private final double[] d  = new double[6];
+	private final double[] dr = new double[9];
+	private final double[] rt = new double[9];
+	private final double[] j  = new double[6];
+
+	private int iterations = 0;
+
+	/**
+	 * @param huberPixels Reprojection errors beyond this distance in pixels are down weighted
+	 * @param ftol Relative decrease of the cost below which the refinement stops
+	 * @param maxIterations Maximum number of Gauss-Newton iterations
+	 */
+	public RefinePnPHuber(double huberPixels, double ftol, int maxIterations) {
+		this.huberPixels   = huberPixels;
+		this.ftol          = ftol;
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Sets the focal length the Huber threshold refers to. Without, errors are in normalized coordinates.
+	 */
+	public void setIntrinsic(double fx, double fy) {
+		this.fx = fx;
+		this.fy = fy;
+	}
+
+	/**
+	 * Enables weighting by the depth uncertainty of {@link Point2D3DVarTrack} points
+	 *
+	 * @see PnPDistanceReprojectionWeighted
+	 *
+	 * @param pixelSigma Standard deviation of an observation in pixels
+	 */
+	public void setPixelSigma(double pixelSigma) {
+		this.pixelVariance = pixelSigma * pixelSigma;
+	}
+
+	@Override
+	public boolean fitModel(List<Point2D3D> obs, Se3_F64 worldToCamera, Se3_F64 refined) {
+		System.arraycopy(worldToCamera.R.data, 0, R, 0, 9);
+		T[0] = worldToCamera.T.x; T[1] = worldToCamera.T.y; T[2] = worldToCamera.T.z;
+
+		double cost = linearize(obs, true);
+		iterations = 0;
+
+		while(iterations < maxIterations) {
+			if(!solve())
+				break;
+
+			System.arraycopy(R, 0, R0, 0, 9);
+			System.arraycopy(T, 0, T0, 0, 3);
+			update();
+			iterations++;
+
+			double next = linearize(obs, false);
+			if(!(next < cost)) {
+				System.arraycopy(R0, 0, R, 0, 9);
+				System.arraycopy(T0, 0, T, 0, 3);
+				break;
+			}
+			boolean converged = cost - next <= ftol * cost;
+			cost = linearize(obs, true);
+			if(converged)
+				break;
+		}
+
+		System.arraycopy(R, 0, refined.R.data, 0, 9);
+		refined.T.set(T[0], T[1], T[2]);
+		return true;
+	}
+
+	/**
+	 * Computes the robust cost and optionally the normal equations of the update
+	 * exp(theta) * R, exp(theta) * T + delta
+	 */
+	private double linearize(List<Point2D3D> obs, boolean normal) {
+		if(normal) {
+			for(int i = 0; i < 36; i++)
+				H[i] = 0;
+			for(int i = 0; i < 6; i++)
+				g[i] = 0;
+		}
+
+		double cost = 0;
+		for(int n = 0; n < obs.size(); n++) {
+			Point2D3D p = obs.get(n);
+			Point3D_F64 X = p.location;
+			Point2D_F64 o = p.observation;
+
+			double x = R[0] * X.x + R[1] * X.y + R[2] * X.z + T[0];
+			double y = R[3] * X.x + R[4] * X.y + R[5] * X.z + T[1];
+			double z = R[6] * X.x + R[7] * X.y + R[8] * X.z + T[2];
+			if(z <= 0)
+				continue;
+			double iz = 1 / z;
+
+			// residual in pixels
+			double eu = fx * (x * iz - o.x);
+			double ev = fy * (y * iz - o.y);
+			double e  = Math.sqrt(eu * eu + ev * ev);
+
+			// down weight points whose depth error is amplified by the parallax
+			double dw = pixelVariance > 0 ? PnPDistanceReprojectionWeighted.weight(pixelVariance,
+					Point2D3DVarTrack.getDepthVariance(p), fx, fy, x - T[0], y - T[1], z - T[2],
+					x * iz, y * iz, z, X.z) : 1;
+
+			double w;
+			if(e <= huberPixels) {
+				cost += dw * e * e;
+				w = dw;
+			} else {
+				cost += dw * (2 * huberPixels * e - huberPixels * huberPixels);
+				w = dw * huberPixels / e;
+			}
+			if(!normal)
+				continue;
+
+			// d point / d theta = -[p]x, d point / d delta = I
+			double a = fx * iz, b = -fx * x * iz * iz;
+			double ju0 = b * y,          ju1 = a * z - b * x, ju2 = -a * y, ju3 = a, ju4 = 0, ju5 = b;
+			a = fy * iz; b = -fy * y * iz * iz;
+			double jv0 = b * y - a * z,  jv1 = -b * x,        jv2 = a * x,  jv3 = 0, jv4 = a, jv5 = b;
+
+			accumulate(w, eu, ju0, ju1, ju2, ju3, ju4, ju5);
+			accumulate(w, ev, jv0, jv1, jv2, jv3, jv4, jv5);
+		}
+		return cost;
+	}
+
+	private void accumulate(double w, double e, double j0, double j1, double j2, double j3, double j4, double j5) {
+		j[0] = j0; j[1] = j1; j[2] = j2; j[3] = j3; j[4] = j4; j[5] = j5;
+		for(int r = 0; r < 6; r++) {
+			double wj = w * j[r];
+			g[r] -= wj * e;
+			for(int c = 0; c <= r; c++)
+				H[r * 6 + c] += wj * j[c];
+		}
+	}
+
+	/**
+	 * Solves H * d = g by Cholesky on the lower triangle
+	 */
+	private boolean solve() {
+		for(int j = 0; j < 6; j++) {
+			double s = H[j * 6 + j];
+			for(int k = 0; k < j; k++)
+				s -= H[j * 6 + k] * H[j * 6 + k];
+			if(!(s > 0))
+				return false;
+			double l = Math.sqrt(s);
+			H[j * 6 + j] = l;
+			for(int i = j + 1; i < 6; i++) {
+				double v = H[i * 6 + j];
+				for(int k = 0; k < j; k++)
+					v -= H[i * 6 + k] * H[j * 6 + k];
+				H[i * 6 + j] = v / l;
+			}
+		}
+		for(int i = 0; i < 6; i++) {
+			double v = g[i];
+			for(int k = 0; k < i; k++)
+				v -= H[i * 6 + k] * d[k];
+			d[i] = v / H[i * 6 + i];
+		}
+		for(int i = 5; i >= 0; i--) {
+			double v = d[i];
+			for(int k = i + 1; k < 6; k++)
+				v -= H[k * 6 + i] * d[k];
+			d[i] = v / H[i * 6 + i];
+		}
+		return true;
+	}
+
+	/**
+	 * R = exp(theta) * R, T = exp(theta) * T + delta
+	 */
+	private void update() {
+		double x = d[0], y = d[1], z = d[2];
+		double theta = Math.sqrt(x * x + y * y + z * z);
+		double a, b;
+		if(theta < 1e-8) {
+			a = 1; b = 0.5;
+		} else {
+			a = Math.sin(theta) / theta;
+			b = (1 - Math.cos(theta)) / (theta * theta);
+		}
+		dr[0] = 1 - b * (y * y + z * z); dr[1] = -a * z + b * x * y;    dr[2] = a * y + b * x * z;
+		dr[3] = a * z + b * x * y;       dr[4] = 1 - b * (x * x + z * z); dr[5] = -a * x + b * y * z;
+		dr[6] = -a * y + b * x * z;      dr[7] = a * x + b * y * z;       dr[8] = 1 - b * (x * x + y * y);
+
+		for(int i = 0; i < 3; i++)
+			for(int j = 0; j < 3; j++)
+				rt[3*i+j] = dr[3*i] * R[j] + dr[3*i+1] * R[3+j] + dr[3*i+2] * R[6+j];
+		System.arraycopy(rt, 0, R, 0, 9);
+
+		double t0 = dr[0] * T[0] + dr[1] * T[1] + dr[2] * T[2] + d[3];
+		double t1 = dr[3] * T[0] + dr[4] * T[1] + dr[5] * T[2] + d[4];
+		double t2 = dr[6] * T[0] + dr[7] * T[1] + dr[8] * T[2] + d[5];
+		T[0] = t0; T[1] = t1; T[2] = t2;
+	}
+
+	/**
+	 * @return Number of iterations of the last call
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+}
@@ -0,0 +1,271 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.List;
+
+import boofcv.abst.geo.RefinePnP;
+import boofcv.struct.geo.Point2D3D;
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Single precision variant of {@link RefinePnPHuber}. Projections, residuals and Jacobians are
+ * computed in float on packed arrays, only the 6x6 normal equations are accumulated and solved
+ * in double.
+ *
+ * @author Eike Mansfeld
+ */
+public class RefinePnPHuber_F32 implements RefinePnP {
+
+	private final double ftol;
+	private final int    maxIterations;
+	private final float  huberPixels;
+
+	private float fx = 1, fy = 1;
+	private double pixelVariance = 0;
+
+	private final Point2D3DPacked_F32 packed = new Point2D3DPacked_F32();
+
+	// current pose, rotation row major
+	private final float[] R  = new float[9];
+	private final float[] T  = new float[3];
+	private final float[] R0 = new float[9];
+	private final float[] T0 = new float[3];
+
+	private final double[] H  = new double[36];
+	private final double[] g  = new double[6];
+	private final double[] d  = new double[6];
+	private final float[]  dr = new float[9];
+	private final float[]  rt = new float[9];
+	private final float[]  j  = new float[6];
+
+	private int iterations = 0;
+
+	/**
+	 * @param huberPixels Reprojection errors beyond this distance in pixels are down weighted
+	 * @param ftol Relative decrease of the cost below which the refinement stops
+	 * @param maxIterations Maximum number of Gauss-Newton iterations
+	 */
+	public RefinePnPHuber_F32(double huberPixels, double ftol, int maxIterations) {
+		this.huberPixels   = (float)huberPixels;
+		this.ftol          = ftol;
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Sets the focal length the Huber threshold refers to. Without, errors are in normalized coordinates.
+	 */
+	public void setIntrinsic(double fx, double fy) {
+		this.fx = (float)fx;
+		this.fy = (float)fy;
+	}
+
+	/**
+	 * Enables weighting by the depth uncertainty of {@link Point2D3DVarTrack} points
+	 *
+	 * @param pixelSigma Standard deviation of an observation in pixels
+	 */
+	public void setPixelSigma(double pixelSigma) {
+		this.pixelVariance = pixelSigma * pixelSigma;
+	}
+
+	@Override
+	public boolean fitModel(List<Point2D3D> obs, Se3_F64 worldToCamera, Se3_F64 refined) {
+		packed.set(obs);
+		for(int i = 0; i < 9; i++)
+			R[i] = (float)worldToCamera.R.data[i];
+		T[0] = (float)worldToCamera.T.x; T[1] = (float)worldToCamera.T.y; T[2] = (float)worldToCamera.T.z;
+
+		double cost = linearize(true);
+		iterations = 0;
+
+		while(iterations < maxIterations) {
+			if(!solve())
+				break;
+
+			System.arraycopy(R, 0, R0, 0, 9);
+			System.arraycopy(T, 0, T0, 0, 3);
+			update();
+			iterations++;
+
+			double next = linearize(false);
+			if(!(next < cost)) {
+				System.arraycopy(R0, 0, R, 0, 9);
+				System.arraycopy(T0, 0, T, 0, 3);
+				break;
+			}
+			boolean converged = cost - next <= ftol * cost;
+			cost = linearize(true);
+			if(converged)
+				break;
+		}
+
+		for(int i = 0; i < 9; i++)
+			refined.R.data[i] = R[i];
+		refined.T.set(T[0], T[1], T[2]);
+		return true;
+	}
+
+	/**
+	 * Computes the robust cost and optionally the normal equations of the update
+	 * exp(theta) * R, exp(theta) * T + delta
+	 */
+	private double linearize(boolean normal) {
+		if(normal) {
+			for(int i = 0; i < 36; i++)
+				H[i] = 0;
+			for(int i = 0; i < 6; i++)
+				g[i] = 0;
+		}
+
+		final float[] loc = packed.loc, obs = packed.obs, var = packed.var;
+		double cost = 0;
+		for(int n = 0; n < packed.size; n++) {
+			float X = loc[3*n], Y = loc[3*n+1], Z = loc[3*n+2];
+
+			float x = R[0] * X + R[1] * Y + R[2] * Z + T[0];
+			float y = R[3] * X + R[4] * Y + R[5] * Z + T[1];
+			float z = R[6] * X + R[7] * Y + R[8] * Z + T[2];
+			if(z <= 0)
+				continue;
+			float iz = 1f / z;
+
+			// residual in pixels
+			float eu = fx * (x * iz - obs[2*n]);
+			float ev = fy * (y * iz - obs[2*n+1]);
+			float e  = (float)Math.sqrt(eu * eu + ev * ev);
+
+			float dw = pixelVariance > 0 ? (float)PnPDistanceReprojectionWeighted.weight(pixelVariance,
+					var[n], fx, fy, x - T[0], y - T[1], z - T[2], x * iz, y * iz, z, Z) : 1;
+
+			float w;
+			if(e <= huberPixels) {
+				cost += dw * e * e;
+				w = dw;
+			} else {
+				cost += dw * (2 * huberPixels * e - huberPixels * huberPixels);
+				w = dw * huberPixels / e;
+			}
+			if(!normal)
+				continue;
+
+			// d point / d theta = -[p]x, d point / d delta = I
+			float a = fx * iz, b = -fx * x * iz * iz;
+			accumulate(w, eu, b * y, a * z - b * x, -a * y, a, 0, b);
+			a = fy * iz; b = -fy * y * iz * iz;
+			accumulate(w, ev, b * y - a * z, -b * x, a * x, 0, a, b);
+		}
+		return cost;
+	}
+
+	private void accumulate(float w, float e, float j0, float j1, float j2, float j3, float j4, float j5) {
+		j[0] = j0; j[1] = j1; j[2] = j2; j[3] = j3; j[4] = j4; j[5] = j5;
+		for(int r = 0; r < 6; r++) {
+			float wj = w * j[r];
+			g[r] -= wj * e;
+			for(int c = 0; c <= r; c++)
+				H[r * 6 + c] += wj * j[c];
+		}
+	}
+
+	/**
+	 * Solves H * d = g by Cholesky on the lower triangle
+	 */
+	private boolean solve() {
+		for(int j = 0; j < 6; j++) {
+			double s = H[j * 6 + j];
+			for(int k = 0; k < j; k++)
+				s -= H[j * 6 + k] * H[j * 6 + k];
+			if(!(s > 0))
+				return false;
+			double l = Math.sqrt(s);
+			H[j * 6 + j] = l;
+			for(int i = j + 1; i < 6; i++) {
+				double v = H[i * 6 + j];
+				for(int k = 0; k < j; k++)
+					v -= H[i * 6 + k] * H[j * 6 + k];
+				H[i * 6 + j] = v / l;
+			}
+		}
+		for(int i = 0; i < 6; i++) {
+			double v = g[i];
+			for(int k = 0; k < i; k++)
+				v -= H[i * 6 + k] * d[k];
+			d[i] = v / H[i * 6 + i];
+		}
+		for(int i = 5; i >= 0; i--) {
+			double v = d[i];
+			for(int k = i + 1; k < 6; k++)
+				v -= H[k * 6 + i] * d[k];
+			d[i] = v / H[i * 6 + i];
+		}
+		return true;
+	}
+
+	/**
+	 * R = exp(theta) * R, T = exp(theta) * T + delta
+	 */
+	private void update() {
+		float x = (float)d[0], y = (float)d[1], z = (float)d[2];
+		float theta = (float)Math.sqrt(x * x + y * y + z * z);
+		float a, b;
+		if(theta < 1e-4f) {
+			a = 1; b = 0.5f;
+		} else {
+			a = (float)(Math.sin(theta) / theta);
+			b = (float)((1 - Math.cos(theta)) / (theta * theta));
+		}
+		dr[0] = 1 - b * (y * y + z * z); dr[1] = -a * z + b * x * y;    dr[2] = a * y + b * x * z;
+		dr[3] = a * z + b * x * y;       dr[4] = 1 - b * (x * x + z * z); dr[5] = -a * x + b * y * z;
+		dr[6] = -a * y + b * x * z;      dr[7] = a * x + b * y * z;       dr[8] = 1 - b * (x * x + y * y);
+
+		for(int i = 0; i < 3; i++)
+			for(int k = 0; k < 3; k++)
+				rt[3*i+k] = dr[3*i] * R[k] + dr[3*i+1] * R[3+k] + dr[3*i+2] * R[6+k];
+		System.arraycopy(rt, 0, R, 0, 9);
+
+		float t0 = dr[0] * T[0] + dr[1] * T[1] + dr[2] * T[2] + (float)d[3];
+		float t1 = dr[3] * T[0] + dr[4] * T[1] + dr[5] * T[2] + (float)d[4];
+		float t2 = dr[6] * T[0] + dr[7] * T[1] + dr[8] * T[2] + (float)d[5];
+		T[0] = t0; T[1] = t1; T[2] = t2;
+	}
+
+	/**
+	 * @return Number of iterations of the last call
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+}
@@ -0,0 +1,145 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.odometry;
+
+import java.util.List;
+
+import org.ddogleg.fitting.modelset.ModelGenerator;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.DecompositionFactory;
+import org.ejml.interfaces.decomposition.SingularValueDecomposition;
+import org.ejml.ops.CommonOps;
+
+import georegression.struct.se.Se3_F64;
+
+/**
+ * Closed form rigid motion between two sets of 3D points (weighted Umeyama without scale). Estimates
+ * the motion which transforms the key frame locations of the tracks into their locations
+ * measured in the current frame. The SVD of the 3x3 cross covariance is the only decomposition,
+ * so a hypothesis is much cheaper than P3P. Does not allocate memory.
+ *
+ * @author Eike Mansfeld
+ */
+public class Se3FromPoint3D3DGenerator implements ModelGenerator<Se3_F64, Point3D3DTrack> {
+
+	// ratio of the second to the largest singular value below which the points are degenerate
+	private static final double DEGENERATE_RATIO = 1e-6;
+
+	private final SingularValueDecomposition<DenseMatrix64F> svd = DecompositionFactory.svd(3, 3, true, true, false);
+
+	private final DenseMatrix64F H = new DenseMatrix64F(3,3);
+	private final DenseMatrix64F U = new DenseMatrix64F(3,3);
+	private final DenseMatrix64F V = new DenseMatrix64F(3,3);
+
+	@Override
+	public boolean generate(List<Point3D3DTrack> data, Se3_F64 keyToCurr) {
+		final int N = data.size();
+		if(N < 3)
+			return false;
+
+		// weighted centroids
+		double ax = 0, ay = 0, az = 0, bx = 0, by = 0, bz = 0, sw = 0;
+		for(int i = 0; i < N; i++) {
+			Point3D3DTrack p = data.get(i);
+			double w = weight(p);
+			ax += w*p.location.x; ay += w*p.location.y; az += w*p.location.z;
+			bx += w*p.current.x;  by += w*p.current.y;  bz += w*p.current.z;
+			sw += w;
+		}
+		if(sw <= 0)
+			return false;
+		ax /= sw; ay /= sw; az /= sw;
+		bx /= sw; by /= sw; bz /= sw;
+
+		// cross covariance of key frame and current locations
+		final double[] h = H.data;
+		for(int i = 0; i < 9; i++)
+			h[i] = 0;
+		for(int i = 0; i < N; i++) {
+			Point3D3DTrack p = data.get(i);
+			double w = weight(p);
+			double px = w*(p.location.x - ax), py = w*(p.location.y - ay), pz = w*(p.location.z - az);
+			double qx = p.current.x - bx,  qy = p.current.y - by,  qz = p.current.z - bz;
+			h[0] += px*qx; h[1] += px*qy; h[2] += px*qz;
+			h[3] += py*qx; h[4] += py*qy; h[5] += py*qz;
+			h[6] += pz*qx; h[7] += pz*qy; h[8] += pz*qz;
+		}
+
+		if(!svd.decompose(H))
+			return false;
+
+		double[] s = svd.getSingularValues();
+		int smallest = 0, largest = 0;
+		for(int i = 1; i < 3; i++) {
+			if(s[i] < s[smallest]) smallest = i;
+			if(s[i] > s[largest])  largest  = i;
+		}
+		double middle = s[0] + s[1] + s[2] - s[smallest] - s[largest];
+		if(s[largest] <= 0 || middle < DEGENERATE_RATIO * s[largest])
+			return false;
+
+		svd.getU(U, false);
+		svd.getV(V, false);
+
+		// R = V*U^T, reflections are corrected by flipping the axis of the smallest singular value
+		DenseMatrix64F R = keyToCurr.R;
+		CommonOps.multTransB(V, U, R);
+		if(CommonOps.det(R) < 0) {
+			for(int i = 0; i < 3; i++)
+				V.set(i, smallest, -V.get(i, smallest));
+			CommonOps.multTransB(V, U, R);
+		}
+
+		keyToCurr.T.x = bx - (R.data[0]*ax + R.data[1]*ay + R.data[2]*az);
+		keyToCurr.T.y = by - (R.data[3]*ax + R.data[4]*ay + R.data[5]*az);
+		keyToCurr.T.z = bz - (R.data[6]*ax + R.data[7]*ay + R.data[8]*az);
+
+		return true;
+	}
+
+	/**
+	 * The depth error of structured light sensors grows with the square of the range,
+	 * so near points are weighted by the inverse of their squared depth.
+	 */
+	private static double weight(Point3D3DTrack p) {
+		double z = p.current.z;
+		return z > 0 ? 1.0 / (z * z) : 0;
+	}
+
+	@Override
+	public int getMinimumPoints() {
+		return 3;
+	}
+
+}
@@ -0,0 +1,69 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.tracker;
+
+/**
+ * Configuration of {@link PointTrackerTwoPassBrief}.
+ *
+ * @author Eike Mansfeld
+ */
+public class BriefTrackerConfig {
+
+	/** FAST: intensity difference to the center pixel */
+	public int pixelTol = 20;
+	/** FAST: number of continuous pixels on the circle */
+	public int minContinuous = 9;
+
+	/** Radius of the region the descriptor pairs are sampled from */
+	public int descriptorRadius = 12;
+	/** Radius of the box filter applied before sampling */
+	public int blurRadius = 2;
+
+	/** Maximum Hamming distance of an association, out of 256 bits */
+	public int maxHamming = 60;
+	/** Search radius around the position predicted by the track's motion */
+	public int searchRadius = 40;
+	/** Search radius around the hint in the second pass */
+	public int hintRadius = 8;
+	/** Minimum distance of a new track to existing tracks */
+	public int spawnDistance = 6;
+	/** Cell size of the spatial hash of detected features */
+	public int cellSize = 16;
+
+	/** Number of frames a track may stay inactive before it is dropped */
+	public int maxLost = 5;
+	/** Replace the descriptor of a track with the one of its last match */
+	public boolean updateDescription = true;
+
+}
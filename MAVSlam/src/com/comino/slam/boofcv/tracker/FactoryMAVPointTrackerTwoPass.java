@@ -18,9 +18,13 @@
 
 package com.comino.slam.boofcv.tracker;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import boofcv.abst.feature.associate.AssociateDescription2D;
 import boofcv.abst.feature.describe.DescribeRegionPoint;
 import boofcv.abst.feature.detdesc.DetectDescribePoint;
+import boofcv.abst.feature.detect.interest.ConfigFast;
 import boofcv.abst.feature.detect.interest.ConfigGeneralDetector;
 import boofcv.abst.feature.tracker.*;
 import boofcv.abst.filter.derivative.ImageGradient;
@@ -28,10 +32,13 @@ import boofcv.alg.feature.detect.interest.EasyGeneralFeatureDetector;
 import boofcv.alg.feature.detect.interest.GeneralFeatureDetector;
 import boofcv.alg.interpolate.InterpolateRectangle;
 import boofcv.alg.tracker.klt.PkltConfig;
+import boofcv.factory.feature.detect.interest.FactoryDetectPoint;
 import boofcv.factory.filter.derivative.FactoryDerivative;
 import boofcv.factory.interpolate.FactoryInterpolation;
 import boofcv.factory.transform.pyramid.FactoryPyramid;
 import boofcv.struct.feature.TupleDesc;
+import boofcv.struct.image.GrayS16;
+import boofcv.struct.image.GrayU8;
 import boofcv.struct.image.ImageGray;
 import boofcv.struct.pyramid.PyramidDiscrete;
 
@@ -42,6 +49,9 @@ import static boofcv.factory.feature.tracker.FactoryPointTracker.createShiTomasi
  */
 public class FactoryMAVPointTrackerTwoPass {
 
+	// number of strips used for parallel detection, independent of the number of threads
+	private static final int PARALLEL_STRIPS = 8;
+
 	/**
 	 * Pyramid KLT feature tracker.
 	 *
@@ -66,6 +76,34 @@ public class FactoryMAVPointTrackerTwoPass {
 				gradient, interpInput, interpDeriv);
 	}
 
+	/**
+	 * Pyramid KLT feature tracker with double buffered pyramids. The pyramid of the next
+	 * frame can be prepared on a second thread while the current frame is tracked.
+	 *
+	 * @see PointTrackerTwoPassKltPipelined
+	 *
+	 * @param config Config for the tracker. Try PkltConfig.createDefault().
+	 * @param configExtract Configuration for extracting features
+	 * @return KLT based tracker.
+	 */
+	public static <I extends ImageGray, D extends ImageGray>
+	PointTrackerTwoPassKltPipelined<I,D> kltPipelined(PkltConfig config, ConfigGeneralDetector configExtract,
+							   Class<I> imageType, Class<D> derivType) {
+
+		GeneralFeatureDetector<I, D> detector = createShiTomasi(configExtract, derivType);
+
+		InterpolateRectangle<I> interpInput = FactoryInterpolation.<I>bilinearRectangle(imageType);
+		InterpolateRectangle<D> interpDeriv = FactoryInterpolation.<D>bilinearRectangle(derivType);
+
+		ImageGradient<I,D> gradient = FactoryDerivative.sobel(imageType, derivType);
+
+		PyramidDiscrete<I> pyramid0 = FactoryPyramid.discreteGaussian(config.pyramidScaling,-1,2,true,imageType);
+		PyramidDiscrete<I> pyramid1 = FactoryPyramid.discreteGaussian(config.pyramidScaling,-1,2,true,imageType);
+
+		return new PointTrackerTwoPassKltPipelined<>(config.config, config.templateRadius, pyramid0, pyramid1,
+				detector, gradient, interpInput, interpDeriv);
+	}
+
 	public static <I extends ImageGray, D extends ImageGray, Desc extends TupleDesc>
 	PointTrackerTwoPass<I> dda(GeneralFeatureDetector<I, D> detector,
 							   DescribeRegionPoint<I, Desc> describe,
@@ -84,6 +122,68 @@ public class FactoryMAVPointTrackerTwoPass {
 		return new DetectDescribeAssociateTwoPass<>(manager, associate1, associate2, false);
 	}
 
+	/**
+	 * Pipelined pyramid KLT feature tracker which detects and tracks features on a pool of workers.
+	 *
+	 * @see PointTrackerTwoPassKltParallel
+	 *
+	 * @param config Config for the tracker. Try PkltConfig.createDefault().
+	 * @param configExtract Configuration for extracting features
+	 * @param threads Number of workers including the calling thread
+	 * @return KLT based tracker.
+	 */
+	public static <I extends ImageGray, D extends ImageGray>
+	PointTrackerTwoPassKltPipelined<I,D> kltParallel(PkltConfig config, ConfigGeneralDetector configExtract, int threads,
+							   Class<I> imageType, Class<D> derivType) {
+
+		// with a single worker all strips are detected on the calling thread, so the result
+		// does not depend on the number of workers
+		threads = Math.max(1, threads);
+
+		// the strip overlap covers the non-max radius and the ignored border of the detector
+		int margin = configExtract.ignoreBorder + 2 * configExtract.radius + 2;
+
+		List<GeneralFeatureDetector<I, D>> detectors = new ArrayList<>();
+		List<InterpolateRectangle<I>> interpInput = new ArrayList<>();
+		List<InterpolateRectangle<D>> interpDeriv = new ArrayList<>();
+
+		for(int i = 0; i < threads; i++ ) {
+			// createShiTomasi modifies the configuration
+			ConfigGeneralDetector c = new ConfigGeneralDetector(configExtract.maxFeatures, configExtract);
+			detectors.add(createShiTomasi(c, derivType));
+			interpInput.add(FactoryInterpolation.<I>bilinearRectangle(imageType));
+			interpDeriv.add(FactoryInterpolation.<D>bilinearRectangle(derivType));
+		}
+
+		ImageGradient<I,D> gradient = FactoryDerivative.sobel(imageType, derivType);
+
+		PyramidDiscrete<I> pyramid0 = FactoryPyramid.discreteGaussian(config.pyramidScaling,-1,2,true,imageType);
+		PyramidDiscrete<I> pyramid1 = FactoryPyramid.discreteGaussian(config.pyramidScaling,-1,2,true,imageType);
+
+		return new PointTrackerTwoPassKltParallel<>(config.config, config.templateRadius, pyramid0, pyramid1,
+				detectors, gradient, interpInput, interpDeriv, configExtract.maxFeatures, PARALLEL_STRIPS, margin);
+	}
+
+	/**
+	 * FAST corners and BRIEF descriptors associated by their Hamming distance.
+	 *
+	 * @see PointTrackerTwoPassBrief
+	 *
+	 * @param config Config for the tracker.
+	 * @param configExtract Configuration for extracting features, maxFeatures is the number of tracks
+	 * @return BRIEF based tracker.
+	 */
+	public static PointTrackerTwoPassBrief brief(BriefTrackerConfig config, ConfigGeneralDetector configExtract) {
+
+		// association needs candidates beyond the tracked features
+		ConfigGeneralDetector c = new ConfigGeneralDetector(configExtract.maxFeatures * 2, configExtract);
+
+		GeneralFeatureDetector<GrayU8, GrayS16> detector =
+				FactoryDetectPoint.createFast(new ConfigFast(config.pixelTol, config.minContinuous), c, GrayU8.class);
+
+		return new PointTrackerTwoPassBrief(config, detector, configExtract.maxFeatures);
+	}
+
 	public static <I extends ImageGray, Desc extends TupleDesc>
 	PointTrackerTwoPass<I> dda(DetectDescribePoint<I,Desc> detectDescribe,
 							   AssociateDescription2D<Desc> associate1 ,
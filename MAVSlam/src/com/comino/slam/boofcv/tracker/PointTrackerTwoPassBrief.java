@@ -0,0 +1,602 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.tracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import boofcv.abst.feature.tracker.PointTrack;
+import boofcv.alg.feature.detect.interest.GeneralFeatureDetector;
+import boofcv.alg.filter.blur.BlurImageOps;
+import boofcv.struct.QueueCorner;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayS16;
+import boofcv.struct.image.GrayU8;
+import georegression.struct.point.Point2D_I16;
+
+/**
+ * Two pass detect-describe-associate tracker based on FAST corners and 256 bit BRIEF
+ * descriptors packed into four longs. Tracks are associated by their Hamming distance,
+ * computed with {@link Long#bitCount(long)}, to the features found within a radius around
+ * their predicted position. The candidates are looked up in a spatial hash of the detected
+ * features, so association does not depend on the total number of features.
+ *
+ * The first pass predicts each track by its last displacement, the second pass searches
+ * a smaller radius around the hints. Unlike KLT, tracks which are not associated stay
+ * inactive for a few frames and can be associated again, which makes the tracker robust
+ * against fast motion and motion blur.
+ *
+ * Detection and description of an image can be done in advance by {@link #prepare(GrayU8)}.
+ * The back buffer is claimed by the image it was prepared for until that image is processed.
+ *
+ * @author Eike Mansfeld
+ */
+public class PointTrackerTwoPassBrief implements IPointTrackerTwoPassPipelined<GrayU8> {
+
+	// number of 64 bit words of a descriptor
+	public static final int WORDS = 4;
+	private static final int BITS = WORDS * 64;
+
+	private final BriefTrackerConfig config;
+	private final int maxTracks;
+
+	// detects FAST corners
+	private final GeneralFeatureDetector<GrayU8, GrayS16> detector;
+	private final QueueCorner noExclude = new QueueCorner(1);
+
+	// sampling pattern relative to the feature
+	private final int[] ax = new int[BITS], ay = new int[BITS];
+	private final int[] bx = new int[BITS], by = new int[BITS];
+
+	// double buffered features, front is used for tracking. Binding of buffers to images is
+	// guarded by the buffers array
+	private final FeatureBuffer[] buffers = { new FeatureBuffer(), new FeatureBuffer() };
+	private FeatureBuffer front = buffers[0];
+
+	// building a buffer is serialized, the detector is shared
+	private final Object build_lock = new Object();
+
+	// all tracks, active and inactive
+	private List<BriefTrack> all      = new ArrayList<BriefTrack>();
+	private List<BriefTrack> active   = new ArrayList<BriefTrack>();
+	private List<BriefTrack> inactive = new ArrayList<BriefTrack>();
+	private List<BriefTrack> spawned  = new ArrayList<BriefTrack>();
+	private List<BriefTrack> dropped  = new ArrayList<BriefTrack>();
+	private List<BriefTrack> unused   = new ArrayList<BriefTrack>();
+
+	// association scratch per detected feature
+	private int[]     owner    = new int[0];
+	private boolean[] excluded = new boolean[0];
+
+	private long totalFeatures = 0;
+
+	/**
+	 * @param config Tracker configuration
+	 * @param detector FAST corner detector, should detect more features than tracked
+	 * @param maxTracks Maximum number of active tracks
+	 */
+	public PointTrackerTwoPassBrief(BriefTrackerConfig config, GeneralFeatureDetector<GrayU8, GrayS16> detector,
+			int maxTracks) {
+		this.config    = config;
+		this.detector  = detector;
+		this.maxTracks = maxTracks;
+
+		// isotropic gaussian pairs as in the original BRIEF, fixed seed for repeatable descriptors
+		Random rand = new Random(234);
+		int r = config.descriptorRadius;
+		for(int k = 0; k < BITS; k++) {
+			ax[k] = sample(rand, r); ay[k] = sample(rand, r);
+			bx[k] = sample(rand, r); by[k] = sample(rand, r);
+		}
+	}
+
+	private static int sample(Random rand, int r) {
+		int v;
+		do {
+			v = (int)Math.round(rand.nextGaussian() * r / 2.0);
+		} while(v < -r || v > r);
+		return v;
+	}
+
+	/**
+	 * Detects and describes the features of the image into a back buffer. Can be called from
+	 * a different thread than {@link #process(GrayU8)}.
+	 */
+	@Override
+	public void prepare(GrayU8 image) {
+		FeatureBuffer f;
+		synchronized(buffers) {
+			while((f = backBuffer(image)) == null) {
+				try {
+					buffers.wait();
+				} catch (InterruptedException e) {
+					// process detects the features itself
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			f.image    = image;
+			f.claimed  = true;
+			f.prepared = false;
+			f.building = true;
+		}
+		synchronized(build_lock) {
+			build(f, image);
+		}
+		synchronized(buffers) {
+			f.building = false;
+			f.prepared = true;
+			buffers.notifyAll();
+		}
+	}
+
+	/*
+	 * Back buffer if it is free or claimed by the image, null if it is claimed by another image
+	 */
+	private FeatureBuffer backBuffer(GrayU8 image) {
+		FeatureBuffer f = buffers[0] == front ? buffers[1] : buffers[0];
+		if(f.building || (f.claimed && f.image != image))
+			return null;
+		return f;
+	}
+
+	/*
+	 * Swaps in the back buffer as front. Waits for a prepare in progress, detects the features
+	 * if the buffer has not been prepared for this image.
+	 */
+	private void swap(GrayU8 image) {
+		FeatureBuffer f;
+		boolean build;
+		boolean interrupted = false;
+		synchronized(buffers) {
+			f = buffers[0] == front ? buffers[1] : buffers[0];
+			while(f.building) {
+				try {
+					buffers.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			build = !(f.claimed && f.prepared && f.image == image);
+			f.image    = image;
+			f.claimed  = false;
+			f.prepared = false;
+			f.building = build;
+			front = f;
+			// the former front buffer is free now
+			buffers.notifyAll();
+		}
+		if(build) {
+			synchronized(build_lock) {
+				build(f, image);
+			}
+			synchronized(buffers) {
+				f.building = false;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void build(FeatureBuffer f, GrayU8 image) {
+		f.blurred.reshape(image.width, image.height);
+		f.storage.reshape(image.width, image.height);
+		BlurImageOps.mean(image, f.blurred, config.blurRadius, f.storage);
+
+		if(f.stride != f.blurred.stride) {
+			f.stride = f.blurred.stride;
+			for(int k = 0; k < BITS; k++) {
+				f.offA[k] = ay[k] * f.stride + ax[k];
+				f.offB[k] = by[k] * f.stride + bx[k];
+			}
+		}
+
+		detector.setExcludeMaximum(noExclude);
+		detector.process(image, null, null, null, null, null);
+		QueueCorner found = detector.getMaximums();
+		GrayF32 intensity = detector.getIntensity();
+
+		// order by intensity, strongest first. The pixel index breaks ties.
+		if(f.order.length < found.size)
+			f.order = new long[found.size * 2];
+		int border = config.descriptorRadius;
+		int n = 0;
+		for(int i = 0; i < found.size; i++) {
+			Point2D_I16 p = found.get(i);
+			if(p.x < border || p.y < border || p.x >= image.width - border || p.y >= image.height - border)
+				continue;
+			int index = p.y * image.width + p.x;
+			f.order[n++] = ((long)Float.floatToIntBits(Math.max(0, intensity.get(p.x, p.y))) << 32)
+					| (0xFFFFFFFFL - index);
+		}
+		Arrays.sort(f.order, 0, n);
+
+		f.grow(n);
+		f.size = 0;
+		for(int i = n - 1; i >= 0; i--) {
+			int index = (int)(0xFFFFFFFFL - (f.order[i] & 0xFFFFFFFFL));
+			int x = index % image.width, y = index / image.width;
+			f.x[f.size] = x;
+			f.y[f.size] = y;
+			describe(f, x, y, f.desc, f.size * WORDS);
+			f.size++;
+		}
+
+		// spatial hash, each cell lists its features strongest first
+		f.cols = (image.width  + config.cellSize - 1) / config.cellSize;
+		f.rows = (image.height + config.cellSize - 1) / config.cellSize;
+		if(f.head.length < f.cols * f.rows)
+			f.head = new int[f.cols * f.rows];
+		Arrays.fill(f.head, 0, f.cols * f.rows, -1);
+		for(int i = f.size - 1; i >= 0; i--) {
+			int cell = (f.y[i] / config.cellSize) * f.cols + f.x[i] / config.cellSize;
+			f.next[i] = f.head[cell];
+			f.head[cell] = i;
+		}
+	}
+
+	private void describe(FeatureBuffer f, int x, int y, long[] desc, int offset) {
+		final byte[] data = f.blurred.data;
+		final int c = f.blurred.startIndex + y * f.stride + x;
+		int k = 0;
+		for(int w = 0; w < WORDS; w++) {
+			long bits = 0;
+			for(int b = 0; b < 64; b++, k++) {
+				if((data[c + f.offA[k]] & 0xFF) < (data[c + f.offB[k]] & 0xFF))
+					bits |= 1L << b;
+			}
+			desc[offset + w] = bits;
+		}
+	}
+
+	private static int hamming(long[] a, long[] b, int offset) {
+		return Long.bitCount(a[0] ^ b[offset]) + Long.bitCount(a[1] ^ b[offset + 1])
+			 + Long.bitCount(a[2] ^ b[offset + 2]) + Long.bitCount(a[3] ^ b[offset + 3]);
+	}
+
+	@Override
+	public void process(GrayU8 image) {
+		spawned.clear();
+		dropped.clear();
+
+		// swap in the features of this image, detect them now if they have not been prepared
+		swap(image);
+
+		// predict by the last displacement
+		for(int i = 0; i < all.size(); i++) {
+			BriefTrack t = all.get(i);
+			t.hx = t.x + t.vx * (t.lost + 1);
+			t.hy = t.y + t.vy * (t.lost + 1);
+		}
+		associate(config.searchRadius);
+	}
+
+	@Override
+	public void performSecondPass() {
+		associate(config.hintRadius);
+	}
+
+	/**
+	 * Associates each track with the closest descriptor found within the radius around its
+	 * predicted position. A feature is assigned to the track with the smallest distance only,
+	 * ties are resolved in favour of the older track. A track which loses its feature to a
+	 * closer track searches again among the features it can still obtain.
+	 */
+	private void associate(int radius) {
+		final FeatureBuffer f = front;
+
+		if(owner.length < f.size)
+			owner = new int[f.size * 2];
+		Arrays.fill(owner, 0, f.size, -1);
+
+		for(int i = 0; i < all.size(); i++) {
+			// each feature only passes to a closer or older track, so this terminates
+			for(int k = i; k >= 0; ) {
+				BriefTrack t = all.get(k);
+				t.match = search(f, t, k, radius);
+				if(t.match < 0)
+					break;
+				int o = owner[t.match];
+				owner[t.match] = k;
+				if(o >= 0)
+					all.get(o).match = -1;
+				k = o;
+			}
+		}
+
+		active.clear();
+		inactive.clear();
+		for(int i = 0; i < all.size(); i++) {
+			BriefTrack t = all.get(i);
+			if(t.match >= 0) {
+				t.track.set(f.x[t.match], f.y[t.match]);
+				active.add(t);
+			} else {
+				t.track.set(t.x, t.y);
+				inactive.add(t);
+			}
+		}
+	}
+
+	/*
+	 * Closest feature within the radius around the prediction of the track, which is not owned by a
+	 * closer or older track. Sets the distance of the track.
+	 */
+	private int search(FeatureBuffer f, BriefTrack t, int index, int radius) {
+		final int cs = config.cellSize;
+		final double r2 = radius * radius;
+
+		int best = config.maxHamming + 1;
+		int bestIndex = -1;
+
+		int cx0 = Math.max(0, (int)Math.floor((t.hx - radius) / cs));
+		int cx1 = Math.min(f.cols - 1, (int)Math.floor((t.hx + radius) / cs));
+		int cy0 = Math.max(0, (int)Math.floor((t.hy - radius) / cs));
+		int cy1 = Math.min(f.rows - 1, (int)Math.floor((t.hy + radius) / cs));
+
+		for(int cy = cy0; cy <= cy1; cy++) {
+			for(int cx = cx0; cx <= cx1; cx++) {
+				for(int j = f.head[cy * f.cols + cx]; j >= 0; j = f.next[j]) {
+					double dx = f.x[j] - t.hx, dy = f.y[j] - t.hy;
+					if(dx * dx + dy * dy > r2)
+						continue;
+					int d = hamming(t.desc, f.desc, j * WORDS);
+					if(d > best || (d == best && j > bestIndex))
+						continue;
+					int o = owner[j];
+					if(o >= 0 && (all.get(o).distance < d || (all.get(o).distance == d && o < index)))
+						continue;
+					best = d;
+					bestIndex = j;
+				}
+			}
+		}
+		t.distance = best;
+		return bestIndex;
+	}
+
+	@Override
+	public void finishTracking() {
+		final FeatureBuffer f = front;
+
+		for(int i = 0; i < active.size(); i++) {
+			BriefTrack t = active.get(i);
+			double x = f.x[t.match], y = f.y[t.match];
+			t.vx = (x - t.x) / (t.lost + 1);
+			t.vy = (y - t.y) / (t.lost + 1);
+			t.x = x; t.y = y;
+			t.lost = 0;
+			if(config.updateDescription)
+				System.arraycopy(f.desc, t.match * WORDS, t.desc, 0, WORDS);
+		}
+
+		for(int i = 0; i < inactive.size(); ) {
+			BriefTrack t = inactive.get(i);
+			if(++t.lost > config.maxLost) {
+				inactive.remove(i);
+				all.remove(t);
+				dropped.add(t);
+				unused.add(t);
+			} else
+				i++;
+		}
+	}
+
+	@Override
+	public void spawnTracks() {
+		spawned.clear();
+
+		final FeatureBuffer f = front;
+		int space = maxTracks - active.size();
+		if(space <= 0 || f.size == 0)
+			return;
+
+		// exclude features which are associated or close to a track
+		if(excluded.length < f.size)
+			excluded = new boolean[f.size * 2];
+		Arrays.fill(excluded, 0, f.size, false);
+		for(int i = 0; i < all.size(); i++) {
+			BriefTrack t = all.get(i);
+			if(t.match >= 0)
+				excluded[t.match] = true;
+			exclude(f, t.track.x, t.track.y);
+		}
+
+		for(int j = 0; j < f.size && space > 0; j++) {
+			if(excluded[j])
+				continue;
+
+			BriefTrack t = unused.isEmpty() ? new BriefTrack() : unused.remove(unused.size() - 1);
+			System.arraycopy(f.desc, j * WORDS, t.desc, 0, WORDS);
+			t.x = f.x[j]; t.y = f.y[j];
+			t.vx = 0; t.vy = 0;
+			t.lost = 0;
+			t.match = j;
+			t.track.set(t.x, t.y);
+			t.track.featureId = totalFeatures++;
+
+			all.add(t);
+			active.add(t);
+			spawned.add(t);
+			space--;
+		}
+	}
+
+	private void exclude(FeatureBuffer f, double x, double y) {
+		final int cs = config.cellSize;
+		final int r  = config.spawnDistance;
+
+		int cx0 = Math.max(0, (int)Math.floor((x - r) / cs)), cx1 = Math.min(f.cols - 1, (int)Math.floor((x + r) / cs));
+		int cy0 = Math.max(0, (int)Math.floor((y - r) / cs)), cy1 = Math.min(f.rows - 1, (int)Math.floor((y + r) / cs));
+
+		for(int cy = cy0; cy <= cy1; cy++) {
+			for(int cx = cx0; cx <= cx1; cx++) {
+				for(int j = f.head[cy * f.cols + cx]; j >= 0; j = f.next[j]) {
+					double dx = f.x[j] - x, dy = f.y[j] - y;
+					if(dx * dx + dy * dy <= r * r)
+						excluded[j] = true;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void setHint(double pixelX, double pixelY, PointTrack track) {
+		BriefTrack t = track.getDescription();
+		t.hx = pixelX;
+		t.hy = pixelY;
+	}
+
+	@Override
+	public boolean dropTrack(PointTrack track) {
+		BriefTrack t = track.getDescription();
+		if(all.remove(t)) {
+			if(!active.remove(t))
+				inactive.remove(t);
+			unused.add(t);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void dropAllTracks() {
+		unused.addAll(all);
+		all.clear();
+		active.clear();
+		inactive.clear();
+		dropped.clear();
+	}
+
+	@Override
+	public void reset() {
+		dropAllTracks();
+		spawned.clear();
+		totalFeatures = 0;
+	}
+
+	@Override
+	public List<PointTrack> getAllTracks(List<PointTrack> list) {
+		return addToList(all, list);
+	}
+
+	@Override
+	public List<PointTrack> getActiveTracks(List<PointTrack> list) {
+		return addToList(active, list);
+	}
+
+	@Override
+	public List<PointTrack> getInactiveTracks(List<PointTrack> list) {
+		return addToList(inactive, list);
+	}
+
+	@Override
+	public List<PointTrack> getDroppedTracks(List<PointTrack> list) {
+		return addToList(dropped, list);
+	}
+
+	@Override
+	public List<PointTrack> getNewTracks(List<PointTrack> list) {
+		return addToList(spawned, list);
+	}
+
+	private List<PointTrack> addToList(List<BriefTrack> in, List<PointTrack> out) {
+		if(out == null)
+			out = new ArrayList<PointTrack>();
+		for(int i = 0; i < in.size(); i++)
+			out.add(in.get(i).track);
+		return out;
+	}
+
+	private static class BriefTrack {
+		final long[]     desc  = new long[WORDS];
+		final PointTrack track = new PointTrack();
+
+		// position of the last association and displacement per frame
+		double x, y, vx, vy;
+		// predicted position or hint
+		double hx, hy;
+		// frames since the last association
+		int lost;
+
+		// associated feature and its distance
+		int match = -1;
+		int distance;
+
+		BriefTrack() {
+			track.setDescription(this);
+		}
+	}
+
+	private static class FeatureBuffer {
+		GrayU8  image;
+		// features have been detected but not yet been swapped in
+		boolean prepared;
+		// bound to an image which has not been processed yet
+		boolean claimed;
+		// features are being detected
+		boolean building;
+
+		GrayU8 blurred = new GrayU8(1,1);
+		GrayU8 storage = new GrayU8(1,1);
+
+		// pattern offsets for the stride of the blurred image
+		int   stride = -1;
+		int[] offA = new int[BITS];
+		int[] offB = new int[BITS];
+
+		// features strongest first
+		int    size;
+		int[]  x    = new int[0];
+		int[]  y    = new int[0];
+		long[] desc = new long[0];
+		long[] order = new long[0];
+
+		// spatial hash: first feature of each cell and next feature in the same cell
+		int   cols, rows;
+		int[] head = new int[0];
+		int[] next = new int[0];
+
+		void grow(int n) {
+			if(x.length >= n)
+				return;
+			x    = new int[n * 2];
+			y    = new int[n * 2];
+			next = new int[n * 2];
+			desc = new long[n * 2 * WORDS];
+		}
+	}
+}
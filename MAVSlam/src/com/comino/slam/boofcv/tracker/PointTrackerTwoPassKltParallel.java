@@ -0,0 +1,303 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.tracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import boofcv.abst.feature.tracker.PointTrack;
+import boofcv.abst.filter.derivative.ImageGradient;
+import boofcv.alg.feature.detect.interest.GeneralFeatureDetector;
+import boofcv.alg.interpolate.InterpolateRectangle;
+import boofcv.alg.tracker.klt.KltConfig;
+import boofcv.alg.tracker.klt.KltTrackFault;
+import boofcv.alg.tracker.klt.KltTracker;
+import boofcv.alg.tracker.klt.PyramidKltFeature;
+import boofcv.alg.tracker.klt.PyramidKltTracker;
+import boofcv.misc.BoofMiscOps;
+import boofcv.struct.QueueCorner;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.ImageGray;
+import boofcv.struct.pyramid.PyramidDiscrete;
+import georegression.struct.point.Point2D_I16;
+
+/**
+ * Pipelined two pass KLT tracker which distributes the work on a bounded pool of workers.
+ * Corners are detected in a fixed number of horizontal strips which overlap by a margin
+ * covering the detector's border and non-max radius. Features are tracked by the worker
+ * owning them, each worker with its own KLT tracker, interpolation and detector.
+ *
+ * The strip layout does not depend on the number of workers and the detected corners are
+ * merged and selected in a fixed order, so the results are deterministic for any number
+ * of threads.
+ *
+ * @author Eike Mansfeld
+ */
+public class PointTrackerTwoPassKltParallel<I extends ImageGray, D extends ImageGray>
+	extends PointTrackerTwoPassKltPipelined<I,D> {
+
+	private final int threads;
+	private final int strips;
+	private final int margin;
+	private final int maxFeatures;
+
+	private ExecutorService pool;
+	private List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	// per worker scratch
+	private List<PyramidKltTracker<I,D>>     trackers  = new ArrayList<PyramidKltTracker<I,D>>();
+	private List<GeneralFeatureDetector<I,D>> detectors = new ArrayList<GeneralFeatureDetector<I,D>>();
+	private List<StripBuffer<I,D>>           stripBuffers = new ArrayList<StripBuffer<I,D>>();
+
+	// per strip results
+	private QueueCorner[] stripFound;
+	private float[][]     stripIntensity;
+
+	// merged corners: intensity in the upper, inverted pixel index in the lower 32 bits
+	private long[]      candidates = new long[1024];
+	private QueueCorner selected   = new QueueCorner(100);
+
+	private boolean[]   success    = new boolean[256];
+
+	/**
+	 * @param config KLT tracker configuration
+	 * @param templateRadius Radius of square templates that are tracked
+	 * @param pyramid0 First pyramid buffer
+	 * @param pyramid1 Second pyramid buffer, configured like the first one
+	 * @param detectors One feature detector per worker, all configured the same way
+	 * @param gradient Computes gradient image pyramid.
+	 * @param interpInput One interpolation per worker used on input image
+	 * @param interpDeriv One interpolation per worker used on gradient images
+	 * @param maxFeatures Maximum number of features detected in the whole image
+	 * @param strips Number of horizontal strips the detection is split into
+	 * @param margin Overlap of strips in pixels
+	 */
+	public PointTrackerTwoPassKltParallel(KltConfig config, int templateRadius,
+			PyramidDiscrete<I> pyramid0, PyramidDiscrete<I> pyramid1,
+			List<GeneralFeatureDetector<I, D>> detectors,
+			ImageGradient<I, D> gradient,
+			List<InterpolateRectangle<I>> interpInput,
+			List<InterpolateRectangle<D>> interpDeriv,
+			int maxFeatures, int strips, int margin) {
+
+		super(config, templateRadius, pyramid0, pyramid1, detectors.get(0), gradient,
+				interpInput.get(0), interpDeriv.get(0));
+
+		this.threads     = detectors.size();
+		this.strips      = strips;
+		this.margin      = margin;
+		this.maxFeatures = maxFeatures;
+
+		// worker 0 is the calling thread and uses the tracker of the super class
+		this.trackers.add(tracker);
+		for(int i = 1; i < threads; i++ ) {
+			KltTracker<I, D> klt = new KltTracker<I, D>(interpInput.get(i), interpDeriv.get(i), config);
+			trackers.add(new PyramidKltTracker<I, D>(klt));
+		}
+
+		this.detectors.addAll(detectors);
+		for(int i = 0; i < threads; i++ )
+			stripBuffers.add(new StripBuffer<I,D>());
+
+		this.stripFound     = new QueueCorner[strips];
+		this.stripIntensity = new float[strips][];
+		for(int i = 0; i < strips; i++ ) {
+			stripFound[i]     = new QueueCorner(maxFeatures > 0 ? maxFeatures : 100);
+			stripIntensity[i] = new float[maxFeatures > 0 ? maxFeatures : 100];
+		}
+
+		if(threads > 1) {
+			pool = Executors.newFixedThreadPool(threads - 1, r -> {
+				Thread t = new Thread(r, "KLT worker");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	@Override
+	protected void trackFeatures() {
+		final int n = originalActive.size();
+		if(success.length < n)
+			success = new boolean[n*2];
+
+		for(int w = 0; w < threads; w++ )
+			trackers.get(w).setImage(front.pyramid, front.derivX, front.derivY);
+
+		runWorkers(w -> {
+			PyramidKltTracker<I,D> klt = trackers.get(w);
+			for( int i = w; i < n; i += threads ) {
+				PyramidKltFeature t = originalActive.get(i);
+				// discard a track if its center drifts outside the image.
+				success[i] = klt.track(t) == KltTrackFault.SUCCESS && BoofMiscOps.checkInside(input, t.x, t.y);
+			}
+		});
+
+		// collect results in the original order
+		for( int i = 0; i < n; i++ ) {
+			PyramidKltFeature t = originalActive.get(i);
+			if( success[i] ) {
+				active.add(t);
+				PointTrack p = t.getCookie();
+				p.set(t.x,t.y);
+			} else
+				candidateDrop.add(t);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected QueueCorner detectFeatures(QueueCorner exclude) {
+		final I  image  = front.pyramid.getLayer(0);
+		final D  derivX = front.derivX[0];
+		final D  derivY = front.derivY[0];
+
+		final int height = image.height;
+		final int stripHeight = (height + strips - 1) / strips;
+
+		runWorkers(w -> {
+			GeneralFeatureDetector<I,D> detector = detectors.get(w);
+			StripBuffer<I,D> buffer = stripBuffers.get(w);
+
+			for( int s = w; s < strips; s += threads ) {
+				int core0 = Math.min(height, s * stripHeight);
+				int core1 = Math.min(height, core0 + stripHeight);
+				int y0    = Math.max(0, core0 - margin);
+				int y1    = Math.min(height, core1 + margin);
+
+				QueueCorner found = stripFound[s];
+				found.reset();
+				if(core1 <= core0)
+					continue;
+
+				buffer.image  = (I)image.subimage(0, y0, image.width, y1, buffer.image);
+				buffer.derivX = (D)derivX.subimage(0, y0, derivX.width, y1, buffer.derivX);
+				buffer.derivY = (D)derivY.subimage(0, y0, derivY.width, y1, buffer.derivY);
+
+				// exclude active tracks which fall into the strip
+				buffer.exclude.reset();
+				for( int i = 0; i < exclude.size; i++ ) {
+					Point2D_I16 p = exclude.get(i);
+					if(p.y >= y0 && p.y < y1 && p.x >= 0 && p.x < image.width)
+						buffer.exclude.add(p.x, p.y - y0);
+				}
+
+				detector.setExcludeMaximum(buffer.exclude);
+				detector.process(buffer.image, buffer.derivX, buffer.derivY, null, null, null);
+
+				// keep only corners in the core of the strip
+				QueueCorner maximums = detector.getMaximums();
+				GrayF32 intensity = detector.getIntensity();
+				if(stripIntensity[s].length < maximums.size)
+					stripIntensity[s] = new float[maximums.size * 2];
+				for( int i = 0; i < maximums.size; i++ ) {
+					Point2D_I16 p = maximums.get(i);
+					int y = p.y + y0;
+					if(y >= core0 && y < core1) {
+						stripIntensity[s][found.size] = intensity.get(p.x, p.y);
+						found.add(p.x, y);
+					}
+				}
+			}
+		});
+
+		// merge strips in a fixed order and select the strongest corners
+		int count = 0;
+		for( int s = 0; s < strips; s++ )
+			count += stripFound[s].size;
+		if(candidates.length < count)
+			candidates = new long[count * 2];
+
+		count = 0;
+		for( int s = 0; s < strips; s++ ) {
+			QueueCorner found = stripFound[s];
+			for( int i = 0; i < found.size; i++ ) {
+				Point2D_I16 p = found.get(i);
+				int index = p.y * image.width + p.x;
+				candidates[count++] = ((long)Float.floatToIntBits(Math.max(0, stripIntensity[s][i])) << 32)
+						| (0xFFFFFFFFL - index);
+			}
+		}
+		Arrays.sort(candidates, 0, count);
+
+		int limit = count;
+		if( maxFeatures > 0 )
+			limit = Math.min(count, Math.max(0, maxFeatures - exclude.size));
+
+		selected.reset();
+		for( int i = count - 1; i >= count - limit; i-- ) {
+			int index = (int)(0xFFFFFFFFL - (candidates[i] & 0xFFFFFFFFL));
+			selected.add(index % image.width, index / image.width);
+		}
+		return selected;
+	}
+
+	/**
+	 * Runs the task for each worker. Worker 0 runs on the calling thread.
+	 */
+	private void runWorkers(WorkerTask task) {
+		pending.clear();
+		for( int w = 1; w < threads; w++ ) {
+			final int worker = w;
+			pending.add(pool.submit(() -> task.run(worker)));
+		}
+		task.run(0);
+		for( Future<?> f : pending ) {
+			try {
+				f.get();
+			} catch (Exception e) {
+				throw new RuntimeException("KLT worker failed: "+e.getMessage(), e);
+			}
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	private interface WorkerTask {
+		void run(int worker);
+	}
+
+	private static class StripBuffer<I extends ImageGray, D extends ImageGray> {
+		I image;
+		D derivX;
+		D derivY;
+		QueueCorner exclude = new QueueCorner(10);
+	}
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2011-2016, Peter Abeles, Eike Mansfeld. All Rights Reserved.
+ *
+ * This file is part of BoofCV (http://boofcv.org).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.comino.slam.boofcv.tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import boofcv.abst.feature.tracker.PointTrack;
+import boofcv.abst.filter.derivative.ImageGradient;
+import boofcv.alg.feature.detect.interest.GeneralFeatureDetector;
+import boofcv.alg.interpolate.InterpolateRectangle;
+import boofcv.alg.tracker.klt.KltConfig;
+import boofcv.alg.tracker.klt.KltTrackFault;
+import boofcv.alg.tracker.klt.KltTracker;
+import boofcv.alg.tracker.klt.PyramidKltFeature;
+import boofcv.alg.tracker.klt.PyramidKltTracker;
+import boofcv.alg.transform.pyramid.PyramidOps;
+import boofcv.misc.BoofMiscOps;
+import boofcv.struct.QueueCorner;
+import boofcv.struct.image.ImageGray;
+import boofcv.struct.pyramid.PyramidDiscrete;
+import georegression.struct.point.Point2D_I16;
+
+/**
+ * Two pass pyramid KLT tracker with double buffered image pyramids. The pyramid and
+ * its gradient for the next frame can be built by {@link #prepare(ImageGray)} on a
+ * second thread while the current frame is still tracked. {@link #process(ImageGray)}
+ * then just swaps the buffers. Images which have not been prepared are prepared
+ * synchronously, so the results are the same as with PointTrackerTwoPassKltPyramid.
+ *
+ * The back buffer is claimed by the image it was prepared for until that image is processed.
+ * {@link #prepare(ImageGray)} waits while the back buffer is claimed by another image or being
+ * built. Images are expected to be processed in the order they were prepared.
+ *
+ * @author Peter Abeles, modified by Eike Mansfeld
+ */
+public class PointTrackerTwoPassKltPipelined<I extends ImageGray, D extends ImageGray>
+	implements IPointTrackerTwoPassPipelined<I> {
+
+	// input image of the current frame
+	protected I input;
+
+	// computes the gradient of each pyramid layer
+	protected ImageGradient<I, D> gradient;
+
+	protected Class<D> derivType;
+
+	protected int templateRadius;
+
+	// double buffered pyramids, front is used for tracking. Binding of buffers to images is
+	// guarded by the buffers array
+	protected PyramidBuffer<I,D>[] buffers;
+	protected PyramidBuffer<I,D>   front;
+
+	// building a buffer is serialized, the gradient is shared
+	private final Object build_lock = new Object();
+
+	// list of features which are actively being tracked
+	protected List<PyramidKltFeature> active = new ArrayList<PyramidKltFeature>();
+	// list of features which were just spawned
+	protected List<PyramidKltFeature> spawned = new ArrayList<PyramidKltFeature>();
+	// list of features which were just dropped
+	protected List<PyramidKltFeature> dropped = new ArrayList<PyramidKltFeature>();
+	// feature data which can be recycled
+	protected List<PyramidKltFeature> unused = new ArrayList<PyramidKltFeature>();
+
+	// tracks features before the second pass
+	protected List<PyramidKltFeature> originalActive = new ArrayList<PyramidKltFeature>();
+	// features which might be dropped after the second pass
+	protected List<PyramidKltFeature> candidateDrop = new ArrayList<PyramidKltFeature>();
+
+	protected boolean finishedTracking;
+
+	// the tracker
+	protected PyramidKltTracker<I, D> tracker;
+
+	// selects point features
+	protected GeneralFeatureDetector<I, D> detector;
+	// list of corners which should be ignored by the corner detector
+	private QueueCorner excludeList = new QueueCorner(10);
+
+	// number of features tracked so far
+	private long totalFeatures = 0;
+
+	/**
+	 * Constructor which specified the KLT track manager and how the image pyramids are computed.
+	 *
+	 * @param config KLT tracker configuration
+	 * @param templateRadius Radius of square templates that are tracked
+	 * @param pyramid0 First pyramid buffer
+	 * @param pyramid1 Second pyramid buffer, configured like the first one
+	 * @param detector Feature detector.   If null then no feature detector will be available and spawn won't work.
+	 * @param gradient Computes gradient image pyramid.
+	 * @param interpInput Interpolation used on input image
+	 * @param interpDeriv Interpolation used on gradient images
+	 */
+	@SuppressWarnings("unchecked")
+	public PointTrackerTwoPassKltPipelined(KltConfig config, int templateRadius,
+			PyramidDiscrete<I> pyramid0, PyramidDiscrete<I> pyramid1,
+			GeneralFeatureDetector<I, D> detector,
+			ImageGradient<I, D> gradient,
+			InterpolateRectangle<I> interpInput,
+			InterpolateRectangle<D> interpDeriv) {
+
+		if( detector != null && detector.getRequiresHessian() )
+			throw new IllegalArgumentException("Hessian based feature detectors not yet supported");
+
+		this.templateRadius = templateRadius;
+		this.gradient = gradient;
+		this.derivType = gradient.getDerivativeType().getImageClass();
+		this.detector = detector;
+
+		this.buffers = new PyramidBuffer[] { new PyramidBuffer<I,D>(pyramid0), new PyramidBuffer<I,D>(pyramid1) };
+		this.front   = buffers[0];
+
+		KltTracker<I, D> klt = new KltTracker<I, D>(interpInput, interpDeriv, config);
+		tracker = new PyramidKltTracker<I, D>(klt);
+	}
+
+	/**
+	 * Builds the image pyramid and the gradients of the image into a back buffer. Can be
+	 * called from a different thread than {@link #process(ImageGray)}.
+	 *
+	 * @param image Image which will be passed to the next call of process
+	 */
+	@Override
+	public void prepare(I image) {
+		PyramidBuffer<I,D> b;
+		synchronized(buffers) {
+			while((b = backBuffer(image)) == null) {
+				try {
+					buffers.wait();
+				} catch (InterruptedException e) {
+					// process builds the pyramid itself
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			b.image    = image;
+			b.claimed  = true;
+			b.prepared = false;
+			b.building = true;
+		}
+		build(b, image);
+	}
+
+	/*
+	 * Back buffer if it is free or claimed by the image, null if it is claimed by another image
+	 */
+	private PyramidBuffer<I,D> backBuffer(I image) {
+		PyramidBuffer<I,D> b = buffers[0] == front ? buffers[1] : buffers[0];
+		if(b.building || (b.claimed && b.image != image))
+			return null;
+		return b;
+	}
+
+	private void build(PyramidBuffer<I,D> b, I image) {
+		synchronized(build_lock) {
+			b.pyramid.process(image);
+			if( b.derivX == null ) {
+				b.derivX = PyramidOps.declareOutput(b.pyramid, derivType);
+				b.derivY = PyramidOps.declareOutput(b.pyramid, derivType);
+			} else if( b.derivX[0].width != b.pyramid.getLayer(0).width ||
+					b.derivX[0].height != b.pyramid.getLayer(0).height ) {
+				PyramidOps.reshapeOutput(b.pyramid, b.derivX);
+				PyramidOps.reshapeOutput(b.pyramid, b.derivY);
+			}
+			PyramidOps.gradient(b.pyramid, gradient, b.derivX, b.derivY);
+		}
+		synchronized(buffers) {
+			b.building = false;
+			b.prepared = true;
+			buffers.notifyAll();
+		}
+	}
+
+	/*
+	 * Swaps in the back buffer as front. Waits for a prepare in progress, builds the pyramid
+	 * if the buffer has not been prepared for this image.
+	 */
+	private void swap(I image) {
+		PyramidBuffer<I,D> b;
+		boolean build;
+		boolean interrupted = false;
+		synchronized(buffers) {
+			b = buffers[0] == front ? buffers[1] : buffers[0];
+			while(b.building) {
+				try {
+					buffers.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			build = !(b.claimed && b.prepared && b.image == image);
+			b.image    = image;
+			b.claimed  = false;
+			b.prepared = false;
+			b.building = build;
+			front = b;
+			// the former front buffer is free now
+			buffers.notifyAll();
+		}
+		if(build)
+			build(b, image);
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void addTrackToUnused() {
+		int numLayers = front.pyramid.getNumLayers();
+		PyramidKltFeature t = new PyramidKltFeature(numLayers, templateRadius);
+
+		PointTrack p = new PointTrack();
+		p.setDescription(t);
+		t.cookie = p;
+
+		unused.add(t);
+	}
+
+	/**
+	 * Creates a new feature track at the specified location. Must only be called after
+	 * {@link #process(ImageGray)} has been called.
+	 *
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 * @return the new track if successful or null if no new track could be created
+	 */
+	public PointTrack addTrack( double x , double y ) {
+		if( !input.isInBounds((int)x,(int)y))
+			return null;
+
+		// grow the number of tracks if needed
+		if( unused.isEmpty() )
+			addTrackToUnused();
+
+		// TODO make sure the feature is inside the image
+
+		PyramidKltFeature t = unused.remove(unused.size() - 1);
+		t.setPosition((float)x,(float)y);
+		tracker.setDescription(t);
+
+		PointTrack p = t.getCookie();
+		p.set(x,y);
+
+		active.add(t);
+		return p;
+	}
+
+	@Override
+	public void spawnTracks() {
+		spawned.clear();
+
+		// used to convert it from the scale of the bottom layer into the original image
+		float scaleBottom = (float) front.pyramid.getScale(0);
+
+		// exclude active tracks
+		excludeList.reset();
+		for (int i = 0; i < active.size(); i++) {
+			PyramidKltFeature f = active.get(i);
+			excludeList.add((int) (f.x / scaleBottom), (int) (f.y / scaleBottom));
+		}
+
+		// find new tracks, but no more than the max
+		QueueCorner found = detectFeatures(excludeList);
+
+		// grow the number of tracks if needed
+		while( unused.size() < found.size() )
+			addTrackToUnused();
+
+		for (int i = 0; i < found.size() && !unused.isEmpty(); i++) {
+			Point2D_I16 pt = found.get(i);
+
+			// set up pyramid description
+			PyramidKltFeature t = unused.remove(unused.size() - 1);
+			t.x = pt.x * scaleBottom;
+			t.y = pt.y * scaleBottom;
+
+			tracker.setDescription(t);
+
+			// set up point description
+			PointTrack p = t.getCookie();
+			p.set(t.x,t.y);
+
+			p.featureId = totalFeatures++;
+			active.add(t);
+			spawned.add(t);
+		}
+	}
+
+	/**
+	 * Detects corners in the bottom layer of the current pyramid
+	 *
+	 * @param exclude Corners of active tracks which must not be detected again
+	 * @return Detected corners
+	 */
+	protected QueueCorner detectFeatures(QueueCorner exclude) {
+		detector.setExcludeMaximum(exclude);
+		detector.process(front.pyramid.getLayer(0), front.derivX[0], front.derivY[0], null, null, null);
+		return detector.getMaximums();
+	}
+
+	@Override
+	public void dropAllTracks() {
+		unused.addAll(active);
+		active.clear();
+		dropped.clear();
+	}
+
+	@Override
+	public void process(I image) {
+		this.input = image;
+
+		finishedTracking = false;
+		spawned.clear();
+		dropped.clear();
+
+		// swap in the pyramid of this image, build it now if it has not been prepared
+		swap(image);
+
+		// setup active list
+		originalActive.clear();
+		originalActive.addAll(active);
+
+		// track features
+		candidateDrop.clear();
+		active.clear();
+		tracker.setImage(front.pyramid, front.derivX, front.derivY);
+		trackFeatures();
+	}
+
+	@Override
+	public void performSecondPass() {
+		candidateDrop.clear();
+		active.clear();
+		trackFeatures();
+	}
+
+	/**
+	 * Tracks all features in originalActive. Successful tracks are added to the active list,
+	 * the others are candidates to be dropped.
+	 */
+	protected void trackFeatures() {
+		for( int i = 0; i < originalActive.size(); i++ ) {
+			PyramidKltFeature t = originalActive.get(i);
+			KltTrackFault ret = tracker.track(t);
+
+			boolean success = false;
+
+			if( ret == KltTrackFault.SUCCESS ) {
+				// discard a track if its center drifts outside the image.
+				if( BoofMiscOps.checkInside(input, t.x, t.y) ) {
+					active.add(t);
+					PointTrack p = t.getCookie();
+					p.set(t.x,t.y);
+					success = true;
+				}
+			}
+
+			if( !success ) {
+				candidateDrop.add(t);
+			}
+		}
+	}
+
+	@Override
+	public void finishTracking() {
+		// if any tracks were not updated then drop them
+		for (int i = 0; i < active.size(); ) {
+			PyramidKltFeature t = active.get(i);
+			if( tracker.setDescription(t) ) {
+				i++;
+			} else {
+				candidateDrop.add(t);
+				active.remove(i);
+			}
+		}
+
+		for (int i = 0; i < candidateDrop.size(); i++) {
+			PyramidKltFeature t = candidateDrop.get(i);
+			dropped.add(t);
+			unused.add(t);
+		}
+
+		finishedTracking = true;
+	}
+
+	@Override
+	public void setHint( double pixelX , double pixelY , PointTrack track ) {
+		PyramidKltFeature kt = track.getDescription();
+		kt.setPosition((float)pixelX,(float)pixelY);
+	}
+
+	@Override
+	public boolean dropTrack(PointTrack track) {
+		if( active.remove((PyramidKltFeature)track.getDescription()) ) {
+			// only recycle the description if it is in the active list. This avoids the problem of adding the
+			// same description multiple times
+			unused.add((PyramidKltFeature)track.getDescription());
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public List<PointTrack> getActiveTracks(List<PointTrack> list) {
+		if( list == null )
+			list = new ArrayList<PointTrack>();
+
+		addToList(active,list);
+
+		return list;
+	}
+
+	/**
+	 * KLT does not have inactive tracks since all tracks are dropped if a problem occurs.
+	 */
+	@Override
+	public List<PointTrack> getInactiveTracks(List<PointTrack> list) {
+		if( list == null )
+			list = new ArrayList<PointTrack>();
+
+		return list;
+	}
+
+	@Override
+	public List<PointTrack> getDroppedTracks(List<PointTrack> list) {
+		if( list == null )
+			list = new ArrayList<PointTrack>();
+
+		addToList(dropped,list);
+
+		return list;
+	}
+
+	@Override
+	public List<PointTrack> getNewTracks(List<PointTrack> list) {
+		if( list == null )
+			list = new ArrayList<PointTrack>();
+
+		addToList(spawned,list);
+
+		return list;
+	}
+
+	@Override
+	public List<PointTrack> getAllTracks( List<PointTrack> list ) {
+		if( list == null )
+			list = new ArrayList<PointTrack>();
+
+		if( finishedTracking )
+			addToList(active,list);
+		else
+			addToList(originalActive,list);
+
+		return list;
+	}
+
+	protected void addToList( List<PyramidKltFeature> in , List<PointTrack> out ) {
+		for( PyramidKltFeature t : in ) {
+			out.add( (PointTrack)t.cookie );
+		}
+	}
+
+	@Override
+	public void reset() {
+		dropAllTracks();
+		totalFeatures = 0;
+	}
+
+	protected static class PyramidBuffer<I extends ImageGray, D extends ImageGray> {
+
+		// image this buffer is bound to
+		I image;
+		// pyramid has been built but not yet been swapped in
+		boolean prepared;
+		// bound to an image which has not been processed yet
+		boolean claimed;
+		// pyramid is being built
+		boolean building;
+
+		PyramidDiscrete<I> pyramid;
+		D[] derivX;
+		D[] derivY;
+
+		PyramidBuffer(PyramidDiscrete<I> pyramid) {
+			this.pyramid = pyramid;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.boofcv.tracker;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import boofcv.abst.feature.detect.interest.ConfigGeneralDetector;
+import boofcv.abst.feature.tracker.PointTrack;
+import boofcv.abst.feature.tracker.PointTrackerTwoPass;
+import boofcv.alg.filter.blur.BlurImageOps;
+import boofcv.alg.misc.ImageMiscOps;
+import boofcv.alg.tracker.klt.PkltConfig;
+import boofcv.struct.image.GrayS16;
+import boofcv.struct.image.GrayU8;
+import georegression.struct.point.Point2D_F64;
+
+/**
+ * Compares the KLT and the BRIEF tracker on a synthetic sequence of a textured plane moving
+ * with increasing speed. Reports ms/frame for process, finishTracking and spawnTracks and the
+ * track survival, i.e. the fraction of the tracks of the previous frame which are still active
+ * and within 1.5 pixels of their true position. Only the first pass is used, as the second
+ * pass relies on the motion estimated from the first one.
+ *
+ * @author Eike Mansfeld
+ */
+public class TrackerBenchmark {
+
+	private static final int WIDTH    = 640;
+	private static final int HEIGHT   = 480;
+	private static final int FRAMES   = 40;
+	private static final int[] SPEEDS = { 2, 8, 16, 32 };
+
+	private static final int MAXTRACKS = 250;
+
+	private final GrayU8 world = new GrayU8(WIDTH + FRAMES * 32 + 10, HEIGHT + FRAMES * 16 + 10);
+	private final GrayU8 frame = new GrayU8(WIDTH, HEIGHT);
+
+	public TrackerBenchmark() {
+		Random rand = new Random(42);
+		GrayU8 noise = world.createSameShape();
+		ImageMiscOps.fillUniform(noise, rand, 0, 255);
+		BlurImageOps.gaussian(noise, world, 3, -1, null);
+		for(int i = 0; i < 4000; i++) {
+			ImageMiscOps.fillRectangle(world, rand.nextInt(256), rand.nextInt(world.width),
+					rand.nextInt(world.height), 4 + rand.nextInt(20), 4 + rand.nextInt(20));
+		}
+	}
+
+	public void run(String name, PointTrackerTwoPass<GrayU8> tracker) {
+		for(int speed : SPEEDS) {
+			Map<Long,Point2D_F64> previous = new HashMap<Long,Point2D_F64>();
+			long time = 0;
+			int  total = 0, survived = 0;
+
+			tracker.reset();
+			for(int i = 0; i < FRAMES; i++) {
+				int dx = i * speed, dy = i * speed / 2;
+				frame.setTo(world.subimage(dx, dy, dx + WIDTH, dy + HEIGHT, null));
+
+				long tms = System.nanoTime();
+				tracker.process(frame);
+				tracker.finishTracking();
+				tracker.spawnTracks();
+				time += System.nanoTime() - tms;
+
+				List<PointTrack> active = tracker.getActiveTracks(null);
+				if(i > 0) {
+					total += previous.size();
+					for(PointTrack t : active) {
+						Point2D_F64 p = previous.get(t.featureId);
+						if(p != null && Math.abs(p.x - speed - t.x) < 1.5 && Math.abs(p.y - speed / 2 - t.y) < 1.5)
+							survived++;
+					}
+				}
+				previous.clear();
+				for(PointTrack t : active)
+					previous.put(t.featureId, new Point2D_F64(t.x, t.y));
+			}
+			System.out.printf("%-6s speed %2d px/frame: %6.2f ms/frame, survival %5.1f%%\n", name, speed,
+					time / 1e6 / FRAMES, total > 0 ? 100.0 * survived / total : 0.0);
+		}
+	}
+
+	public static void main(String[] args) {
+		TrackerBenchmark benchmark = new TrackerBenchmark();
+
+		PkltConfig configKlt = new PkltConfig();
+		configKlt.pyramidScaling = new int[]{ 1, 4, 8 };
+		configKlt.templateRadius = 3;
+
+		PointTrackerTwoPass<GrayU8> klt = FactoryMAVPointTrackerTwoPass.kltPipelined(configKlt,
+				new ConfigGeneralDetector(MAXTRACKS, 3, 1f), GrayU8.class, GrayS16.class);
+		PointTrackerTwoPass<GrayU8> brief = FactoryMAVPointTrackerTwoPass.brief(new BriefTrackerConfig(),
+				new ConfigGeneralDetector(MAXTRACKS, 3, 1f));
+
+		// warm up
+		benchmark.run("klt", klt);
+		benchmark.run("brief", brief);
+		System.out.println();
+
+		benchmark.run("klt", klt);
+		benchmark.run("brief", brief);
+	}
+}
@@ -41,7 +41,10 @@ import boofcv.struct.image.Planar;
 
 public interface ISLAMDetector {
 
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray);
+	/**
+	 * @param frame_ns Capture time of the frame, System.nanoTime()
+	 */
+	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray, long frame_ns);
 	public void reset(float x,float y, float z);
 
 }
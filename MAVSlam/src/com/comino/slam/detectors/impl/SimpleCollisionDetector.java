@@ -50,15 +50,17 @@ import com.comino.msp.model.segment.LogMessage;
 import com.comino.server.mjpeg.impl.HttpMJPEGHandler;
 import com.comino.slam.boofcv.odometry.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.model.VehicleState;
+import com.comino.slam.model.VisionPoseHistory;
 
 import boofcv.abst.sfm.AccessPointTracks3D;
 import boofcv.struct.geo.Point2D3D;
 import boofcv.struct.image.GrayU16;
 import boofcv.struct.image.GrayU8;
+import georegression.geometry.GeometryMath_F64;
 import georegression.struct.point.Point2D_F64;
 import georegression.struct.point.Point3D_F64;
 import georegression.struct.se.Se3_F64;
-import georegression.transform.se.SePointOps_F64;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 
@@ -70,12 +72,19 @@ public class SimpleCollisionDetector implements ISLAMDetector {
 	private float     min_altitude     = 0.2f;
 
 	private DataModel     model        = null;
+
+	// consistent attitude and position for one frame
+	private VehicleState          vehicle      = null;
+	private VehicleState.Snapshot state        = new VehicleState.Snapshot();
+
+	// camera to world at the capture of the frame
+	private VisionPoseHistory     poses        = VisionPoseHistory.getInstance();
+	private Se3_F64               pose         = new Se3_F64();
+
 	private Point3D_F64   pos          = new Point3D_F64();
 	private Point3D_F64   p_ned        = new Point3D_F64();
 	private Point2D3D     center_ned   = new Point2D3D();
 
-	private Se3_F64 current         = new Se3_F64();
-
 	private long last_clean         = 0;
 
 	private BooleanProperty collision = new SimpleBooleanProperty(false);
@@ -85,6 +94,7 @@ public class SimpleCollisionDetector implements ISLAMDetector {
 	public SimpleCollisionDetector(IMAVMSPController control, MSPConfig config,HttpMJPEGHandler streamer) {
 
 		this.model    = control.getCurrentModel();
+		this.vehicle  = VehicleState.getInstance(control);
 		this.min_distance = config.getFloatProperty("min_distance", "1.25f");
 		System.out.println("[col] Collision distance set to "+min_distance);
 		this.min_altitude = config.getFloatProperty("min_altitude", "0.3f");
@@ -130,9 +140,16 @@ public class SimpleCollisionDetector implements ISLAMDetector {
 	}
 
 	@Override
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray) {
+	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray, long frame_ns) {
 		Point2D_F64 xy; Point3D_F64 p;
 
+		// position and attitude at the capture of the frame
+		vehicle.readAt(frame_ns, state);
+		if(poses.get(frame_ns, pose, null) < 0) {
+			pose.R.set(odometry.getCameraToWorld().R);
+			pose.T.set(state.l_y, state.l_z, state.l_x);
+		}
+
 		AccessPointTracks3D points = (AccessPointTracks3D)odometry;
 
 		nearestPoints.clear();
@@ -153,7 +170,6 @@ public class SimpleCollisionDetector implements ISLAMDetector {
 		}
 
 		center_ned.location.set(0,0,0); center_ned.observation.set(0,0);
-		current = odometry.getCameraToWorld();
 
 		for( int i = 0; i < points.getAllTracks().size(); i++ ) {
 			if(points.isInlier(i)) {
@@ -168,13 +184,13 @@ public class SimpleCollisionDetector implements ISLAMDetector {
 					n.setLocation(p);
 					n.setObservation(xy);
 
-					SePointOps_F64.transform(current,p,p_ned);
+					GeometryMath_F64.mult(pose.R,p,p_ned);
 
-					pos.x = p_ned.z + model.state.l_x - current.T.z;
-					pos.y = p_ned.x + model.state.l_y - current.T.x;
-					pos.z = -(p_ned.y - current.T.y) + model.state.l_z;
+					pos.x = p_ned.z + pose.T.z;
+					pos.y = p_ned.x + pose.T.x;
+					pos.z = -p_ned.y + pose.T.y;
 
-					if(Math.abs(pos.z - model.state.l_z) < 0.5 && model.raw.di >0.5) {
+					if(Math.abs(pos.z - pose.T.y) < 0.5 && state.di >0.5) {
 						model.grid.setBlock(pos.x , pos.y);
 					}
 
@@ -193,11 +209,11 @@ public class SimpleCollisionDetector implements ISLAMDetector {
 				return Double.compare(a.location.z,b.location.z);
 			});
 
-			pos.x =   center_ned.location.z + model.state.l_x - current.T.z;
-			pos.y =   center_ned.location.x + model.state.l_y - current.T.x;
-			pos.z = -(center_ned.location.y - current.T.y) + model.state.l_z;
+			pos.x =   center_ned.location.z + pose.T.z;
+			pos.y =   center_ned.location.x + pose.T.x;
+			pos.z = -center_ned.location.y  + pose.T.y;
 
-			if(Math.abs(pos.z - model.state.l_z) < 0.5 && model.raw.di >0.5) {
+			if(Math.abs(pos.z - pose.T.y) < 0.5 && state.di >0.5) {
 				model.grid.setIndicator(pos.x , pos.y);
 				collision.set(true);
 			} else
@@ -49,6 +49,8 @@ import com.comino.msp.utils.MSPMathUtils;
 import com.comino.server.mjpeg.impl.HttpMJPEGHandler;
 import com.comino.slam.boofcv.odometry.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.link.MAVLinkPublisher;
+import com.comino.slam.model.VehicleState;
 import com.comino.slam.vfh.VfhHist;
 import com.comino.slam.vfh.vfh2D.HistogramGrid2D;
 import com.comino.slam.vfh.vfh2D.PolarHistogram2D;
@@ -63,6 +65,11 @@ public class VfhDepthDetector implements ISLAMDetector, Runnable {
 	private float     min_altitude     = 0.2f;
 
 	private DataModel     model        = null;
+
+	// consistent attitude and position for the planner
+	private VehicleState          vehicle      = null;
+	private VehicleState.Snapshot plan_state   = new VehicleState.Snapshot();
+
 	private Point2D3D     test         = new Point2D3D();
 
 	private HistogramGrid2D  vfh = null;
@@ -74,6 +81,7 @@ public class VfhDepthDetector implements ISLAMDetector, Runnable {
 
 		this.control  = control;
 		this.model   = control.getCurrentModel();
+		this.vehicle  = VehicleState.getInstance(control);
 
 		this.min_distance = config.getFloatProperty("min_distance", "1.25f");
 		System.out.println("[col] Planning distance set to "+min_distance);
@@ -105,7 +113,7 @@ public class VfhDepthDetector implements ISLAMDetector, Runnable {
 	}
 
 	@Override
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray) {
+	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray, long frame_ns) {
 
 
 		test.setLocation(odometry.getPoint3DFromPixel(gray.width/2, gray.height/2));
@@ -118,9 +126,10 @@ public class VfhDepthDetector implements ISLAMDetector, Runnable {
 
 	@Override
 	public void run() {
-		poh.histUpdate(vfh.getMovingWindow(model.state.l_x, model.state.l_y));
+		vehicle.read(plan_state);
+		poh.histUpdate(vfh.getMovingWindow(plan_state.l_x, plan_state.l_y));
 		VfhHist smoothed = poh.histSmooth(5);
-		int vi = poh.selectValley(smoothed, (int)MSPMathUtils.fromRad(model.attitude.y));
+		int vi = poh.selectValley(smoothed, (int)MSPMathUtils.fromRad(plan_state.y));
 		vfh.forget();
 		vfh.transferGridToModel(model, 10, false);
 
@@ -129,7 +138,7 @@ public class VfhDepthDetector implements ISLAMDetector, Runnable {
 		msg.pd = MSPMathUtils.toRad(poh.getDirection(smoothed, vi, 18));
 		msg.pv = 0;
 		msg.tms = System.nanoTime() / 1000;
-		control.sendMAVLinkMessage(msg);
+		MAVLinkPublisher.send(control, msg, null);
 
 	}
 
@@ -58,6 +58,9 @@ import com.comino.msp.utils.MSPMathUtils;
 import com.comino.server.mjpeg.IVisualStreamHandler;
 import com.comino.slam.boofcv.odometry.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.link.MAVLinkPublisher;
+import com.comino.slam.model.VehicleState;
+import com.comino.slam.model.VisionPoseHistory;
 import com.comino.slam.vfh.VfhHist;
 import com.comino.slam.vfh.vfh2D.HistogramGrid2D;
 import com.comino.slam.vfh.vfh2D.PolarHistogram2D;
@@ -66,10 +69,10 @@ import boofcv.abst.sfm.AccessPointTracks3D;
 import boofcv.struct.geo.Point2D3D;
 import boofcv.struct.image.GrayU16;
 import boofcv.struct.image.GrayU8;
+import georegression.geometry.GeometryMath_F64;
 import georegression.struct.point.Point2D_F64;
 import georegression.struct.point.Point3D_F64;
 import georegression.struct.se.Se3_F64;
-import georegression.transform.se.SePointOps_F64;
 
 public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 
@@ -79,14 +82,22 @@ public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 	private float     min_altitude     = 0.2f;
 
 	private DataModel     model        = null;
+
+	// consistent attitude and position, one copy for the frame and one for the planner
+	private VehicleState          vehicle      = null;
+	private VehicleState.Snapshot state        = new VehicleState.Snapshot();
+
+	// camera to world at the capture of the frame
+	private VisionPoseHistory     poses        = VisionPoseHistory.getInstance();
+	private Se3_F64               pose         = new Se3_F64();
+	private VehicleState.Snapshot plan_state   = new VehicleState.Snapshot();
+
 	private Point3D_F64   pos          = new Point3D_F64();
 	private Point3D_F64   p_ned        = new Point3D_F64();
 	private Point2D3D     center_ned   = new Point2D3D();
 
 	private OffboardPositionUpdater offboard = null;
 
-	private Se3_F64 current         = new Se3_F64();
-
 	private HistogramGrid2D  vfh = null;
 	private PolarHistogram2D poh = null;
 
@@ -103,6 +114,7 @@ public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 
 		this.control  = control;
 		this.model   = control.getCurrentModel();
+		this.vehicle  = VehicleState.getInstance(control);
 
 		this.offboard = offboard;
 
@@ -152,15 +164,21 @@ public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 	}
 
 	@Override
-	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray) {
+	public void process(MAVDepthVisualOdometry<GrayU8,GrayU16> odometry, GrayU16 depth, GrayU8 gray, long frame_ns) {
 		Point2D_F64 xy; Point3D_F64 p;
 
+		// position and attitude at the capture of the frame
+		vehicle.readAt(frame_ns, state);
+		if(poses.get(frame_ns, pose, null) < 0) {
+			pose.R.set(odometry.getCameraToWorld().R);
+			pose.T.set(state.l_y, state.l_z, state.l_x);
+		}
+
 		AccessPointTracks3D points = (AccessPointTracks3D)odometry;
 
 		nearestPoints.clear();
 
 		center_ned.location.set(0,0,0); center_ned.observation.set(0,0);
-		current = odometry.getCameraToWorld();
 
 		for( int i = 0; i < points.getAllTracks().size(); i++ ) {
 			if(points.isInlier(i)) {
@@ -175,13 +193,13 @@ public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 					n.setLocation(p);
 					n.setObservation(xy);
 
-					SePointOps_F64.transform(current,p,p_ned);
+					GeometryMath_F64.mult(pose.R,p,p_ned);
 
-					pos.x = p_ned.z + model.state.l_x - current.T.z;
-					pos.y = p_ned.x + model.state.l_y - current.T.x;
-					pos.z = -(p_ned.y - current.T.y) + model.state.l_z;
+					pos.x = p_ned.z + pose.T.z;
+					pos.y = p_ned.x + pose.T.x;
+					pos.z = -p_ned.y + pose.T.y;
 
-					if(Math.abs(pos.z - model.state.l_z) < 0.5f && model.raw.di >min_altitude) {
+					if(Math.abs(pos.z - pose.T.y) < 0.5f && state.di >min_altitude) {
 						vfh.gridUpdate(pos);
 						nearestPoints.add(n);
 						center_ned.location.plusIP(p_ned);
@@ -202,7 +220,7 @@ public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 
 			// Jump back if potential collision found (only if in POSHOLD) and raw altitude > min_altitude
 			if(model.sys.isAutopilotMode(MSP_AUTOCONTROL_MODE.JUMPBACK)
-					&& model.sys.isStatus(Status.MSP_MODE_POSITION)) {
+					&& state.isStatus(Status.MSP_MODE_POSITION)) {
 				control.writeLogMessage(new LogMessage("[vis] JumpBack WOULD BE initiated",
 						MAV_SEVERITY.MAV_SEVERITY_WARNING));
 			}
@@ -217,9 +235,10 @@ public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 
 	@Override
 	public void run() {
-		poh.histUpdate(vfh.getMovingWindow(model.state.l_x, model.state.l_y));
+		vehicle.read(plan_state);
+		poh.histUpdate(vfh.getMovingWindow(plan_state.l_x, plan_state.l_y));
 		VfhHist smoothed = poh.histSmooth(5);
-		int vi = poh.selectValley(smoothed, (int)MSPMathUtils.fromRad(model.attitude.y));
+		int vi = poh.selectValley(smoothed, (int)MSPMathUtils.fromRad(plan_state.y));
 		model.debug.v1 = vi;
 		vfh.forget();
 		vfh.transferGridToModel(model, 10, false);
@@ -229,7 +248,7 @@ public class VfhFeatureDetector implements ISLAMDetector, Runnable {
 		msg.pd = MSPMathUtils.toRad(poh.getDirection(smoothed, vi, 18));
 		msg.pv = 0;
 		msg.tms = System.nanoTime() / 1000;
-		control.sendMAVLinkMessage(msg);
+		MAVLinkPublisher.send(control, msg, null);
 
 	}
 
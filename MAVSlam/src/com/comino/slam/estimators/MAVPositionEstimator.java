@@ -57,12 +57,18 @@ import com.comino.msp.model.segment.Status;
 import com.comino.msp.utils.MSPMathUtils;
 import com.comino.realsense.boofcv.RealSenseInfo;
 import com.comino.realsense.boofcv.StreamRealSenseVisDepth;
-import com.comino.realsense.boofcv.StreamRealSenseVisDepth.Listener;
 import com.comino.server.mjpeg.IVisualStreamHandler;
 import com.comino.server.mjpeg.impl.HttpMJPEGHandler;
+import com.comino.slam.boofcv.odometry.DepthSparse3DTable;
 import com.comino.slam.boofcv.odometry.FactoryMAVOdometry;
 import com.comino.slam.boofcv.odometry.MAVDepthVisualOdometry;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.pipeline.ConvertStage;
+import com.comino.slam.pipeline.DetectorStage;
+import com.comino.slam.pipeline.Frame;
+import com.comino.slam.pipeline.OdometryStage;
+import com.comino.slam.pipeline.Pipeline;
+import com.comino.slam.pipeline.StreamStage;
 
 import boofcv.abst.feature.detect.interest.ConfigGeneralDetector;
 import boofcv.abst.feature.tracker.PointTrackerTwoPass;
@@ -70,12 +76,10 @@ import boofcv.abst.sfm.AccessPointTracks3D;
 import boofcv.alg.distort.DoNothingPixelTransform_F32;
 import boofcv.alg.sfm.DepthSparse3D;
 import boofcv.alg.tracker.klt.PkltConfig;
-import boofcv.core.image.ConvertImage;
 import boofcv.factory.feature.tracker.FactoryPointTrackerTwoPass;
 import boofcv.struct.image.GrayS16;
 import boofcv.struct.image.GrayU16;
 import boofcv.struct.image.GrayU8;
-import boofcv.struct.image.Planar;
 import georegression.geometry.ConvertRotation3D_F64;
 import georegression.geometry.GeometryMath_F64;
 import georegression.struct.EulerType;
@@ -99,11 +103,15 @@ public class MAVPositionEstimator implements IPositionEstimator {
 	private static final int    INLIER_THRESHOLD    = 150;
 	private static final int    REFINE_ITERATIONS   = 400;
 
+	// frames in process, the odometry runs on the capturing thread
+	private static final int    PIPELINE_FRAMES     = 1;
+
 
 	private StreamRealSenseVisDepth realsense;
 	private MAVDepthVisualOdometry<GrayU8,GrayU16> visualOdometry;
 
-	private GrayU8 gray = null;
+	private Pipeline      pipeline      = null;
+	private DetectorStage detectorStage = null;
 
 	private double oldTimeDepth_us=0;
 	private double estTimeDepth_us=0;
@@ -133,6 +141,10 @@ public class MAVPositionEstimator implements IPositionEstimator {
 	private long fps_tms   =0;
 	private long init_tms  =0;
 
+	private double dt; private int mf=0; private int fpm; private float head_div;
+	private float ang_speed; private float odo_speed;
+	private int qual_error_count=0;
+
 	private DataModel model;
 
 	private boolean debug = false;
@@ -155,7 +167,6 @@ public class MAVPositionEstimator implements IPositionEstimator {
 	private boolean do_odometry = true;
 	private boolean do_speed    = true;
 
-	private long detector_tms = 0;
 	private int  detector_cycle_ms = 250;
 
 	private List<ISLAMDetector> 		detectors = null;
@@ -198,8 +209,6 @@ public class MAVPositionEstimator implements IPositionEstimator {
 
 		this.model = control.getCurrentModel();
 
-		gray = new GrayU8(info.width,info.height);
-
 		control.registerListener(msg_msp_command.class, new IMAVLinkListener() {
 			@Override
 			public void received(Object o) {
@@ -230,7 +239,7 @@ public class MAVPositionEstimator implements IPositionEstimator {
 				FactoryPointTrackerTwoPass.klt(configKlt, new ConfigGeneralDetector(MAXTRACKS, 1, 0.5f),
 						GrayU8.class, GrayS16.class);
 
-		DepthSparse3D<GrayU16> sparseDepth = new DepthSparse3D.I<GrayU16>(1e-3);
+		DepthSparse3D<GrayU16> sparseDepth = new DepthSparse3DTable<GrayU16>(1e-3);
 
 		visualOdometry = FactoryMAVOdometry.depthDepthPnP(1.5,
 				INLIER_THRESHOLD, RETIRE_THRESHOLD, RANSAC_ITERATIONS, REFINE_ITERATIONS, true,
@@ -250,191 +259,188 @@ public class MAVPositionEstimator implements IPositionEstimator {
 
 		init_count = 0;
 
-		realsense.registerListener(new Listener() {
-
-			double dt; int mf=0; int fpm; float head_div;
-			float ang_speed; float odo_speed;
-			int qual_error_count=0;
-
-			@Override
-			public void process(Planar<GrayU8> rgb, GrayU16 depth, long timeRgb, long timeDepth) {
-
-
-				if(dt >0) {
-					fpm += (int)(1f/dt+0.5f);
-					if((System.currentTimeMillis() - fps_tms) > 500) {
-						fps_tms = System.currentTimeMillis();
-						if(mf>0)
-							fps = fpm/mf;
-						mf=0; fpm=0;
-					}
-					mf++;
-				}
-
-				try {
-					ConvertImage.average(rgb, gray);
+		// the stream is fed off the odometry thread, the detectors run on frames with a valid pose
+		detectorStage = new DetectorStage(detectors, detector_cycle_ms, visualOdometry);
+		pipeline = new Pipeline.Builder(info.width, info.height, PIPELINE_FRAMES)
+				.add(new ConvertStage(null))
+				.branch("Vision stream", 1, 1, new StreamStage(streams, model))
+				.add(new OdometryStage(frame -> processFrame(frame)))
+				.add(detectorStage)
+				.build();
+		System.out.println("Vision pipeline: "+pipeline);
+
+		realsense.registerListener((rgb, depth, timeRgb, timeDepth) -> {
+			pipeline.process(rgb, depth, timeDepth);
+		});
 
-					for(IVisualStreamHandler stream : streams)
-						stream.addToStream(gray, depth, model, System.nanoTime()/1000);
+		init_tms = System.currentTimeMillis()+5000;
+	}
 
+	/*
+	 * Estimates and publishes the pose of the frame, returns false if the frame has no valid pose
+	 */
+	private boolean processFrame(Frame frame) {
+
+		if(dt >0) {
+			fpm += (int)(1f/dt+0.5f);
+			if((System.currentTimeMillis() - fps_tms) > 500) {
+				fps_tms = System.currentTimeMillis();
+				if(mf>0)
+					fps = fpm/mf;
+				mf=0; fpm=0;
+			}
+			mf++;
+		}
 
-					// Check PX4 rotation and reset odometry if rotating too fast
-					ang_speed = (float)Math.sqrt(model.attitude.pr * model.attitude.pr +
-							model.attitude.rr * model.attitude.rr +
-							model.attitude.yr * model.attitude.yr);
+		try {
+			// Check PX4 rotation and reset odometry if rotating too fast
+			ang_speed = (float)Math.sqrt(model.attitude.pr * model.attitude.pr +
+					model.attitude.rr * model.attitude.rr +
+					model.attitude.yr * model.attitude.yr);
+
+			if(ang_speed > MAX_ROT_SPEED) {
+				if(debug)
+					System.out.println("[vis] Rotation speed "+ang_speed+" > MAX");
+				init("Rotation speed");
+				return false;
+			}
 
-					if(ang_speed > MAX_ROT_SPEED) {
-						if(debug)
-							System.out.println("[vis] Rotation speed "+ang_speed+" > MAX");
-						init("Rotation speed");
-						return;
-					}
 
+			if( !visualOdometry.process(frame.gray,frame.depth)) {
+				if(debug)
+					System.out.println("[vis] Odometry failure");
+				init("Odometry");
+				return false;
+			}
 
-					if( !visualOdometry.process(gray,depth)) {
-						if(debug)
-							System.out.println("[vis] Odometry failure");
-						init("Odometry");
-						return;
-					}
+		} catch( Exception e) {
+			if(debug)
+				System.out.println("[vis] Odometry failure: "+e.getMessage());
+			init("Exception");
+		}
 
-				} catch( Exception e) {
-					if(debug)
-						System.out.println("[vis] Odometry failure: "+e.getMessage());
-					init("Exception");
-				}
+		quality = (int)(visualOdometry.getQuality() * 100f / MAXTRACKS);
+		if(quality > 100) quality = 100;
 
-				quality = (int)(visualOdometry.getQuality() * 100f / MAXTRACKS);
-				if(quality > 100) quality = 100;
+		if((System.currentTimeMillis()-init_tms) < INIT_TIME_MS) {
 
-				if((System.currentTimeMillis()-init_tms) < INIT_TIME_MS) {
+			if( quality > MIN_QUALITY) {
+				vis_init.getTranslation().z = vis_init.getTranslation().z * init_count + model.attitude.r;
+				vis_init.getTranslation().x = vis_init.getTranslation().x * init_count + model.attitude.p;
+				vis_init.getTranslation().y = vis_init.getTranslation().y * init_count + model.attitude.y;
 
-					if( quality > MIN_QUALITY) {
-						vis_init.getTranslation().z = vis_init.getTranslation().z * init_count + model.attitude.r;
-						vis_init.getTranslation().x = vis_init.getTranslation().x * init_count + model.attitude.p;
-						vis_init.getTranslation().y = vis_init.getTranslation().y * init_count + model.attitude.y;
+				vis_init.getTranslation().scale(1d/(++init_count));
 
-						vis_init.getTranslation().scale(1d/(++init_count));
+				//	ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
+				ConvertRotation3D_F64.eulerToMatrix(EulerType.XYZ,
+						vis_init.getTranslation().x,
+						vis_init.getTranslation().y,
+						vis_init.getTranslation().z,
+						visToNED.getRotation());
 
-						//	ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
-						ConvertRotation3D_F64.eulerToMatrix(EulerType.XYZ,
-								vis_init.getTranslation().x,
-								vis_init.getTranslation().y,
-								vis_init.getTranslation().z,
-								visToNED.getRotation());
+				speed_old.reset();
+				pos_ned.reset();
+				pos_raw_old.set(0,0,0);
+			} else {
+				init_tms = System.currentTimeMillis();
+			}
+			return false;
+		}
+		//
 
-						speed_old.reset();
-						pos_ned.reset();
-						pos_raw_old.set(0,0,0);
-					} else {
-						init_tms = System.currentTimeMillis();
-					}
-					return;
-				}
-				//
+		//estTimeDepth_us = timeDepth*1000;
+		estTimeDepth_us = System.nanoTime()/1000f;
+		if(oldTimeDepth_us>0)
+			dt = (estTimeDepth_us - oldTimeDepth_us)/1000000f;
+		oldTimeDepth_us = estTimeDepth_us;
 
-				//estTimeDepth_us = timeDepth*1000;
-				estTimeDepth_us = System.nanoTime()/1000f;
-				if(oldTimeDepth_us>0)
-					dt = (estTimeDepth_us - oldTimeDepth_us)/1000000f;
-				oldTimeDepth_us = estTimeDepth_us;
+		pos_raw = visualOdometry.getCameraToWorld().getT();
+		rot_raw.setRotation(visualOdometry.getCameraToWorld().getR());
 
-				pos_raw = visualOdometry.getCameraToWorld().getT();
-				rot_raw.setRotation(visualOdometry.getCameraToWorld().getR());
+		if(!pos_raw_old.isIdentical(0, 0, 0) && dt > 0) {
 
-				if(!pos_raw_old.isIdentical(0, 0, 0) && dt > 0) {
+			if(quality > MIN_QUALITY ) {
 
-					if(quality > MIN_QUALITY ) {
+				speed.reset();
+				// Add camera offset to pos_raw
+				pos_raw = pos_raw.plus(cam_offset.T);
 
-						speed.reset();
-						// Add camera offset to pos_raw
-						pos_raw = pos_raw.plus(cam_offset.T);
+				// speed.T = (pos_raw - pos_raw_old ) / dt
+				GeometryMath_F64.sub(pos_raw, pos_raw_old, speed.T);
+				speed.T.scale(1d/dt);
 
-						// speed.T = (pos_raw - pos_raw_old ) / dt
-						GeometryMath_F64.sub(pos_raw, pos_raw_old, speed.T);
-						speed.T.scale(1d/dt);
+			} else {
+				if(++qual_error_count > 5) {
+					qual_error_count=0;
+					if(debug)
+						System.out.println("[vis] Quality "+quality+" < Min");
+					init("Quality");
+				}
+				return false;
+			}
 
-					} else {
-						if(++qual_error_count > 5) {
-							qual_error_count=0;
-							if(debug)
-								System.out.println("[vis] Quality "+quality+" < Min");
-							init("Quality");
-						}
-						return;
-					}
+			if(low_pass > 0) {
+				// Low pass speed.T = speed.T * (1 - low_pass) + old_speed.T * low_pass
+				speed.T.scale(1-low_pass); speed_old.T.scale(low_pass);
+				speed.T.plusIP(speed_old.T);
+			}
 
-					if(low_pass > 0) {
-						// Low pass speed.T = speed.T * (1 - low_pass) + old_speed.T * low_pass
-						speed.T.scale(1-low_pass); speed_old.T.scale(low_pass);
-						speed.T.plusIP(speed_old.T);
-					}
+			odo_speed = (float) speed.T.norm();
+			speed_old.T.set(speed.T);
 
-					odo_speed = (float) speed.T.norm();
-					speed_old.T.set(speed.T);
+			if(odo_speed < MAX_SPEED) {
 
-					if(odo_speed < MAX_SPEED) {
+				// pos_delta.T = speed.T * dt
+				pos_delta.T.set(speed.T); pos_delta.T.scale(dt);
+				// rotate to NED
+				pos_delta.concat(visToNED, pos_delta_ned);
+				speed.concat(visToNED, speed_ned);
 
-						// pos_delta.T = speed.T * dt
-						pos_delta.T.set(speed.T); pos_delta.T.scale(dt);
-						// rotate to NED
-						pos_delta.concat(visToNED, pos_delta_ned);
-						speed.concat(visToNED, speed_ned);
 
+			} else {
+				init("Odometry speed");
+				return false;
+			}
 
-					} else {
-						init("Odometry speed");
-						return;
-					}
+			// pos.T = pos.T + pos_delta.T
+			pos_ned.T.plusIP(pos_delta_ned.T);
 
-					// pos.T = pos.T + pos_delta.T
-					pos_ned.T.plusIP(pos_delta_ned.T);
+			// Get rotations based on vision 0=roll,1=pitch,2=yaw
+			rot_raw.concat(visToNED, rot_ned);
 
-					// Get rotations based on vision 0=roll,1=pitch,2=yaw
-					rot_raw.concat(visToNED, rot_ned);
+			ConvertRotation3D_F64.matrixToEuler(rot_ned.R, EulerType.ZXY, visAttitude);
 
-					ConvertRotation3D_F64.matrixToEuler(rot_ned.R, EulerType.ZXY, visAttitude);
+			// Attitude low pass
+			if(low_pass_a > 0) {
+				for(int i=0;i<3;i++) {
+					visAttitude[i] = visAttitude[i] * (1 - low_pass_a) + visAttitude_old[i] * (low_pass_a);
+					visAttitude_old[i] = visAttitude[i];
+				}
+			}
 
-					// Attitude low pass
-					if(low_pass_a > 0) {
-						for(int i=0;i<3;i++) {
-							visAttitude[i] = visAttitude[i] * (1 - low_pass_a) + visAttitude_old[i] * (low_pass_a);
-							visAttitude_old[i] = visAttitude[i];
-						}
-					}
+			// In landed state be more accurate
+			head_div = model.sys.isStatus(Status.MSP_LANDED) ? 0.1f : 0.1f;
 
-					// In landed state be more accurate
-					head_div = model.sys.isStatus(Status.MSP_LANDED) ? 0.1f : 0.1f;
+			if(Math.abs(visAttitude[2] - model.attitude.y) > head_div) {
+				if(debug)
+					System.out.println("[vis] Heading not valid");
+				init("Heading div.");
+				return false;
+			}
 
-					if(Math.abs(visAttitude[2] - model.attitude.y) > head_div) {
-						if(debug)
-							System.out.println("[vis] Heading not valid");
-						init("Heading div.");
-						return;
-					}
 
+		}
+		pos_raw_old.set(pos_raw);
 
-				}
-				pos_raw_old.set(pos_raw);
-
-				if(control!=null) {
-					if(error_count < MAX_ERRORS)
-						publishPX4Vision();
-					LockSupport.parkNanos(2000000);
-					error_count=0;
-					publisMSPVision();
-				}
+		if(control!=null) {
+			if(error_count < MAX_ERRORS)
+				publishPX4Vision();
+			LockSupport.parkNanos(2000000);
+			error_count=0;
+			publisMSPVision();
+		}
 
-				if(detectors.size()>0 && detector_cycle_ms>0) {
-					if((System.currentTimeMillis() - detector_tms) > detector_cycle_ms) {
-						detector_tms = System.currentTimeMillis();
-						for(ISLAMDetector d : detectors)
-							d.process(visualOdometry, depth, gray);
-					}
-				}
-			}
-		});
-		init_tms = System.currentTimeMillis()+5000;
+		return true;
 	}
 
 	private void overlayFeatures(Graphics ctx) {
@@ -478,6 +484,7 @@ public class MAVPositionEstimator implements IPositionEstimator {
 	public void start() {
 		isRunning = true; init_tms=0;
 		init("StartUp");
+		pipeline.start();
 		if(realsense!=null)
 			realsense.start();
 	}
@@ -489,6 +496,7 @@ public class MAVPositionEstimator implements IPositionEstimator {
 	public void stop() {
 		if(isRunning) {
 			realsense.stop();
+			pipeline.stop();
 			publisMSPVision();
 		}
 		isRunning=false;
@@ -528,7 +536,7 @@ public class MAVPositionEstimator implements IPositionEstimator {
 				publisMSPVision();
 
 				if(detectors.size()>0) {
-					detector_tms = System.currentTimeMillis();
+					detectorStage.reset();
 					for(ISLAMDetector d : detectors)
 						d.reset(model.state.l_x, model.state.l_y, model.state.l_z);
 				}
@@ -35,10 +35,14 @@ package com.comino.slam.estimators;
 
 
 import java.awt.Graphics;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
 
+import org.mavlink.messages.MAVLinkMessage;
 import org.mavlink.messages.MAV_SEVERITY;
 import org.mavlink.messages.MSP_CMD;
 import org.mavlink.messages.MSP_COMPONENT_CTRL;
@@ -54,28 +58,48 @@ import com.comino.msp.model.DataModel;
 import com.comino.msp.model.segment.LogMessage;
 import com.comino.msp.model.segment.State;
 import com.comino.msp.model.segment.Status;
+import com.comino.msp.utils.ExecutorService;
 import com.comino.msp.utils.MSPMathUtils;
 import com.comino.realsense.boofcv.RealSenseInfo;
 import com.comino.realsense.boofcv.StreamRealSenseVisDepth;
-import com.comino.realsense.boofcv.StreamRealSenseVisDepth.Listener;
 import com.comino.server.mjpeg.IVisualStreamHandler;
+import com.comino.slam.boofcv.keyframe.KeyFrame;
+import com.comino.slam.boofcv.keyframe.KeyFrameConfig;
+import com.comino.slam.boofcv.keyframe.KeyFrameDatabase;
+import com.comino.slam.boofcv.keyframe.KeyFrameRelocalizer;
+import com.comino.slam.boofcv.keyframe.LoopClosure;
+import com.comino.slam.boofcv.odometry.BundleAdjustmentConfig;
+import com.comino.slam.boofcv.odometry.DepthICPConfig;
+import com.comino.slam.boofcv.odometry.DepthSparse3DTable;
 import com.comino.slam.boofcv.odometry.FactoryMAVOdometry;
+import com.comino.slam.boofcv.odometry.LocalBundleAdjustment;
 import com.comino.slam.boofcv.odometry.MAVDepthVisualOdometry;
+import com.comino.slam.boofcv.tracker.BriefTrackerConfig;
 import com.comino.slam.boofcv.tracker.FactoryMAVPointTrackerTwoPass;
+import com.comino.slam.boofcv.tracker.IPointTrackerTwoPassPipelined;
 import com.comino.slam.detectors.ISLAMDetector;
+import com.comino.slam.link.IMAVLinkRecycler;
+import com.comino.slam.link.MAVLinkMessagePool;
+import com.comino.slam.link.MAVLinkPublisher;
+import com.comino.slam.model.ClockOffset;
+import com.comino.slam.model.VehicleState;
+import com.comino.slam.model.VisionPoseHistory;
+import com.comino.slam.pipeline.ConvertStage;
+import com.comino.slam.pipeline.DetectorStage;
+import com.comino.slam.pipeline.Frame;
+import com.comino.slam.pipeline.OdometryStage;
+import com.comino.slam.pipeline.Pipeline;
+import com.comino.slam.pipeline.StreamStage;
 
 import boofcv.abst.feature.detect.interest.ConfigGeneralDetector;
-import boofcv.abst.feature.tracker.PointTrackerTwoPass;
 import boofcv.abst.sfm.AccessPointTracks3D;
 import boofcv.alg.distort.DoNothingPixelTransform_F32;
 import boofcv.alg.sfm.DepthSparse3D;
 import boofcv.alg.tracker.klt.PkltConfig;
-import boofcv.core.image.ConvertImage;
 import boofcv.factory.feature.tracker.FactoryPointTrackerTwoPass;
 import boofcv.struct.image.GrayS16;
 import boofcv.struct.image.GrayU16;
 import boofcv.struct.image.GrayU8;
-import boofcv.struct.image.Planar;
 import georegression.geometry.ConvertRotation3D_F64;
 import georegression.geometry.GeometryMath_F64;
 import georegression.struct.EulerType;
@@ -89,20 +113,43 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 
 	private static final int    MAX_SPEED    	    = 20;
 
+	// velocity fitted to the positions of the last frames
+	private static final int    VELOCITY_WINDOW     = 6;
+	private static final double VELOCITY_MAX_AGE_S  = 0.3;
+	private static final double VELOCITY_MIN_GATE   = 0.05;
+
+	// poses are not extrapolated further than this
+	private static final int    MAX_PREDICTION_MS   = 100;
+
 	private static final float  INLIER_PIXEL_TOL    = 1.3f;
 	private static final int    MAXTRACKS   		= 250;
 	private static final int    KLT_RADIUS          = 3;
 	private static final float  KLT_THRESHOLD       = 1f;
+	private static final int    BRIEF_RADIUS        = 3;
+	private static final float  BRIEF_THRESHOLD     = 1f;
 	private static final int    RANSAC_ITERATIONS   = 120;
 	private static final int    RETIRE_THRESHOLD    = 10;
 	private static final int    INLIER_THRESHOLD    = 120;
 	private static final int    REFINE_ITERATIONS   = 50;
+	private static final int    REFIT_ITERATIONS    = 2;
+	// per frame effort if the key frames are refined by the bundle adjustment
+	private static final int    RANSAC_ITERATIONS_BA = 60;
+	private static final int    REFINE_ITERATIONS_BA = 10;
+
+	// gaps between published poses longer than this count as time without pose
+	private static final int    MAX_POSE_GAP_MS     = 100;
+
+	// minimum time between two messages sent by the vision thread
+	private static final int    PUBLISH_PACING_MS   = 2;
+	// frames in process, the pipelined trackers double buffer their pyramids
+	private static final int    PIPELINE_FRAMES     = 2;
+	// messages per type: filled, queued and sent
+	private static final int    MESSAGE_POOL_SIZE   = 3;
 
 
 	private StreamRealSenseVisDepth realsense;
 	private MAVDepthVisualOdometry<GrayU8,GrayU16> visualOdometry;
-
-	private GrayU8 gray = null;
+	private MAVDepthVisualOdometry<GrayU8,GrayU16> fallbackOdometry = null;
 
 	private double oldTimeDepth_us=0;
 	private double estTimeDepth_us=0;
@@ -111,6 +158,21 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 	private Vector3D_F64 pos_raw_old = new Vector3D_F64();
 
 	private Se3_F64 speed_ned        = new Se3_F64();
+	private VelocityEstimator velocity = new VelocityEstimator(VELOCITY_WINDOW, VELOCITY_MAX_AGE_S, VELOCITY_MIN_GATE);
+
+	// published poses are extrapolated from the capture of the frame to the time they are sent
+	private PosePredictor predictor     = new PosePredictor(MAX_PREDICTION_MS);
+	private Vector3D_F64  predicted_pos = new Vector3D_F64();
+	private Vector3D_F64  predicted_vel = new Vector3D_F64();
+	private double[]      predicted_att = new double[3];
+	private float[]       rates         = new float[3];
+	private long          frame_ns      = 0;
+	// maps the timestamps of the camera to System.nanoTime()
+	private ClockOffset   camera_clock  = new ClockOffset();
+
+	// poses by capture time for consumers behind the frame
+	private VisionPoseHistory poses      = VisionPoseHistory.getInstance();
+	private Se3_F64           frame_pose = new Se3_F64();
 	private Se3_F64 speed_old        = new Se3_F64();
 	private Se3_F64 pos_delta        = new Se3_F64();
 	private Se3_F64 pos_ned          = new Se3_F64();
@@ -128,10 +190,20 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 
 	private long last_pos_tms        = 0;
 	private long last_speed_tms      = 0;
+	// fixed rate of the vision pose, 0 if published per frame
+	private int  pub_rate            = 0;
+	private int  pub_interval_ms     = 20;
+	private ScheduledFuture<?> pub_task = null;
 	private long last_msp_tms        = 0;
 
 	private DataModel model;
 
+	// consistent attitude and position, one copy per frame and one for each other thread
+	private VehicleState          vehicle;
+	private VehicleState.Snapshot state      = new VehicleState.Snapshot();
+	private VehicleState.Snapshot init_state = new VehicleState.Snapshot();
+	private VehicleState.Snapshot rate_state = new VehicleState.Snapshot();
+
 	private boolean debug = false;
 	private boolean heading_init_enabled = false;
 
@@ -145,6 +217,15 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 	private int     initialized_count  = 0;
 
 	private IMAVMSPController control;
+	private MAVLinkPublisher  publisher = null;
+
+	// published messages are reused
+	private final MAVLinkMessagePool<msg_vision_position_estimate> pool_position =
+			new MAVLinkMessagePool<>(MESSAGE_POOL_SIZE, () -> new msg_vision_position_estimate(1,2));
+	private final MAVLinkMessagePool<msg_vision_speed_estimate>    pool_speed    =
+			new MAVLinkMessagePool<>(MESSAGE_POOL_SIZE, () -> new msg_vision_speed_estimate(1,2));
+	private final MAVLinkMessagePool<msg_msp_vision>               pool_msp      =
+			new MAVLinkMessagePool<>(MESSAGE_POOL_SIZE, () -> new msg_msp_vision(2,1));
 
 	private int error_count = 0;
 
@@ -152,7 +233,6 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 	private boolean do_odometry = true;
 	private boolean do_speed    = true;
 
-	private long detector_tms = 0;
 	private int  detector_cycle_ms = 250;
 
 	private List<ISLAMDetector> 		detectors = null;
@@ -160,6 +240,63 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 	private RealSenseInfo info;
 	private String last_reason;
 
+	private double dt;
+	private boolean dt_updated;
+	private int mf=0; private int fpm;
+	private int qual_error_count=0;
+
+	private boolean pipelined = true;
+	private int     tracker_threads = 1;
+	private String  tracker_type = "klt";
+	private String  odometry_type = "pnp";
+	private Pipeline      pipeline      = null;
+	private DetectorStage detectorStage = null;
+
+	// sliding window bundle adjustment of the key frames, pnp odometry only
+	private boolean do_bundle_adjustment = false;
+	private boolean single_precision = false;
+	private boolean depth_weighted = false;
+	private LocalBundleAdjustment bundleAdjustment = null;
+	private Vector3D_F64 ba_correction = new Vector3D_F64();
+	private Vector3D_F64 ba_next       = new Vector3D_F64();
+	private int          ba_version    = 0;
+
+	// hot-standby odometry bridging the re-initialization of the primary odometry
+	private boolean      do_fallback        = false;
+	private boolean      fallback_active    = false;
+	private boolean      fallback_valid     = false;
+	private boolean      fallback_has_delta = false;
+	private boolean      pose_valid         = false;
+	private long         fallback_tms       = 0;
+	private Vector3D_F64 fallback_raw_old   = new Vector3D_F64();
+	private Vector3D_F64 fallback_delta     = new Vector3D_F64();
+
+	// keep tracks on resets caused by a single bad estimate
+	private boolean do_soft_reset = true;
+	private OdometryResetStatistics resets = new OdometryResetStatistics();
+
+	// relocalization against keyframes seen before a reset
+	private boolean             do_relocalize  = false;
+	private boolean             relocalized    = false;
+	private KeyFrameRelocalizer relocalizer    = null;
+	private KeyFrameDatabase    keyframe_db    = null;
+	private String              keyframe_db_path = "";
+	private Se3_F64             keyframe_pose  = new Se3_F64();
+
+	// loop closure on the keyframes, corrections are applied as a shift of the position
+	private boolean             do_loop_closure = false;
+	private LoopClosure         loopClosure     = null;
+	private Vector3D_F64        loop_correction = new Vector3D_F64();
+	private Vector3D_F64        loop_next       = new Vector3D_F64();
+	private int                 loop_version    = 0;
+	private boolean             new_segment     = true;
+
+	// time without published pose
+	private long last_pose_tms  = 0;
+	private long no_pose_ms     = 0;
+	private long max_no_pose_ms = 0;
+	private IPointTrackerTwoPassPipelined<GrayU8> tracker;
+
 
 	public MAVPositionEstimatorAttitude(RealSenseInfo info, IMAVMSPController control, MSPConfig config, IVisualStreamHandler stream) {
 
@@ -183,6 +320,39 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 		System.out.println("Vision publishes speed: "+do_speed);
 		this.do_position = config.getBoolProperty("vision_pub_pos", "true");
 		System.out.println("Vision publishes position: "+do_position);
+		if(config.getBoolProperty("vision_pub_async", "false") && control!=null)
+			this.publisher = MAVLinkPublisher.getInstance(control, config);
+		System.out.println("Vision publishes asynchronously: "+(publisher!=null));
+		this.pub_rate = config.getIntProperty("vision_pub_rate", "0");
+		if(pub_rate > 0) {
+			this.pub_interval_ms = 1000 / pub_rate / 2;
+			System.out.println("Vision publishes extrapolated pose at "+pub_rate+"Hz");
+		}
+		this.pipelined   = config.getBoolProperty("vision_pipelined", "true");
+		System.out.println("Vision pipelined tracking: "+pipelined);
+		this.tracker_threads = config.getIntProperty("vision_tracker_threads", "1");
+		System.out.println("Vision tracker threads: "+tracker_threads);
+		this.tracker_type = config.getProperty("vision_tracker", "klt");
+		System.out.println("Vision tracker: "+tracker_type);
+		this.odometry_type = config.getProperty("vision_odometry", "pnp");
+		System.out.println("Vision odometry: "+odometry_type);
+		this.do_fallback = config.getBoolProperty("vision_fallback", "false");
+		System.out.println("Vision fallback odometry: "+do_fallback);
+		this.single_precision = config.getBoolProperty("vision_single_precision", "false");
+		System.out.println("Vision single precision motion estimation: "+single_precision);
+		this.depth_weighted = config.getBoolProperty("vision_depth_weighted", "false");
+		System.out.println("Vision depth weighted reprojection: "+depth_weighted);
+		this.do_bundle_adjustment = config.getBoolProperty("vision_bundle_adjustment", "false");
+		System.out.println("Vision bundle adjustment: "+do_bundle_adjustment);
+		this.do_soft_reset = config.getBoolProperty("vision_soft_reset", "true");
+		System.out.println("Vision soft reset: "+do_soft_reset);
+		this.do_relocalize = config.getBoolProperty("vision_relocalize", "false");
+		System.out.println("Vision relocalization: "+do_relocalize);
+		this.keyframe_db_path = config.getProperty("vision_keyframe_db", "");
+		if(do_relocalize && !keyframe_db_path.isEmpty())
+			System.out.println("Vision keyframe database: "+keyframe_db_path);
+		this.do_loop_closure = do_relocalize && config.getBoolProperty("vision_loop_closure", "false");
+		System.out.println("Vision loop closure: "+do_loop_closure);
 
 
 		this.detector_cycle_ms = config.getIntProperty("vision_detector_cycle", "0");
@@ -197,8 +367,7 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 		System.out.println("Resolution: "+info.width+"x"+info.height);
 
 		this.model = control.getCurrentModel();
-
-		gray = new GrayU8(info.width,info.height);
+		this.vehicle = VehicleState.getInstance(control);
 
 		control.registerListener(msg_msp_command.class, new IMAVLinkListener() {
 			@Override
@@ -229,22 +398,74 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 			realsense = new StreamRealSenseVisDepth(0,info);
 		} catch(Exception e) {	}
 
-		PkltConfig configKlt = new PkltConfig();
-		configKlt.pyramidScaling = new int[]{ 1, 4, 8 };
-		configKlt.templateRadius = 3;
+		if(odometry_type.equalsIgnoreCase("icp")) {
+			DepthICPConfig configIcp = new DepthICPConfig();
+			configIcp.threads = tracker_threads;
+			// quality of 100 if all points are associated
+			visualOdometry = FactoryMAVOdometry.depthICP(configIcp, MAXTRACKS / 3.0, GrayU8.class);
+		} else {
+
+			PkltConfig configKlt = new PkltConfig();
+			configKlt.pyramidScaling = new int[]{ 1, 4, 8 };
+			configKlt.templateRadius = 3;
+
+			if(tracker_type.equalsIgnoreCase("brief"))
+				tracker = FactoryMAVPointTrackerTwoPass.brief(new BriefTrackerConfig(),
+						new ConfigGeneralDetector(MAXTRACKS, BRIEF_RADIUS, BRIEF_THRESHOLD));
+			else
+				tracker = FactoryMAVPointTrackerTwoPass.kltParallel(configKlt, new ConfigGeneralDetector(MAXTRACKS, KLT_RADIUS, KLT_THRESHOLD),
+						tracker_threads, GrayU8.class, GrayS16.class);
+
+			DepthSparse3D<GrayU16> sparseDepth = new DepthSparse3DTable<GrayU16>(1e-3);
+
+			if(odometry_type.equalsIgnoreCase("3d"))
+				visualOdometry = FactoryMAVOdometry.depthDepth3D(INLIER_PIXEL_TOL,
+						INLIER_THRESHOLD, RETIRE_THRESHOLD, RANSAC_ITERATIONS, REFIT_ITERATIONS, true,
+						sparseDepth, tracker, GrayU8.class, GrayU16.class);
+			else if(do_bundle_adjustment) {
+				// drift is reduced by the bundle adjustment, so less effort is spent per frame
+				bundleAdjustment = new LocalBundleAdjustment(new BundleAdjustmentConfig());
+				visualOdometry = FactoryMAVOdometry.depthDepthPnP(INLIER_PIXEL_TOL,
+						INLIER_THRESHOLD, RETIRE_THRESHOLD, RANSAC_ITERATIONS_BA, REFINE_ITERATIONS_BA, true,
+						single_precision, depth_weighted, sparseDepth, tracker, bundleAdjustment, GrayU8.class, GrayU16.class);
+			}
+			else
+				visualOdometry = FactoryMAVOdometry.depthDepthPnP(INLIER_PIXEL_TOL,
+						INLIER_THRESHOLD, RETIRE_THRESHOLD, RANSAC_ITERATIONS, REFINE_ITERATIONS, true,
+						single_precision, depth_weighted, sparseDepth, tracker, null, GrayU8.class, GrayU16.class);
+		}
 
-		PointTrackerTwoPass<GrayU8> tracker =
-				FactoryMAVPointTrackerTwoPass.klt(configKlt, new ConfigGeneralDetector(MAXTRACKS, KLT_RADIUS, KLT_THRESHOLD),
-						GrayU8.class, GrayS16.class);
+		visualOdometry.setCalibration(realsense.getIntrinsics(),new DoNothingPixelTransform_F32());
+		if(bundleAdjustment!=null)
+			bundleAdjustment.setCalibration(realsense.getIntrinsics());
 
-		DepthSparse3D<GrayU16> sparseDepth = new DepthSparse3D.I<GrayU16>(1e-3);
+		// depth only odometry does not depend on texture and is cheap enough to run on each frame
+		if(do_fallback && !odometry_type.equalsIgnoreCase("icp")) {
+			fallbackOdometry = FactoryMAVOdometry.depthICP(new DepthICPConfig(), MAXTRACKS / 3.0, GrayU8.class);
+			fallbackOdometry.setCalibration(realsense.getIntrinsics(),new DoNothingPixelTransform_F32());
+		}
 
+		if(do_relocalize) {
+			KeyFrameConfig configKeyFrame = new KeyFrameConfig();
+			relocalizer = new KeyFrameRelocalizer(configKeyFrame);
+			relocalizer.setCalibration(realsense.getIntrinsics());
 
-		visualOdometry = FactoryMAVOdometry.depthDepthPnP(INLIER_PIXEL_TOL,
-				INLIER_THRESHOLD, RETIRE_THRESHOLD, RANSAC_ITERATIONS, REFINE_ITERATIONS, true,
-				sparseDepth, tracker, GrayU8.class, GrayU16.class);
+			// keyframes of earlier flights, the files are mapped and not read at startup
+			if(!keyframe_db_path.isEmpty()) {
+				try {
+					keyframe_db = new KeyFrameDatabase(configKeyFrame, new File(keyframe_db_path));
+					relocalizer.setDatabase(keyframe_db);
+					System.out.println("Vision keyframe database opened: "+keyframe_db.size()+" keyframes");
+				} catch(Exception e) {
+					System.out.println("Vision keyframe database not available: "+e.getMessage());
+				}
+			}
 
-		visualOdometry.setCalibration(realsense.getIntrinsics(),new DoNothingPixelTransform_F32());
+			if(do_loop_closure) {
+				loopClosure = new LoopClosure(configKeyFrame, relocalizer.getIndex());
+				loopClosure.setCalibration(realsense.getIntrinsics());
+			}
+		}
 
 		if(stream!=null) {
 			registerStreams(stream);
@@ -258,159 +479,396 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 
 		initialized_count = 0;
 
-		realsense.registerListener(new Listener() {
+		// streaming is off the latency path, pipelined tracking runs the odometry on a second thread
+		Pipeline.Builder builder = new Pipeline.Builder(info.width, info.height, PIPELINE_FRAMES)
+				.add(new ConvertStage(pipelined ? tracker : null))
+				.branch("Vision stream", 1, 1, new StreamStage(streams, model));
+		if(pipelined)
+			builder.thread("Vision tracking", PIPELINE_FRAMES - 1);
+		detectorStage = new DetectorStage(detectors, detector_cycle_ms, visualOdometry);
+		pipeline = builder.add(new OdometryStage(frame -> processFrame(frame))).add(detectorStage).build();
+		System.out.println("Vision pipeline: "+pipeline);
+
+		realsense.registerListener((rgb, depth, timeRgb, timeDepth) -> {
+			pipeline.process(rgb, depth, timeDepth);
+		});
+	}
 
-			double dt; int mf=0; int fpm;
-			int qual_error_count=0;
+	private boolean processFrame(Frame frame) {
+		GrayU8  gray  = frame.gray;
+		GrayU16 depth = frame.depth;
+		long timeDepth = frame.timeDepth;
+
+		// capture time of the frame, the attitude prior is interpolated to it, the detectors get it too
+		if(timeDepth > 0)
+			frame.frame_ns = camera_clock.toLocal(timeDepth * 1000000L, frame.frame_ns);
+		this.frame_ns = frame.frame_ns;
+		this.dt_updated = false;
+		vehicle.readAt(frame_ns, state);
+
+		if(dt >0) {
+			fpm += (int)(1f/dt+0.5f);
+			if((System.currentTimeMillis() - fps_tms) > 500) {
+				fps_tms = System.currentTimeMillis();
+				if(mf>0)
+					fps = fpm/mf;
+				mf=0; fpm=0;
+			}
+			mf++;
+		}
 
-			@Override
-			public void process(Planar<GrayU8> rgb, GrayU16 depth, long timeRgb, long timeDepth) {
+		try {
+			if(fallbackOdometry!=null)
+				processFallback(gray, depth);
+
+			if( !visualOdometry.process(gray,depth,getAttitudeToState(state, current))) {
+				if(debug)
+					System.out.println("[vis] Odometry failure");
+				init("Odometry");
+				bridge();
+				return false;
+			}
+		} catch( Exception e) {
+			if(debug)
+				System.out.println("[vis] Odometry failure: "+e.getMessage());
+			init("Exception");
+			bridge();
+			return false;
+		}
 
 
-				if(dt >0) {
-					fpm += (int)(1f/dt+0.5f);
-					if((System.currentTimeMillis() - fps_tms) > 500) {
-						fps_tms = System.currentTimeMillis();
-						if(mf>0)
-							fps = fpm/mf;
-						mf=0; fpm=0;
-					}
-					mf++;
-				}
+		quality = (int)(visualOdometry.getQuality() * 300f / MAXTRACKS);
+		if(quality > 100) quality = 100;
 
-				try {
-				 ConvertImage.average(rgb, gray);
-				//	ConvertImage.convert(depth, gray);
+		if(initialized_count < INIT_COUNT) {
 
-					for(IVisualStreamHandler stream : streams)
-						stream.addToStream(gray, depth, model, System.currentTimeMillis()*1000);
+			// a relocalized position is continued by the odometry. Otherwise, while bridged,
+			// the primary odometry continues from the bridged position
+			if(relocalized) {
+				GeometryMath_F64.sub(visualOdometry.getCameraToWorld().getT(), pos_raw_old, pos_delta.T);
+				pos_ned.T.plusIP(pos_delta.T);
+			}
+			else if(!relocalize(gray) && !bridge()) {
+				if(Float.isNaN(state.l_x) || Float.isNaN(state.l_y) || Float.isNaN(state.l_z))
+					pos_ned.reset();
+				else {
+					getPositionToState(state,pos_ned);
+				}
+			}
+			pos_raw_old.set(visualOdometry.getCameraToWorld().getT());
+			speed_old.reset();
+			velocity.reset();
 
+			if( quality > min_quality) {
+				if(++initialized_count == INIT_COUNT) {
+					long recovery_ms = resets.recovered();
 
-					if( !visualOdometry.process(gray,depth,getAttitudeToState(model, current))) {
-						if(debug)
-							System.out.println("[vis] Odometry failure");
-						init("Odometry");
-						return;
-					}
-				} catch( Exception e) {
 					if(debug)
-						System.out.println("[vis] Odometry failure: "+e.getMessage());
-					init("Exception");
+						System.out.println("[vis] Odometry init at: "+pos_ned.T);
+					control.writeLogMessage(new LogMessage("[vis] odometry init: "+last_reason+
+							(recovery_ms >= 0 ? " in "+recovery_ms+"ms" : "")+
+							(relocalized ? " (relocalized)" : "")+
+							(fallback_active ? " (bridged "+(System.currentTimeMillis()-fallback_tms)+"ms)" : ""),
+							MAV_SEVERITY.MAV_SEVERITY_NOTICE));
+					if(debug)
+						System.out.println("[vis] Resets: "+resets);
+					fallback_active = false;
+					error_count = 0;
 				}
+			}  else
+				initialized_count = 0;
+			return false;
+		}
 
 
-				quality = (int)(visualOdometry.getQuality() * 300f / MAXTRACKS);
-				if(quality > 100) quality = 100;
+		pos_raw = visualOdometry.getCameraToWorld().getT();
+		rot_ned.setRotation(visualOdometry.getCameraToWorld().getR());
 
-				if(initialized_count < INIT_COUNT) {
+		updateTimestamp();
 
-					if(Float.isNaN(model.state.l_x) || Float.isNaN(model.state.l_y) || Float.isNaN(model.state.l_z))
-						pos_ned.reset();
-					else {
-						getPositionToState(model,pos_ned);
-					}
-					pos_raw_old.set(visualOdometry.getCameraToWorld().getT());
-					speed_old.reset();
-
-					if( quality > min_quality) {
-						if(++initialized_count == INIT_COUNT) {
-
-							if(debug)
-								System.out.println("[vis] Odometry init at: "+pos_ned.T);
-							control.writeLogMessage(new LogMessage("[vis] odometry init: "+last_reason,
-									MAV_SEVERITY.MAV_SEVERITY_NOTICE));
-							error_count = 0;
-						}
-					}  else
-						initialized_count = 0;
-					return;
+		if(!pos_raw_old.isIdentical(0, 0, 0) && dt > 0) {
+
+			if(quality > min_quality ) {
+
+				speed_ned.reset();
+
+				// Correct camera offset to pos_raw
+				cam_offset.concat(current, cam_offset_ned);
+				pos_raw.plusIP(cam_offset_ned.T);
+
+				// single outliers are skipped, the next position is again related to pos_raw_old.
+				// Not bridged, as the next displacement already covers this frame
+				if(!velocity.add(timeDepth > 0 ? timeDepth / 1000.0 : estTimeDepth_us / 1e6, pos_raw)) {
+					if(debug)
+						System.out.println(timeDepth+"[vis] Position outlier rejected");
+					return false;
 				}
+				speed_ned.T.set(velocity.getVelocity());
 
+				// Check XY speed
+				if(Math.sqrt(speed_ned.getX()*speed_ned.getX()+speed_ned.getZ()*speed_ned.getZ())>MAX_SPEED) {
+					init("Speed");
+					bridge();
+					return false;
+				}
 
-				pos_raw = visualOdometry.getCameraToWorld().getT();
-				rot_ned.setRotation(visualOdometry.getCameraToWorld().getR());
 
-			    estTimeDepth_us = System.currentTimeMillis()*1000;
-			    // System.out.println(timeDepth -System.currentTimeMillis());
+			} else {
+				if(++qual_error_count > 10) {
+					qual_error_count=0;
+					if(debug)
+						System.out.println(timeDepth+"[vis] Quality "+quality+" < Min");
+					init("Quality");
+				}
+				pos_raw_old.set(0,0,0);
+				bridge();
+				return false;
+			}
 
-				if(oldTimeDepth_us>0)
-					dt = (estTimeDepth_us - oldTimeDepth_us)/1000000f;
-				oldTimeDepth_us = estTimeDepth_us;
+			speed_old.T.set(speed_ned.T);
 
-				if(!pos_raw_old.isIdentical(0, 0, 0) && dt > 0) {
+			// pos_delta.T = pos_raw - pos_raw_old
+			GeometryMath_F64.sub(pos_raw, pos_raw_old, pos_delta.T);
 
-					if(quality > min_quality ) {
+			// pos.T = pos.T + pos_delta.T
+			pos_ned.T.plusIP(pos_delta.T);
 
-						speed_ned.reset();
+			ConvertRotation3D_F64.matrixToEuler(rot_ned.R, EulerType.ZXY, visAttitude);
 
-						// Correct camera offset to pos_raw
-						cam_offset.concat(current, cam_offset_ned);
-						pos_raw.plusIP(cam_offset_ned.T);
+			if(Math.abs(visAttitude[2] - state.y) > 0.1 && state.isStatus(Status.MSP_LANDED)
+					&& heading_init_enabled) {
+				if(debug)
+					System.out.println(timeDepth+"[vis] Heading not valid");
+				init("Heading div.");
+				bridge();
+				return false;
+			}
+		}
+		pos_raw_old.set(pos_raw);
+		pose_valid = true;
 
-						// speed.T = (pos_raw - pos_raw_old ) / dt
-						GeometryMath_F64.sub(pos_raw, pos_raw_old, speed_ned.T);
-						speed_ned.T.scale(1d/dt);
+		if(bundleAdjustment!=null)
+			applyBundleCorrection();
 
-						// Check XY speed
-						if(Math.sqrt(speed_ned.getX()*speed_ned.getX()+speed_ned.getZ()*speed_ned.getZ())>MAX_SPEED) {
-							init("Speed");
-							return;
-						}
+		if(loopClosure!=null)
+			applyLoopCorrection();
 
+		if(relocalizer!=null && quality > min_quality)
+			addKeyFrame(gray);
 
-					} else {
-						if(++qual_error_count > 10) {
-							qual_error_count=0;
-							if(debug)
-								System.out.println(timeDepth+"[vis] Quality "+quality+" < Min");
-							init("Quality");
-						}
-						pos_raw_old.set(0,0,0);
-						return;
-					}
+		predictor.update(frame_ns, pos_ned.T, speed_ned.T, visAttitude);
+		addPose();
 
-					speed_old.T.set(speed_ned.T);
+		if(control!=null) {
+			if(error_count < MAX_ERRORS && pub_rate == 0)
+				publishPX4Vision();
+			// the publisher keeps the gap between the messages
+			if(publisher==null)
+				LockSupport.parkNanos(PUBLISH_PACING_MS * 1000000L);
+			error_count=0;
+			publisMSPVision();
+		}
 
-					// pos_delta.T = speed.T * dt
-					pos_delta.T.set(speed_ned.T); pos_delta.T.scale(dt);
+		return true;
+	}
 
-					// pos.T = pos.T + pos_delta.T
-					pos_ned.T.plusIP(pos_delta.T);
+	/*
+	 * Runs the fallback odometry on the current frame and keeps its last displacement
+	 */
+	private void processFallback(GrayU8 gray, GrayU16 depth) {
+		try {
+			if(fallbackOdometry.process(gray, depth, getAttitudeToState(state, current))) {
+				Vector3D_F64 t = fallbackOdometry.getCameraToWorld().getT();
+				fallback_has_delta = fallback_valid;
+				if(fallback_has_delta)
+					GeometryMath_F64.sub(t, fallback_raw_old, fallback_delta);
+				fallback_raw_old.set(t);
+				fallback_valid = fallbackOdometry.getQuality() * 300f / MAXTRACKS > min_quality;
+				return;
+			}
+		} catch(Exception e) {
+			if(debug)
+				System.out.println("[vis] Fallback odometry failure: "+e.getMessage());
+		}
+		fallbackOdometry.reset(getAttitudeToState(state, current));
+		fallback_valid = false;
+		fallback_has_delta = false;
+	}
 
-					ConvertRotation3D_F64.matrixToEuler(rot_ned.R, EulerType.ZXY, visAttitude);
+	/*
+	 * Propagates and publishes the position by the displacement of the fallback odometry
+	 * if the primary odometry provides no pose for this frame.
+	 *
+	 * @return true if the position has been bridged
+	 */
+	private boolean bridge() {
+		if(fallbackOdometry==null || !fallback_has_delta || !pose_valid) {
+			fallback_active = false;
+			return false;
+		}
 
-					if(Math.abs(visAttitude[2] - model.attitude.y) > 0.1 && model.sys.isStatus(Status.MSP_LANDED)
-							&& heading_init_enabled) {
-						if(debug)
-							System.out.println(timeDepth+"[vis] Heading not valid");
-						init("Heading div.");
-						return;
-					}
-				}
-				pos_raw_old.set(pos_raw);
-
-				if(control!=null) {
-					if(error_count < MAX_ERRORS)
-						publishPX4Vision();
-					LockSupport.parkNanos(2000000);
-					error_count=0;
-					publisMSPVision();
-				}
+		if(!fallback_active) {
+			fallback_active = true;
+			fallback_tms = System.currentTimeMillis();
+			if(debug)
+				System.out.println("[vis] Fallback odometry active: "+last_reason);
+		}
 
-				if(detectors.size()>0 && detector_cycle_ms>0) {
-					if((System.currentTimeMillis() - detector_tms) > detector_cycle_ms) {
-						detector_tms = System.currentTimeMillis();
-						for(ISLAMDetector d : detectors) {
-							try {
-								d.process(visualOdometry, depth, gray);
-							} catch(Exception e) {
-								System.out.println(timeDepth+"[vis] Detector exception: "+e.getMessage());
-							}
-						}
-					}
-				}
+		// dt is taken once per frame, also if the frame was rejected after its timestamp
+		if(!dt_updated)
+			updateTimestamp();
+
+		speed_ned.reset();
+		if(dt > 0) {
+			speed_ned.T.set(fallback_delta);
+			speed_ned.T.scale(1d/dt);
+		}
+		pos_ned.T.plusIP(fallback_delta);
+		predictor.update(frame_ns, pos_ned.T, speed_ned.T, visAttitude);
+		addPose();
+
+		if(control!=null) {
+			if(pub_rate == 0)
+				publishPX4Vision();
+			publisMSPVision();
+		}
+		return true;
+	}
+
+	/*
+	 * Recovers the position from the keyframes seen before the last reset
+	 */
+	private boolean relocalize(GrayU8 gray) {
+		if(relocalizer==null || relocalizer.isEmpty())
+			return false;
+
+		if(!relocalizer.relocalize(gray, keyframe_pose))
+			return false;
+
+		// keyframes store the camera position
+		cam_offset.concat(current, cam_offset_ned);
+		pos_ned.T.set(keyframe_pose.T);
+		pos_ned.T.plusIP(cam_offset_ned.T);
+		relocalized = true;
+
+		if(debug)
+			System.out.println("[vis] Relocalized at "+pos_ned.T+" by "+relocalizer.getMatchedKeyFrame()+
+					" with "+relocalizer.getInliers()+" inliers");
+		return true;
+	}
+
+	private void addKeyFrame(GrayU8 gray) {
+		cam_offset.concat(current, cam_offset_ned);
+		keyframe_pose.R.set(visualOdometry.getCameraToWorld().getR());
+		GeometryMath_F64.sub(pos_ned.T, cam_offset_ned.T, keyframe_pose.T);
+
+		if(!relocalizer.isKeyFrameRequired(keyframe_pose))
+			return;
+
+		KeyFrame kf = relocalizer.addKeyFrame(gray, visualOdometry, keyframe_pose);
+		if(kf!=null && loopClosure!=null) {
+			loopClosure.add(kf, loop_correction, new_segment);
+			new_segment = false;
+		}
+	}
+
+	/*
+	 * Shifts the position by the change of the loop closure correction
+	 */
+	private void applyLoopCorrection() {
+		int version = loopClosure.getCorrection(loop_next);
+		if(version == loop_version)
+			return;
+		loop_version = version;
+
+		GeometryMath_F64.sub(loop_next, loop_correction, pos_delta.T);
+		pos_ned.T.plusIP(pos_delta.T);
+		loop_correction.set(loop_next);
+
+		if(debug)
+			System.out.println("[vis] Loop closure correction "+pos_delta.T+" ("+loopClosure.getLoopCount()+
+					" loops, "+loopClosure.getNodeCount()+" keyframes, "+loopClosure.getOptimizationTime()+"ms)");
+	}
+
+	/*
+	 * Shifts the position by the change of the bundle adjustment correction, the odometry
+	 * itself is not corrected
+	 */
+	private void applyBundleCorrection() {
+		int version = bundleAdjustment.getCorrection(ba_next);
+		if(version == ba_version)
+			return;
+		ba_version = version;
+
+		GeometryMath_F64.sub(ba_next, ba_correction, pos_delta.T);
+		pos_ned.T.plusIP(pos_delta.T);
+		ba_correction.set(ba_next);
+	}
+
+	private void updateTimestamp() {
+		estTimeDepth_us = System.currentTimeMillis()*1000;
+		if(oldTimeDepth_us>0)
+			dt = (estTimeDepth_us - oldTimeDepth_us)/1000000f;
+		oldTimeDepth_us = estTimeDepth_us;
+		dt_updated = true;
+	}
+
+	private void poseUpdated() {
+		long tms = System.currentTimeMillis();
+		if(last_pose_tms > 0) {
+			long gap = tms - last_pose_tms;
+			if(gap > MAX_POSE_GAP_MS) {
+				no_pose_ms += gap;
+				if(gap > max_no_pose_ms)
+					max_no_pose_ms = gap;
+				if(debug)
+					System.out.println("[vis] No pose for "+gap+"ms");
 			}
-		});
+		}
+		last_pose_tms = tms;
+	}
+
+	/**
+	 * @return Total time in ms in which no pose has been published, including the current gap
+	 */
+	public long getNoPoseTime() {
+		long gap = last_pose_tms > 0 ? System.currentTimeMillis() - last_pose_tms : 0;
+		return gap > MAX_POSE_GAP_MS ? no_pose_ms + gap : no_pose_ms;
+	}
+
+	/**
+	 * @return Variance of each component of the published speed in m^2/s^2
+	 */
+	public double getSpeedVariance() {
+		return velocity.getVariance();
+	}
+
+	/**
+	 * @return Mean time from the capture of a frame to the time its published pose is valid for in us
+	 */
+	public long getPredictionHorizon() {
+		return predictor.getHorizon();
+	}
+
+	/**
+	 * @return Reset counts and recovery times per reset reason
+	 */
+	public OdometryResetStatistics getResetStatistics() {
+		return resets;
+	}
+
+	/**
+	 * @return Asynchronous publisher of the vision messages, null if the messages are sent by the vision thread
+	 */
+	public MAVLinkPublisher getPublisher() {
+		return publisher;
+	}
+
+	/**
+	 * @return Longest time in ms in which no pose has been published
+	 */
+	public long getMaxNoPoseTime() {
+		return max_no_pose_ms;
 	}
 
 	private void overlayFeatures(Graphics ctx) {
@@ -449,7 +907,20 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 
 	public void start() {
 		isRunning = true;
+		if(publisher!=null)
+			publisher.start();
 		init("StartUp");
+		if(pipeline!=null)
+			pipeline.start();
+		if(loopClosure!=null)
+			loopClosure.start();
+		if(bundleAdjustment!=null)
+			bundleAdjustment.start();
+		if(pub_rate > 0 && control!=null && pub_task==null)
+			pub_task = ExecutorService.get().scheduleAtFixedRate(() -> {
+				if(isRunning)
+					publishPX4Vision();
+			}, 0, 1000000 / pub_rate, TimeUnit.MICROSECONDS);
 		if(realsense!=null)
 			realsense.start();
 	}
@@ -457,6 +928,23 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 	public void stop() {
 		if(isRunning) {
 			realsense.stop();
+			if(pipeline!=null)
+				pipeline.stop();
+			if(loopClosure!=null)
+				loopClosure.stop();
+			if(bundleAdjustment!=null)
+				bundleAdjustment.stop();
+			if(pub_task!=null) {
+				pub_task.cancel(false);
+				pub_task = null;
+			}
+			if(keyframe_db!=null)
+				keyframe_db.flush();
+			if(publisher!=null) {
+				publisher.stop();
+				if(debug)
+					System.out.println("[vis] Publisher: "+publisher);
+			}
 			publisMSPVision();
 		}
 		isRunning=false;
@@ -470,72 +958,135 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 		init("msp reset");
 	}
 
-	private Se3_F64 getAttitudeToState(DataModel m, Se3_F64 state) {
+	private Se3_F64 getAttitudeToState(VehicleState.Snapshot s, Se3_F64 state) {
 		ConvertRotation3D_F64.eulerToMatrix(EulerType.ZXY,
-				m.attitude.r,
-				m.attitude.p,
-				m.attitude.y,
+				s.r,
+				s.p,
+				s.y,
 				state.getRotation());
 		return state;
 	}
 
-	private Se3_F64 getPositionToState(DataModel m, Se3_F64 state) {
-		state.getTranslation().y = m.state.l_z;
-		state.getTranslation().x = m.state.l_y;
-		state.getTranslation().z = m.state.l_x;
+	private Se3_F64 getPositionToState(VehicleState.Snapshot s, Se3_F64 state) {
+		state.getTranslation().y = s.l_z;
+		state.getTranslation().x = s.l_y;
+		state.getTranslation().z = s.l_x;
 		return state;
 	}
 
+	/*
+	 * Records the pose of the current frame, camera to world rotation with the vision position
+	 */
+	private void addPose() {
+		frame_pose.R.set(rot_ned.R);
+		frame_pose.T.set(pos_ned.T);
+		poses.add(frame_ns, frame_pose, speed_ned.T, quality);
+	}
+
 	private void init(String reason) {
 		this.last_reason = reason;
+		this.relocalized = false;
+		this.new_segment = true;
+		if(!isInternalReason(reason))
+			this.pose_valid = false;
+		predictor.reset();
+		poses.reset();
 		if(do_odometry) {
 			if(++error_count > MAX_ERRORS) {
 				fps=0; quality=0;
 			}
-			getAttitudeToState(model, current);
-			visualOdometry.reset(current);
+			vehicle.read(init_state);
+			getAttitudeToState(init_state, current);
+			boolean soft = do_soft_reset && error_count <= MAX_ERRORS && isSoftReason(reason)
+					&& visualOdometry.softReset(current);
+			if(!soft)
+				visualOdometry.reset(current);
+			// the reset discards the correction of the bundle adjustment
+			if(bundleAdjustment!=null)
+				ba_version = bundleAdjustment.getCorrection(ba_correction);
+			resets.reset(reason, soft);
 			publisMSPVision();
 
 			if(detectors.size()>0) {
-				detector_tms = System.currentTimeMillis();
+				detectorStage.reset();
 				for(ISLAMDetector d : detectors)
-					d.reset(model.state.l_x, model.state.l_y, model.state.l_z);
+					d.reset(init_state.l_x, init_state.l_y, init_state.l_z);
 			}
 			initialized_count = 0;
 		}
 	}
 
+	/*
+	 * Divergences caused by single bad estimates do not invalidate the tracks
+	 */
+	private boolean isSoftReason(String reason) {
+		switch(reason) {
+		case "Speed":
+		case "Quality":
+		case "Heading div.":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Divergences of the odometry itself may be bridged. Explicit resets anchor the position
+	 * again to the vehicle
+	 */
+	private boolean isInternalReason(String reason) {
+		switch(reason) {
+		case "Odometry":
+		case "Exception":
+		case "Speed":
+		case "Quality":
+		case "Heading div.":
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	private void publishPX4Vision() {
 
-		if(do_position && do_odometry && (System.currentTimeMillis()-last_pos_tms) > 20) {
+		// extrapolated to the time the message leaves the link
+		long link_us = publisher!=null ? publisher.getMeanLatency(MAVLinkPublisher.PRIORITY_HIGH) : 0;
+		vehicle.read(rate_state);
+		rates[0] = rate_state.rr; rates[1] = rate_state.pr; rates[2] = rate_state.yr;
+		if(!predictor.predict(System.nanoTime() + link_us * 1000, rates, predicted_pos, predicted_vel, predicted_att))
+			return;
+		long usec = System.currentTimeMillis() * 1000 + link_us;
+
+		if(do_position && do_odometry && (System.currentTimeMillis()-last_pos_tms) > pub_interval_ms) {
 			last_pos_tms = System.currentTimeMillis();
-			msg_vision_position_estimate sms = new msg_vision_position_estimate(1,2);
-			sms.usec = (long)estTimeDepth_us;
-			sms.x = (float) pos_ned.T.z;
-			sms.y = (float) pos_ned.T.x;
-			sms.z = (float) pos_ned.T.y;
-			sms.roll  = (float)visAttitude[0];
-			sms.pitch = (float)visAttitude[1];
-			sms.yaw   = (float)visAttitude[2];
-			control.sendMAVLinkMessage(sms);
+			msg_vision_position_estimate sms = pool_position.acquire();
+			sms.usec = usec;
+			sms.x = (float) predicted_pos.z;
+			sms.y = (float) predicted_pos.x;
+			sms.z = (float) predicted_pos.y;
+			sms.roll  = (float)predicted_att[0];
+			sms.pitch = (float)predicted_att[1];
+			sms.yaw   = (float)predicted_att[2];
+			send(sms, pool_position);
+			poseUpdated();
 		}
 
-		if(do_speed && do_odometry && (System.currentTimeMillis()-last_speed_tms) > 20) {
+		if(do_speed && do_odometry && (System.currentTimeMillis()-last_speed_tms) > pub_interval_ms) {
 			last_speed_tms = System.currentTimeMillis();
-			msg_vision_speed_estimate sse = new msg_vision_speed_estimate(1,2);
-			sse.usec = (long)estTimeDepth_us;
-			sse.x = (float) speed_ned.T.z;
-			sse.y = (float) speed_ned.T.x;
-			sse.z = (float) speed_ned.T.y;
+			msg_vision_speed_estimate sse = pool_speed.acquire();
+			sse.usec = usec;
+			sse.x = (float) predicted_vel.z;
+			sse.y = (float) predicted_vel.x;
+			sse.z = (float) predicted_vel.y;
 			sse.isValid = true;
-			control.sendMAVLinkMessage(sse);
+			send(sse, pool_speed);
 		}
 	}
 
 	private void publisMSPVision() {
 		if((System.currentTimeMillis()-last_msp_tms) > 20) {
 			last_msp_tms = System.currentTimeMillis();
-			msg_msp_vision msg = new msg_msp_vision(2,1);
+			msg_msp_vision msg = pool_msp.acquire();
 			msg.x =  (float) pos_ned.T.z;
 			msg.y =  (float) pos_ned.T.x;
 			msg.z =  (float) pos_ned.T.y;
@@ -549,15 +1100,22 @@ public class MAVPositionEstimatorAttitude implements IPositionEstimator {
 			msg.fps = fps;
 			msg.tms = (long)estTimeDepth_us;
 			msg.errors = error_count;
+			msg.flags = 0;
 			if(do_position && do_odometry)
 				msg.flags = msg.flags | 1;
 			if(do_speed && do_odometry)
 				msg.flags = msg.flags | 2;
+			if(fallback_active)
+				msg.flags = msg.flags | 4;
 			msg.tms = (long)estTimeDepth_us;
-			control.sendMAVLinkMessage(msg);
+			send(msg, pool_msp);
 		}
 	}
 
+	private void send(MAVLinkMessage msg, IMAVLinkRecycler recycler) {
+		MAVLinkPublisher.send(control, msg, recycler);
+	}
+
 	public static void main(String[] args) {
 		new MAVPositionEstimatorAttitude();
 	}
@@ -0,0 +1,152 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.estimators;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts odometry resets and measures the time until the odometry has recovered,
+ * both per reset reason. A reset during a recovery is counted, but the recovery
+ * time is accounted to the reason which started it.
+ *
+ * @author Eike Mansfeld
+ */
+public class OdometryResetStatistics {
+
+	private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+
+	private Entry   pending     = null;
+	private long    pending_tms = 0;
+
+	/**
+	 * Records a reset and starts the recovery time if not recovering yet
+	 *
+	 * @param reason Reason of the reset
+	 * @param soft   true if the tracks have been kept
+	 */
+	public synchronized void reset(String reason, boolean soft) {
+		Entry e = entries.get(reason);
+		if(e == null) {
+			e = new Entry(reason);
+			entries.put(reason, e);
+		}
+		e.count++;
+		if(soft)
+			e.soft++;
+		if(pending == null) {
+			pending = e;
+			pending_tms = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Stops the recovery time
+	 *
+	 * @return Recovery time in ms or -1 if not recovering
+	 */
+	public synchronized long recovered() {
+		if(pending == null)
+			return -1;
+		long ms = System.currentTimeMillis() - pending_tms;
+		pending.recovered++;
+		pending.total_ms += ms;
+		if(ms > pending.max_ms)
+			pending.max_ms = ms;
+		pending = null;
+		return ms;
+	}
+
+	public synchronized boolean isRecovering() {
+		return pending != null;
+	}
+
+	public synchronized int getCount(String reason) {
+		Entry e = entries.get(reason);
+		return e == null ? 0 : e.count;
+	}
+
+	public synchronized int getSoftCount(String reason) {
+		Entry e = entries.get(reason);
+		return e == null ? 0 : e.soft;
+	}
+
+	/**
+	 * @return Mean recovery time in ms of resets with this reason, -1 if none recovered
+	 */
+	public synchronized long getMeanRecoveryTime(String reason) {
+		Entry e = entries.get(reason);
+		return e == null || e.recovered == 0 ? -1 : e.total_ms / e.recovered;
+	}
+
+	/**
+	 * @return Maximum recovery time in ms of resets with this reason
+	 */
+	public synchronized long getMaxRecoveryTime(String reason) {
+		Entry e = entries.get(reason);
+		return e == null ? 0 : e.max_ms;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		pending = null;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder b = new StringBuilder();
+		for(Entry e : entries.values()) {
+			if(b.length() > 0)
+				b.append(", ");
+			b.append(e.reason).append(": ").append(e.count).append(" (").append(e.soft).append(" soft)");
+			if(e.recovered > 0)
+				b.append(" ").append(e.total_ms / e.recovered).append("/").append(e.max_ms).append("ms");
+		}
+		return b.toString();
+	}
+
+	private static class Entry {
+		final String reason;
+		int  count     = 0;
+		int  soft      = 0;
+		int  recovered = 0;
+		long total_ms  = 0;
+		long max_ms    = 0;
+
+		Entry(String reason) {
+			this.reason = reason;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.estimators;
+
+import georegression.struct.point.Vector3D_F64;
+
+/**
+ * Extrapolates the last vision pose to the time it is sent. The position is extrapolated
+ * by the vision velocity, the attitude by the attitude rates of the flight controller. The
+ * horizon from the capture of the frame to the time of sending is measured.
+ *
+ * @author Eike Mansfeld
+ */
+public class PosePredictor {
+
+	private final long max_horizon_ns;
+
+	private final Vector3D_F64 pos = new Vector3D_F64();
+	private final Vector3D_F64 vel = new Vector3D_F64();
+	private final double[]     att = new double[3];
+	private long    capture_ns = 0;
+	private boolean valid      = false;
+
+	// mean horizon of the predictions
+	private long horizon_ns = 0;
+
+	/**
+	 * @param max_horizon_ms Poses older than this are not extrapolated
+	 */
+	public PosePredictor(int max_horizon_ms) {
+		this.max_horizon_ns = max_horizon_ms * 1000000L;
+	}
+
+	/**
+	 * @param capture_ns Time the frame of the pose has been captured, System.nanoTime()
+	 * @param attitude Roll, pitch and yaw
+	 */
+	public synchronized void update(long capture_ns, Vector3D_F64 pos, Vector3D_F64 vel, double[] attitude) {
+		this.capture_ns = capture_ns;
+		this.pos.set(pos);
+		this.vel.set(vel);
+		System.arraycopy(attitude, 0, att, 0, 3);
+		this.valid = true;
+	}
+
+	public synchronized void reset() {
+		valid = false;
+	}
+
+	/**
+	 * Extrapolates the pose. For the short horizon the attitude rates are taken as rates of the angles.
+	 *
+	 * @param time_ns Time the pose is valid for, System.nanoTime()
+	 * @param rates Roll, pitch and yaw rate in rad/s
+	 * @return false if there is no pose or it is older than the maximum horizon
+	 */
+	public synchronized boolean predict(long time_ns, float[] rates, Vector3D_F64 pos_out, Vector3D_F64 vel_out,
+			double[] att_out) {
+
+		long dt_ns = time_ns - capture_ns;
+		if(!valid || dt_ns > max_horizon_ns)
+			return false;
+		if(dt_ns < 0)
+			dt_ns = 0;
+
+		horizon_ns = horizon_ns == 0 ? dt_ns : (7 * horizon_ns + dt_ns) / 8;
+
+		double dt = dt_ns / 1e9;
+		pos_out.x = pos.x + vel.x * dt;
+		pos_out.y = pos.y + vel.y * dt;
+		pos_out.z = pos.z + vel.z * dt;
+		vel_out.set(vel);
+		for(int i=0; i < 3; i++)
+			att_out[i] = att[i] + rates[i] * dt;
+		return true;
+	}
+
+	/**
+	 * @return Mean time between capture and the time the predicted poses are valid for in us
+	 */
+	public synchronized long getHorizon() {
+		return horizon_ns / 1000;
+	}
+}
@@ -0,0 +1,205 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.estimators;
+
+import georegression.struct.point.Vector3D_F64;
+
+/**
+ * Estimates the velocity by a linear least squares fit to the positions of a short time window.
+ * A position which deviates from the fit by more than the gate is rejected as outlier. If several
+ * positions in a row are rejected, the motion has changed and the window restarts.
+ * Runs in constant time and does not allocate.
+ *
+ * @author Eike Mansfeld
+ */
+public class VelocityEstimator {
+
+	// gate in standard deviations of the residual and the prediction
+	private static final double GATE_SIGMA  = 4.0;
+	// consecutive outliers after which the window restarts
+	private static final int    MAX_REJECTS = 2;
+
+	private final double[] t;
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+
+	private final double max_age_s;
+	private final double min_gate;
+
+	private int head  = 0;
+	private int count = 0;
+	private int rejects = 0;
+	private int rejected = 0;
+
+	// fit of the current window, positions relative to the time mean
+	private final Vector3D_F64 velocity = new Vector3D_F64();
+	private final Vector3D_F64 mean     = new Vector3D_F64();
+	private double t_mean   = 0;
+	private double stt      = 0;
+	private double sigma2   = 0;
+
+	/**
+	 * @param size Maximum number of positions in the window
+	 * @param max_age_s Positions older than this are removed from the window
+	 * @param min_gate Minimum deviation of an outlier in m
+	 */
+	public VelocityEstimator(int size, double max_age_s, double min_gate) {
+		this.t = new double[size];
+		this.x = new double[size];
+		this.y = new double[size];
+		this.z = new double[size];
+		this.max_age_s = max_age_s;
+		this.min_gate  = min_gate;
+	}
+
+	public void reset() {
+		count = 0; rejects = 0;
+		velocity.set(0,0,0);
+		sigma2 = 0; stt = 0;
+	}
+
+	/**
+	 * Adds the position unless it is an outlier and updates the velocity
+	 *
+	 * @param time_s Time of the position in seconds
+	 * @return false if the position has been rejected
+	 */
+	public boolean add(double time_s, Vector3D_F64 pos) {
+
+		// remove old positions
+		while(count > 0 && time_s - t[(head - count + t.length) % t.length] > max_age_s)
+			count--;
+
+		if(count >= 3 && isOutlier(time_s, pos)) {
+			rejected++;
+			if(++rejects <= MAX_REJECTS)
+				return false;
+			count = 0;
+		}
+		rejects = 0;
+
+		t[head] = time_s; x[head] = pos.x; y[head] = pos.y; z[head] = pos.z;
+		head = (head + 1) % t.length;
+		if(count < t.length)
+			count++;
+
+		fit();
+		return true;
+	}
+
+	/**
+	 * @return Velocity in m/s, zero until the window contains two positions
+	 */
+	public Vector3D_F64 getVelocity() {
+		return velocity;
+	}
+
+	/**
+	 * @return Variance of each component of the velocity in m^2/s^2, 0 if not known
+	 */
+	public double getVariance() {
+		return stt > 0 ? sigma2 / stt : 0;
+	}
+
+	/**
+	 * @return true if the velocity and its variance are based on at least three positions
+	 */
+	public boolean isValid() {
+		return count >= 3;
+	}
+
+	/**
+	 * @return Number of positions rejected as outlier
+	 */
+	public int getRejectedCount() {
+		return rejected;
+	}
+
+	private boolean isOutlier(double time_s, Vector3D_F64 pos) {
+		double dt = time_s - t_mean;
+		double dx = pos.x - mean.x - velocity.x * dt;
+		double dy = pos.y - mean.y - velocity.y * dt;
+		double dz = pos.z - mean.z - velocity.z * dt;
+		double d2 = dx*dx + dy*dy + dz*dz;
+
+		if(d2 <= min_gate * min_gate)
+			return false;
+
+		// residual and uncertainty of the prediction of all three components
+		double var = 3 * sigma2 * (1 + 1.0 / count + (stt > 0 ? dt * dt / stt : 0));
+		return d2 > GATE_SIGMA * GATE_SIGMA * var;
+	}
+
+	private void fit() {
+		int i, k; double dt, dx, dy, dz;
+
+		t_mean = 0; mean.set(0,0,0);
+		for(k = 0; k < count; k++) {
+			i = (head - 1 - k + t.length) % t.length;
+			t_mean += t[i]; mean.x += x[i]; mean.y += y[i]; mean.z += z[i];
+		}
+		t_mean /= count; mean.x /= count; mean.y /= count; mean.z /= count;
+
+		stt = 0; velocity.set(0,0,0);
+		for(k = 0; k < count; k++) {
+			i = (head - 1 - k + t.length) % t.length;
+			dt = t[i] - t_mean;
+			stt += dt * dt;
+			velocity.x += dt * (x[i] - mean.x);
+			velocity.y += dt * (y[i] - mean.y);
+			velocity.z += dt * (z[i] - mean.z);
+		}
+
+		if(stt <= 0) {
+			velocity.set(0,0,0); sigma2 = 0;
+			return;
+		}
+		velocity.x /= stt; velocity.y /= stt; velocity.z /= stt;
+
+		sigma2 = 0;
+		if(count > 2) {
+			for(k = 0; k < count; k++) {
+				i = (head - 1 - k + t.length) % t.length;
+				dt = t[i] - t_mean;
+				dx = x[i] - mean.x - velocity.x * dt;
+				dy = y[i] - mean.y - velocity.y * dt;
+				dz = z[i] - mean.z - velocity.z * dt;
+				sigma2 += dx*dx + dy*dy + dz*dz;
+			}
+			sigma2 /= 3 * (count - 2);
+		}
+	}
+}
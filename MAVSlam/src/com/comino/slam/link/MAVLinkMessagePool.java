@@ -0,0 +1,94 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.link;
+
+import java.util.function.Supplier;
+
+import org.mavlink.messages.MAVLinkMessage;
+
+/**
+ * Fixed set of reusable messages of one type. Messages are taken by the sender and
+ * returned by the link after they have been encoded. If all messages are in use, a new
+ * message is created.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVLinkMessagePool<T extends MAVLinkMessage> implements IMAVLinkRecycler {
+
+	private final Supplier<T> factory;
+	private final Object[]    free;
+	private int               count   = 0;
+	private int               created = 0;
+
+	/**
+	 * @param size Number of messages, one being filled, one queued and one being sent is sufficient
+	 *             for the {@link MAVLinkPublisher}
+	 * @param factory Creates a message
+	 */
+	public MAVLinkMessagePool(int size, Supplier<T> factory) {
+		this.factory = factory;
+		this.free    = new Object[size];
+		for(int i=0; i < size; i++)
+			free[count++] = factory.get();
+		this.created = size;
+	}
+
+	/**
+	 * @return Message with the fields of its last use
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized T acquire() {
+		if(count > 0) {
+			T msg = (T)free[--count];
+			free[count] = null;
+			return msg;
+		}
+		created++;
+		return factory.get();
+	}
+
+	@Override
+	public synchronized void recycle(MAVLinkMessage msg) {
+		if(count < free.length)
+			free[count++] = msg;
+	}
+
+	/**
+	 * @return Number of messages created, more than the size if the pool has been exhausted
+	 */
+	public synchronized int getCreatedCount() {
+		return created;
+	}
+}
@@ -0,0 +1,573 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mavlink.messages.MAVLinkMessage;
+import org.mavlink.messages.lquac.msg_msp_micro_grid;
+import org.mavlink.messages.lquac.msg_msp_micro_slam;
+import org.mavlink.messages.lquac.msg_vision_position_estimate;
+import org.mavlink.messages.lquac.msg_vision_speed_estimate;
+
+import com.comino.mav.control.IMAVMSPController;
+import com.comino.msp.main.MSPConfig;
+
+/**
+ * Sends MAVLink messages on a dedicated thread, so that the caller is not blocked by the link.
+ * A message which has not been sent yet is replaced by a newer message of the same type.
+ * Messages published with a recycler are returned to it after they have been sent or replaced.
+ * <p>
+ * Each message type belongs to a priority class with its own bounded lock free queue and a token
+ * bucket limiting the class to its share of the link bandwidth. The highest class with a queued
+ * message and available tokens is sent first. Bulk messages are held back if they would still
+ * occupy the link when the next vision estimate is expected.
+ * <p>
+ * Messages routed to the UDP proxy do not use the serial link. They are queued separately and
+ * sent whenever no message for the link is ready, without pacing, buckets or holdback.
+ *
+ * @author Eike Mansfeld
+ */
+public class MAVLinkPublisher implements Runnable {
+
+	public static final int PRIORITY_HIGH   = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_BULK   = 2;
+
+	private static final String[] CLASS_NAMES = { "high", "normal", "bulk" };
+	private static final int      CLASSES     = CLASS_NAMES.length;
+
+	// share of the link bandwidth per class
+	private static final double[] CLASS_SHARE = { 0.5, 0.3, 0.2 };
+	// token bucket size per class in seconds of its rate
+	private static final double   BURST_S     = 0.05;
+
+	// framing and checksum of a MAVLink 2 message
+	private static final int MAVLINK_OVERHEAD = 12;
+
+	// MAVProxyController routes messages of this system id to the UDP proxy
+	private static final int PROXY_SYS_ID = 2;
+
+	// maximum number of message types, each type occupies at most one entry of a queue
+	private static final int MAX_TYPES = 16;
+
+	private static final int DEFAULT_PACING_MS = 2;
+	private static final String DEFAULT_BAUD   = "921600";
+
+	private static MAVLinkPublisher instance = null;
+
+	private final IMAVMSPController control;
+	private final long   pacing_ns;
+	private final double wire_ns_per_byte;
+
+	private final Slot[] slots = new Slot[MAX_TYPES];
+	private volatile int slot_count = 0;
+
+	private final SlotQueue[] queues  = new SlotQueue[CLASSES];
+	private final Bucket[]    buckets = new Bucket[CLASSES];
+	// messages routed to the proxy
+	private final SlotQueue   proxy   = new SlotQueue();
+
+	private volatile Thread worker = null;
+	private long last_send_ns      = 0;
+	private long last_high_send_ns = 0;
+	// time at which the bytes written so far have been transmitted
+	private long link_free_ns      = 0;
+
+	// statistics
+	private final AtomicLong coalesced = new AtomicLong();
+	private volatile long errors       = 0;
+	private final long[] sent           = new long[CLASSES];
+	private final long[] latency_ns     = new long[CLASSES];
+	private final long[] max_latency_ns = new long[CLASSES];
+
+	/**
+	 * Creates the publisher shared by all senders on the first call.
+	 *
+	 * @param control Controller owning the link
+	 * @param config Configuration with the baud rate of the link
+	 */
+	public static synchronized MAVLinkPublisher getInstance(IMAVMSPController control, MSPConfig config) {
+		if(instance==null) {
+			int baud = config.getIntProperty("link_baud", DEFAULT_BAUD);
+			System.out.println("[vis] Link scheduler: "+baud+" baud");
+			instance = new MAVLinkPublisher(control, DEFAULT_PACING_MS, baud);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return The shared publisher, null if it has not been created
+	 */
+	public static MAVLinkPublisher getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Publishes the message by the shared publisher if available, otherwise it is sent by the caller.
+	 *
+	 * @param recycler Takes the message back after it has been sent or replaced. Can be null.
+	 */
+	public static boolean send(IMAVMSPController control, MAVLinkMessage msg, IMAVLinkRecycler recycler) {
+		MAVLinkPublisher publisher = instance;
+		if(publisher!=null)
+			return publisher.publish(msg, recycler);
+		try {
+			return control.sendMAVLinkMessage(msg);
+		} finally {
+			if(recycler!=null)
+				recycler.recycle(msg);
+		}
+	}
+
+	/**
+	 * @param control Controller owning the link
+	 * @param pacing_ms Minimum time between two messages in ms
+	 * @param baud Baud rate of the link
+	 */
+	public MAVLinkPublisher(IMAVMSPController control, int pacing_ms, int baud) {
+		this.control   = control;
+		this.pacing_ns = pacing_ms * 1000000L;
+		this.wire_ns_per_byte = 10e9 / baud;
+		for(int i=0; i < CLASSES; i++) {
+			queues[i]  = new SlotQueue();
+			buckets[i] = new Bucket(CLASS_SHARE[i] * baud / 10);
+		}
+	}
+
+	public void start() {
+		if(worker!=null)
+			return;
+		Thread t = new Thread(this, "MAVLink publisher");
+		t.setDaemon(true);
+		worker = t;
+		t.start();
+	}
+
+	/**
+	 * Stops the thread after the message currently sent. Messages published afterwards are sent
+	 * by the caller.
+	 */
+	public void stop() {
+		Thread t = worker;
+		worker = null;
+		if(t!=null)
+			LockSupport.unpark(t);
+	}
+
+	/**
+	 * Queues the message. A queued message of the same type is replaced.
+	 *
+	 * @return false if the message could not be sent
+	 */
+	public boolean publish(MAVLinkMessage msg) {
+		return publish(msg, null);
+	}
+
+	/**
+	 * Queues the message. A queued message of the same type is replaced. The message must not be
+	 * modified until it is returned to the recycler.
+	 *
+	 * @param recycler Takes the message back after it has been sent or replaced. Can be null.
+	 * @return false if the message could not be sent
+	 */
+	public boolean publish(MAVLinkMessage msg, IMAVLinkRecycler recycler) {
+		Thread t = worker;
+		Slot slot = t!=null ? slot(msg) : null;
+
+		// not running or too many types
+		if(slot==null) {
+			try {
+				return control.sendMAVLinkMessage(msg);
+			} finally {
+				if(recycler!=null)
+					recycler.recycle(msg);
+			}
+		}
+
+		long tms_ns = System.nanoTime();
+		if(slot.published_ns > 0)
+			slot.period_ns = slot.period_ns == 0 ? tms_ns - slot.published_ns
+					: (3 * slot.period_ns + tms_ns - slot.published_ns) / 4;
+		slot.published_ns = tms_ns;
+		slot.recycler = recycler;
+		MAVLinkMessage replaced = slot.pending.getAndSet(msg);
+		if(replaced!=null) {
+			coalesced.incrementAndGet();
+			if(recycler!=null)
+				recycler.recycle(replaced);
+			return true;
+		}
+
+		// the queue holds each slot at most once, thus it can not overflow
+		(slot.wired ? queues[slot.priority] : proxy).offer(slot);
+		LockSupport.unpark(t);
+		return true;
+	}
+
+	/**
+	 * @return true if a message of this type waits to be sent
+	 */
+	public boolean isQueued(int messageType) {
+		Slot[] s = slots; int n = slot_count;
+		for(int i=0; i < n; i++)
+			if(s[i].type==messageType)
+				return s[i].pending.get()!=null;
+		return false;
+	}
+
+	@Override
+	public void run() {
+		Slot slot; SlotQueue queue; MAVLinkMessage msg; long now_ns, wait_ns, tms_ns, send_ns; int p, bytes;
+
+		while(worker==Thread.currentThread()) {
+
+			// previous message on the wire and minimum gap. Unpark of a producer may end the wait early
+			now_ns = System.nanoTime();
+			slot = null; queue = null; p = 0;
+			if((wait_ns = Math.max(last_send_ns + pacing_ns, link_free_ns) - now_ns) <= 0) {
+				wait_ns = Long.MAX_VALUE;
+				for(p = 0; p < CLASSES; p++) {
+					if((slot = queues[p].peek())==null)
+						continue;
+					tms_ns = buckets[p].getWaitTime(now_ns);
+					if(tms_ns == 0 && p == PRIORITY_BULK)
+						tms_ns = getBulkWaitTime(now_ns, slot);
+					if(tms_ns == 0)
+						break;
+					wait_ns = Math.min(wait_ns, tms_ns);
+					slot = null;
+				}
+			}
+			else if(!hasWired())
+				wait_ns = Long.MAX_VALUE;
+
+			if(slot!=null)
+				queue = queues[p];
+			// proxy messages are sent while no message for the link is ready
+			else if((slot = proxy.peek())!=null) {
+				queue = proxy;
+				p = slot.priority;
+			}
+			else {
+				if(wait_ns == Long.MAX_VALUE)
+					LockSupport.park(this);
+				else
+					LockSupport.parkNanos(this, wait_ns);
+				continue;
+			}
+
+			queue.poll();
+			if((msg = slot.pending.getAndSet(null))==null)
+				continue;
+
+			bytes = msg.payload_length + MAVLINK_OVERHEAD;
+			if(slot.wired)
+				buckets[p].consume(bytes);
+
+			tms_ns = slot.published_ns;
+			try {
+				if(!control.sendMAVLinkMessage(msg))
+					errors++;
+			} catch(Exception e) {
+				errors++;
+			}
+			send_ns = System.nanoTime();
+			if(slot.wired) {
+				last_send_ns = send_ns;
+				link_free_ns = Math.max(link_free_ns, now_ns) + (long)(bytes * wire_ns_per_byte);
+				if(p == PRIORITY_HIGH)
+					last_high_send_ns = send_ns;
+			}
+
+			// the message has been encoded by the link
+			if(slot.recycler!=null)
+				slot.recycler.recycle(msg);
+
+			tms_ns = send_ns - tms_ns;
+			latency_ns[p] += tms_ns;
+			if(tms_ns > max_latency_ns[p])
+				max_latency_ns[p] = tms_ns;
+			sent[p]++;
+		}
+	}
+
+	/**
+	 * @return Number of message types waiting to be sent
+	 */
+	public int getQueueDepth() {
+		int depth = proxy.size();
+		for(int p = 0; p < CLASSES; p++)
+			depth += queues[p].size();
+		return depth;
+	}
+
+	public int getMaxQueueDepth() {
+		int depth = proxy.max_depth;
+		for(int p = 0; p < CLASSES; p++)
+			depth = Math.max(depth, queues[p].max_depth);
+		return depth;
+	}
+
+	/**
+	 * @param priority Priority class
+	 * @return Mean time between publishing and sending of a message of the class in us
+	 */
+	public long getMeanLatency(int priority) {
+		long n = sent[priority];
+		return n > 0 ? latency_ns[priority] / n / 1000 : 0;
+	}
+
+	/**
+	 * @param priority Priority class
+	 * @return Maximum time between publishing and sending of a message of the class in us
+	 */
+	public long getMaxLatency(int priority) {
+		return max_latency_ns[priority] / 1000;
+	}
+
+	public long getSentCount(int priority) {
+		return sent[priority];
+	}
+
+	/**
+	 * @return Number of messages replaced by a newer message before they were sent
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public long getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * @return Priority class of the message type
+	 */
+	public static int getPriority(int messageType) {
+		switch(messageType) {
+		case msg_vision_position_estimate.MAVLINK_MSG_ID_VISION_POSITION_ESTIMATE:
+		case msg_vision_speed_estimate.MAVLINK_MSG_ID_VISION_SPEED_ESTIMATE:
+			return PRIORITY_HIGH;
+		case msg_msp_micro_grid.MAVLINK_MSG_ID_MSP_MICRO_GRID:
+		case msg_msp_micro_slam.MAVLINK_MSG_ID_MSP_MICRO_SLAM:
+			return PRIORITY_BULK;
+		default:
+			return PRIORITY_NORMAL;
+		}
+	}
+
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append("coalesced=").append(coalesced.get()).append(" errors=").append(errors)
+		 .append(" depth=").append(getQueueDepth()).append(" max.depth=").append(getMaxQueueDepth());
+		for(int p = 0; p < CLASSES; p++)
+			b.append(' ').append(CLASS_NAMES[p]).append(": sent=").append(sent[p])
+			 .append(" latency=").append(getMeanLatency(p)).append("us max.latency=")
+			 .append(getMaxLatency(p)).append("us");
+		return b.toString();
+	}
+
+	/*
+	 * A bulk message is sent only if it is on the wire before the next high priority message is
+	 * expected. A message longer than the period of the high priority messages is sent right after one.
+	 */
+	private long getBulkWaitTime(long now_ns, Slot slot) {
+		MAVLinkMessage msg = slot.pending.get();
+		if(msg==null)
+			return 0;
+
+		long tx_ns = (long)((msg.payload_length + MAVLINK_OVERHEAD) * wire_ns_per_byte);
+		long next_ns = Long.MAX_VALUE; long period_ns = Long.MAX_VALUE;
+
+		Slot[] s = slots; int n = slot_count;
+		for(int i=0; i < n; i++) {
+			if(s[i].priority != PRIORITY_HIGH || !s[i].wired || s[i].period_ns == 0)
+				continue;
+			long due_ns = s[i].published_ns + s[i].period_ns;
+			// no longer published
+			if(now_ns > due_ns + s[i].period_ns)
+				continue;
+			next_ns   = Math.min(next_ns, due_ns);
+			period_ns = Math.min(period_ns, s[i].period_ns);
+		}
+
+		if(next_ns == Long.MAX_VALUE || now_ns + tx_ns <= next_ns)
+			return 0;
+
+		if(tx_ns >= period_ns && queues[PRIORITY_HIGH].size() == 0 && now_ns - last_high_send_ns < period_ns / 2)
+			return 0;
+
+		// wait for the next high priority message
+		return Math.max(next_ns - now_ns, pacing_ns);
+	}
+
+	private boolean hasWired() {
+		for(int p = 0; p < CLASSES; p++)
+			if(queues[p].size() > 0)
+				return true;
+		return false;
+	}
+
+	private Slot slot(MAVLinkMessage msg) {
+		int type = msg.messageType;
+		Slot[] s = slots; int n = slot_count;
+		for(int i=0; i < n; i++)
+			if(s[i].type==type)
+				return s[i];
+		synchronized(slots) {
+			for(int i=n; i < slot_count; i++)
+				if(s[i].type==type)
+					return s[i];
+			if(slot_count == MAX_TYPES)
+				return null;
+			Slot slot = new Slot(type, getPriority(type), msg.sysId != PROXY_SYS_ID);
+			s[slot_count] = slot;
+			slot_count++;
+			return slot;
+		}
+	}
+
+	private static class Slot {
+		final int type;
+		final int priority;
+		// sent on the serial link, otherwise routed to the proxy
+		final boolean wired;
+		final AtomicReference<MAVLinkMessage> pending = new AtomicReference<MAVLinkMessage>();
+		volatile long published_ns;
+		// mean time between two published messages
+		volatile long period_ns;
+		// messages of one type are returned to the same recycler
+		volatile IMAVLinkRecycler recycler;
+
+		Slot(int type, int priority, boolean wired) {
+			this.type = type;
+			this.priority = priority;
+			this.wired = wired;
+		}
+	}
+
+	/*
+	 * Multi producer single consumer ring of slots with a pending message
+	 */
+	private static class SlotQueue {
+		private final Slot[]          ring     = new Slot[MAX_TYPES];
+		private final AtomicLongArray sequence = new AtomicLongArray(MAX_TYPES);
+		private final AtomicLong      head     = new AtomicLong();
+		private volatile long         tail     = 0;
+		volatile int                  max_depth = 0;
+
+		SlotQueue() {
+			for(int i=0; i < MAX_TYPES; i++)
+				sequence.set(i, i);
+		}
+
+		boolean offer(Slot slot) {
+			long pos = head.get();
+			for(;;) {
+				int index = (int)pos & (MAX_TYPES-1);
+				long dif = sequence.get(index) - pos;
+				if(dif == 0) {
+					if(head.compareAndSet(pos, pos+1)) {
+						ring[index] = slot;
+						sequence.lazySet(index, pos+1);
+						return true;
+					}
+					pos = head.get();
+				}
+				else if(dif < 0)
+					return false;
+				else
+					pos = head.get();
+			}
+		}
+
+		// consumer only
+		Slot peek() {
+			long pos = tail;
+			int index = (int)pos & (MAX_TYPES-1);
+			if(sequence.get(index) != pos+1)
+				return null;
+			return ring[index];
+		}
+
+		// consumer only, after peek
+		void poll() {
+			long pos = tail;
+			int index = (int)pos & (MAX_TYPES-1);
+			int depth = (int)(head.get() - pos);
+			if(depth > max_depth)
+				max_depth = depth;
+			ring[index] = null;
+			sequence.lazySet(index, pos+MAX_TYPES);
+			tail = pos+1;
+		}
+
+		int size() {
+			return (int)(head.get() - tail);
+		}
+	}
+
+	/*
+	 * Bytes a class may send. Tokens may become negative by a message larger than the available tokens,
+	 * the class then waits until the debt is refilled.
+	 */
+	private static class Bucket {
+		private final double rate_per_ns;
+		private final double size;
+		private double tokens;
+		private long   tms_ns = 0;
+
+		Bucket(double bytes_per_s) {
+			this.rate_per_ns = bytes_per_s / 1e9;
+			this.size        = Math.max(bytes_per_s * BURST_S, 256);
+			this.tokens      = size;
+		}
+
+		long getWaitTime(long now_ns) {
+			if(tms_ns > 0)
+				tokens = Math.min(size, tokens + (now_ns - tms_ns) * rate_per_ns);
+			tms_ns = now_ns;
+			return tokens >= 0 ? 0 : (long)(-tokens / rate_per_ns) + 1;
+		}
+
+		void consume(int bytes) {
+			tokens -= bytes;
+		}
+	}
+}
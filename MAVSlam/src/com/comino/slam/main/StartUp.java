@@ -53,6 +53,8 @@ import com.comino.server.mjpeg.impl.HttpMJPEGHandler;
 import com.comino.slam.detectors.impl.VfhFeatureDetector;
 import com.comino.slam.estimators.IPositionEstimator;
 import com.comino.slam.estimators.MAVPositionEstimatorAttitude;
+import com.comino.slam.link.MAVLinkMessagePool;
+import com.comino.slam.link.MAVLinkPublisher;
 import com.sun.net.httpserver.HttpServer;
 
 public class StartUp implements Runnable {
@@ -169,6 +171,10 @@ public class StartUp implements Runnable {
 
 		WifiQuality wifi = new WifiQuality();
 
+		// messages are reused after they have been sent
+		MAVLinkMessagePool<msg_msp_micro_grid> grids  = new MAVLinkMessagePool<>(2, () -> new msg_msp_micro_grid(2,1));
+		MAVLinkMessagePool<msg_msp_status>     states = new MAVLinkMessagePool<>(2, () -> new msg_msp_status(2,1));
+
 		while(true) {
 			try {
 				Thread.sleep(250);
@@ -182,30 +188,33 @@ public class StartUp implements Runnable {
 				wifi.getQuality();
 
 
-				if(publish_microslam) {
-					msg_msp_micro_grid msg = new msg_msp_micro_grid(2,1);
-					msg.resolution = 0;
-					msg.extension  = 0;
-					msg.cx  = model.grid.getIndicatorX();
-					msg.cy  = model.grid.getIndicatorY();
-					msg.tms  = System.nanoTime() / 1000;
-					msg.count = model.grid.count;
-					if(model.grid.toArray(msg.data))
-						control.sendMAVLinkMessage(msg);
+				// a queued grid is not replaced, as its blocks have already been removed from the transfer
+				if(publish_microslam && !isQueued(msg_msp_micro_grid.MAVLINK_MSG_ID_MSP_MICRO_GRID)) {
+					msg_msp_micro_grid grid = grids.acquire();
+					grid.resolution = 0;
+					grid.extension  = 0;
+					grid.cx  = model.grid.getIndicatorX();
+					grid.cy  = model.grid.getIndicatorY();
+					grid.tms  = System.nanoTime() / 1000;
+					grid.count = model.grid.count;
+					if(model.grid.toArray(grid.data))
+						MAVLinkPublisher.send(control, grid, grids);
+					else
+						grids.recycle(grid);
 				}
 
-				msg_msp_status msg = new msg_msp_status(2,1);
-				msg.load = (int)(osBean.getSystemLoadAverage()*100);
-				msg.memory = (int)(mxBean.getHeapMemoryUsage().getUsed() * 100 /mxBean.getHeapMemoryUsage().getMax());
-				msg.wifi_quality = (byte)wifi.get();
-				msg.com_error = control.getErrorCount();
-				msg.autopilot_mode =control.getCurrentModel().sys.autopilot;
-				msg.uptime_ms = System.currentTimeMillis() - tms;
-				msg.status = control.getCurrentModel().sys.getStatus();
-				msg.setVersion(config.getVersion());
-				msg.setArch(osBean.getArch());
-				msg.unix_time_us = System.currentTimeMillis() * 1000;
-				control.sendMAVLinkMessage(msg);
+				msg_msp_status status = states.acquire();
+				status.load = (int)(osBean.getSystemLoadAverage()*100);
+				status.memory = (int)(mxBean.getHeapMemoryUsage().getUsed() * 100 /mxBean.getHeapMemoryUsage().getMax());
+				status.wifi_quality = (byte)wifi.get();
+				status.com_error = control.getErrorCount();
+				status.autopilot_mode =control.getCurrentModel().sys.autopilot;
+				status.uptime_ms = System.currentTimeMillis() - tms;
+				status.status = control.getCurrentModel().sys.getStatus();
+				status.setVersion(config.getVersion());
+				status.setArch(osBean.getArch());
+				status.unix_time_us = System.currentTimeMillis() * 1000;
+				MAVLinkPublisher.send(control, status, states);
 
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -213,4 +222,9 @@ public class StartUp implements Runnable {
 			}
 		}
 	}
+
+	private boolean isQueued(int messageType) {
+		MAVLinkPublisher publisher = MAVLinkPublisher.getInstance();
+		return publisher!=null && publisher.isQueued(messageType);
+	}
 }
@@ -0,0 +1,180 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.model;
+
+/**
+ * Ring buffer of timestamped attitudes. The attitude at any time covered by the buffer is
+ * interpolated by slerp of the neighbouring samples. Samples are stored as quaternions in
+ * primitive arrays, neither adding nor lookup allocates.
+ *
+ * @author Eike Mansfeld
+ */
+public class AttitudeHistory {
+
+	private final int    capacity;
+	private final long   max_gap_ns;
+
+	private final long[]   time;
+	private final double[] qw, qx, qy, qz;
+
+	// index of the newest sample
+	private int head  = -1;
+	private int count = 0;
+
+	/**
+	 * @param capacity Number of samples kept
+	 * @param max_gap_ms Samples further apart are not interpolated, a time after the newest sample
+	 *                   is accepted within this range
+	 */
+	public AttitudeHistory(int capacity, int max_gap_ms) {
+		this.capacity   = capacity;
+		this.max_gap_ns = max_gap_ms * 1000000L;
+		this.time = new long[capacity];
+		this.qw = new double[capacity];
+		this.qx = new double[capacity];
+		this.qy = new double[capacity];
+		this.qz = new double[capacity];
+	}
+
+	/**
+	 * Adds the attitude. Samples not newer than the last one are ignored.
+	 *
+	 * @param time_ns System.nanoTime() the attitude is valid
+	 */
+	public synchronized void add(long time_ns, float roll, float pitch, float yaw) {
+		if(count > 0 && time_ns <= time[head])
+			return;
+
+		head = (head + 1) % capacity;
+		if(count < capacity)
+			count++;
+
+		double cr = Math.cos(roll * 0.5),  sr = Math.sin(roll * 0.5);
+		double cp = Math.cos(pitch * 0.5), sp = Math.sin(pitch * 0.5);
+		double cy = Math.cos(yaw * 0.5),   sy = Math.sin(yaw * 0.5);
+
+		time[head] = time_ns;
+		qw[head] = cr * cp * cy + sr * sp * sy;
+		qx[head] = sr * cp * cy - cr * sp * sy;
+		qy[head] = cr * sp * cy + sr * cp * sy;
+		qz[head] = cr * cp * sy - sr * sp * cy;
+	}
+
+	/**
+	 * Attitude at the given time
+	 *
+	 * @param time_ns System.nanoTime()
+	 * @param rpy Roll, pitch and yaw
+	 * @return false if the time is not covered by the buffer
+	 */
+	public synchronized boolean get(long time_ns, double[] rpy) {
+		if(count == 0)
+			return false;
+
+		if(time_ns >= time[head]) {
+			if(time_ns - time[head] > max_gap_ns)
+				return false;
+			toEuler(qw[head], qx[head], qy[head], qz[head], rpy);
+			return true;
+		}
+
+		// largest sample not after time_ns, samples by age 0..count-1 from the oldest
+		int lo = 0, hi = count - 1;
+		if(time_ns < time[index(lo)])
+			return false;
+		while(hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if(time[index(mid)] <= time_ns)
+				lo = mid;
+			else
+				hi = mid;
+		}
+
+		int a = index(lo), b = index(hi);
+		long gap = time[b] - time[a];
+		if(gap > max_gap_ns)
+			return false;
+
+		slerp(a, b, (double)(time_ns - time[a]) / gap, rpy);
+		return true;
+	}
+
+	public synchronized void reset() {
+		head  = -1;
+		count = 0;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	private int index(int age) {
+		return (head - count + 1 + age + capacity) % capacity;
+	}
+
+	private void slerp(int a, int b, double t, double[] rpy) {
+		double bw = qw[b], bx = qx[b], by = qy[b], bz = qz[b];
+		double dot = qw[a] * bw + qx[a] * bx + qy[a] * by + qz[a] * bz;
+
+		// shortest path
+		if(dot < 0) {
+			dot = -dot; bw = -bw; bx = -bx; by = -by; bz = -bz;
+		}
+
+		double sa, sb;
+		if(dot > 0.9995) {
+			sa = 1 - t; sb = t;
+		} else {
+			double theta = Math.acos(dot);
+			double s = Math.sin(theta);
+			sa = Math.sin((1 - t) * theta) / s;
+			sb = Math.sin(t * theta) / s;
+		}
+
+		double w = sa * qw[a] + sb * bw;
+		double x = sa * qx[a] + sb * bx;
+		double y = sa * qy[a] + sb * by;
+		double z = sa * qz[a] + sb * bz;
+		double n = Math.sqrt(w * w + x * x + y * y + z * z);
+		toEuler(w / n, x / n, y / n, z / n, rpy);
+	}
+
+	private static void toEuler(double w, double x, double y, double z, double[] rpy) {
+		double sp = 2 * (w * y - z * x);
+		rpy[0] = Math.atan2(2 * (w * x + y * z), 1 - 2 * (x * x + y * y));
+		rpy[1] = Math.asin(sp > 1 ? 1 : (sp < -1 ? -1 : sp));
+		rpy[2] = Math.atan2(2 * (w * z + x * y), 1 - 2 * (y * y + z * z));
+	}
+}
@@ -0,0 +1,81 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.model;
+
+/**
+ * Maps the timestamps of a remote clock to System.nanoTime(). The offset is the minimum of the
+ * observed transport delays, so it follows the fastest sample and ignores the jitter of the others.
+ * The offset may grow slowly to follow the drift of the clocks. Not thread safe, one clock per
+ * receiving thread.
+ *
+ * @author Eike Mansfeld
+ */
+public class ClockOffset {
+
+	// drift of the remote clock accepted without a new minimum
+	private static final long MAX_DRIFT_PPM = 100;
+
+	private long    offset_ns      = 0;
+	private long    last_local_ns  = 0;
+	private long    last_remote_ns = 0;
+	private boolean valid          = false;
+
+	/**
+	 * @param remote_ns Timestamp of the remote clock in ns
+	 * @param local_ns  System.nanoTime() when the sample was received
+	 * @return Timestamp in System.nanoTime()
+	 */
+	public long toLocal(long remote_ns, long local_ns) {
+		long offset = local_ns - remote_ns;
+
+		// remote clock restarted
+		if(!valid || remote_ns < last_remote_ns) {
+			offset_ns = offset;
+			valid = true;
+		} else {
+			offset_ns += (local_ns - last_local_ns) * MAX_DRIFT_PPM / 1000000L;
+			if(offset < offset_ns)
+				offset_ns = offset;
+		}
+
+		last_local_ns  = local_ns;
+		last_remote_ns = remote_ns;
+		return remote_ns + offset_ns;
+	}
+
+	public void reset() {
+		valid = false;
+	}
+}
@@ -0,0 +1,186 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.model;
+
+import org.mavlink.messages.lquac.msg_attitude;
+import org.mavlink.messages.lquac.msg_distance_sensor;
+import org.mavlink.messages.lquac.msg_local_position_ned;
+
+import com.comino.mav.control.IMAVMSPController;
+import com.comino.msp.model.DataModel;
+
+/**
+ * Consistent snapshot of attitude, local position and distance of the vehicle. The values are taken
+ * from the received messages, not from the model which is written field by field. Writers are
+ * serialized, readers copy the record by a sequence lock without locking and without allocation.
+ *
+ * @author Eike Mansfeld
+ */
+public class VehicleState {
+
+	// about 0.5s of attitude at 250Hz
+	private static final int ATTITUDE_HISTORY_SIZE = 128;
+	private static final int ATTITUDE_MAX_GAP_MS   = 50;
+
+	private static VehicleState instance = null;
+
+	private final DataModel model;
+
+	// attitude by time of the flight controller mapped to System.nanoTime()
+	private final AttitudeHistory history   = new AttitudeHistory(ATTITUDE_HISTORY_SIZE, ATTITUDE_MAX_GAP_MS);
+	private final ClockOffset     px4_clock = new ClockOffset();
+
+	// odd while the record is written
+	private volatile long sequence = 0;
+
+	private volatile float r, p, y, rr, pr, yr;
+	private volatile float l_x, l_y, l_z;
+	private volatile float di;
+	private volatile int   status;
+	private volatile long  attitude_tms = 0;
+	private volatile long  position_tms = 0;
+
+	/**
+	 * Creates the state shared by all readers on the first call and registers it for the messages
+	 */
+	public static synchronized VehicleState getInstance(IMAVMSPController control) {
+		if(instance==null)
+			instance = new VehicleState(control);
+		return instance;
+	}
+
+	private VehicleState(IMAVMSPController control) {
+		this.model = control.getCurrentModel();
+
+		control.registerListener(msg_attitude.class, (o) -> {
+			msg_attitude msg = (msg_attitude)o;
+			history.add(px4_clock.toLocal(msg.time_boot_ms * 1000000L, System.nanoTime()), msg.roll, msg.pitch, msg.yaw);
+			synchronized(this) {
+				sequence++;
+				r  = msg.roll;      p  = msg.pitch;      y  = msg.yaw;
+				rr = msg.rollspeed; pr = msg.pitchspeed; yr = msg.yawspeed;
+				status = model.sys.getStatus();
+				attitude_tms = System.nanoTime();
+				sequence++;
+			}
+		});
+
+		control.registerListener(msg_local_position_ned.class, (o) -> {
+			msg_local_position_ned msg = (msg_local_position_ned)o;
+			synchronized(this) {
+				sequence++;
+				l_x = msg.x; l_y = msg.y; l_z = msg.z;
+				status = model.sys.getStatus();
+				position_tms = System.nanoTime();
+				sequence++;
+			}
+		});
+
+		control.registerListener(msg_distance_sensor.class, (o) -> {
+			msg_distance_sensor msg = (msg_distance_sensor)o;
+			synchronized(this) {
+				sequence++;
+				di = msg.current_distance / 100f;
+				sequence++;
+			}
+		});
+	}
+
+	/**
+	 * Copies a consistent record. Values not received yet are taken from the model.
+	 */
+	public Snapshot read(Snapshot s) {
+		long seq;
+		do {
+			while(((seq = sequence) & 1) != 0)
+				Thread.yield();
+			s.r = r; s.p = p; s.y = y; s.rr = rr; s.pr = pr; s.yr = yr;
+			s.l_x = l_x; s.l_y = l_y; s.l_z = l_z;
+			s.di = di;
+			s.status = status;
+			s.attitude_tms = attitude_tms;
+			s.position_tms = position_tms;
+		} while(seq != sequence);
+
+		if(s.attitude_tms == 0) {
+			s.r  = model.attitude.r;  s.p  = model.attitude.p;  s.y  = model.attitude.y;
+			s.rr = model.attitude.rr; s.pr = model.attitude.pr; s.yr = model.attitude.yr;
+			s.status = model.sys.getStatus();
+		}
+		if(s.position_tms == 0) {
+			s.l_x = model.state.l_x; s.l_y = model.state.l_y; s.l_z = model.state.l_z;
+		}
+		return s;
+	}
+
+	/**
+	 * Copies a consistent record with the attitude interpolated to the given time, e.g. the capture
+	 * of a frame. If the time is not covered by the history, the latest attitude is kept.
+	 *
+	 * @param time_ns System.nanoTime()
+	 * @return true if the attitude has been interpolated
+	 */
+	public boolean readAt(long time_ns, Snapshot s) {
+		read(s);
+		if(!history.get(time_ns, s.att))
+			return false;
+		s.r = (float)s.att[0]; s.p = (float)s.att[1]; s.y = (float)s.att[2];
+		return true;
+	}
+
+	/**
+	 * Copy of the state owned by one reader
+	 */
+	public static class Snapshot {
+		public float r, p, y;
+		public float rr, pr, yr;
+		public float l_x, l_y, l_z;
+		public float di;
+		public int   status;
+		// time of the last attitude and position message, System.nanoTime(), 0 if none received
+		public long  attitude_tms;
+		public long  position_tms;
+
+		private final double[] att = new double[3];
+
+		/**
+		 * Same as {@link com.comino.msp.model.segment.Status#isStatus(int...)} for a single flag
+		 * without allocating the arguments
+		 */
+		public boolean isStatus(int flag) {
+			return (status & (1 << flag)) != 0;
+		}
+	}
+}
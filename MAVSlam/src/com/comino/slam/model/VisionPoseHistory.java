@@ -0,0 +1,216 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.model;
+
+import georegression.geometry.ConvertRotation3D_F64;
+import georegression.struct.point.Vector3D_F64;
+import georegression.struct.se.Se3_F64;
+import georegression.struct.so.Quaternion_F64;
+
+/**
+ * History of the vision poses by capture time of their frames. Consumers running behind the
+ * estimator get the pose, velocity and quality valid at the time of their frame. Position and
+ * velocity are interpolated linearly, the rotation by slerp. Stored in primitive arrays, neither
+ * adding nor lookup allocates.
+ *
+ * @author Eike Mansfeld
+ */
+public class VisionPoseHistory {
+
+	// about 2s at 30fps
+	private static final int HISTORY_SIZE = 64;
+	private static final int MAX_GAP_MS   = 200;
+
+	private static VisionPoseHistory instance = null;
+
+	private final int    capacity;
+	private final long   max_gap_ns;
+
+	private final long[]   time;
+	private final double[] x, y, z;
+	private final double[] vx, vy, vz;
+	private final double[] qw, qx, qy, qz;
+	private final int[]    quality;
+
+	private final Quaternion_F64 q = new Quaternion_F64();
+
+	// index of the newest pose
+	private int head  = -1;
+	private int count = 0;
+
+	public static synchronized VisionPoseHistory getInstance() {
+		if(instance==null)
+			instance = new VisionPoseHistory(HISTORY_SIZE, MAX_GAP_MS);
+		return instance;
+	}
+
+	/**
+	 * @param capacity Number of poses kept
+	 * @param max_gap_ms Poses further apart are not interpolated
+	 */
+	public VisionPoseHistory(int capacity, int max_gap_ms) {
+		this.capacity   = capacity;
+		this.max_gap_ns = max_gap_ms * 1000000L;
+		this.time = new long[capacity];
+		this.x  = new double[capacity]; this.y  = new double[capacity]; this.z  = new double[capacity];
+		this.vx = new double[capacity]; this.vy = new double[capacity]; this.vz = new double[capacity];
+		this.qw = new double[capacity]; this.qx = new double[capacity];
+		this.qy = new double[capacity]; this.qz = new double[capacity];
+		this.quality = new int[capacity];
+	}
+
+	/**
+	 * Adds the pose of a frame. Poses not newer than the last one are ignored.
+	 *
+	 * @param time_ns Capture time of the frame, System.nanoTime()
+	 * @param pose Camera to world
+	 * @param vel Velocity in world frame
+	 */
+	public synchronized void add(long time_ns, Se3_F64 pose, Vector3D_F64 vel, int quality) {
+		if(count > 0 && time_ns <= time[head])
+			return;
+
+		head = (head + 1) % capacity;
+		if(count < capacity)
+			count++;
+
+		ConvertRotation3D_F64.matrixToQuaternion(pose.R, q);
+
+		time[head] = time_ns;
+		x[head]  = pose.T.x; y[head]  = pose.T.y; z[head]  = pose.T.z;
+		vx[head] = vel.x;    vy[head] = vel.y;    vz[head] = vel.z;
+		qw[head] = q.w; qx[head] = q.x; qy[head] = q.y; qz[head] = q.z;
+		this.quality[head] = quality;
+	}
+
+	/**
+	 * Pose valid at the given time
+	 *
+	 * @param time_ns Capture time of the frame, System.nanoTime()
+	 * @param pose Camera to world
+	 * @param vel Velocity in world frame, can be null
+	 * @return Quality of the pose, -1 if the time is not covered by the history
+	 */
+	public synchronized int get(long time_ns, Se3_F64 pose, Vector3D_F64 vel) {
+		if(count == 0 || time_ns > time[head])
+			return -1;
+
+		int lo = 0, hi = count - 1;
+		if(time_ns < time[index(lo)])
+			return -1;
+
+		// largest pose not after time_ns, poses by age 0..count-1 from the oldest
+		while(hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if(time[index(mid)] <= time_ns)
+				lo = mid;
+			else
+				hi = mid;
+		}
+
+		int a = index(lo), b = index(hi);
+		if(time[a] == time_ns || a == b) {
+			set(a, pose, vel);
+			return quality[a];
+		}
+		if(time[b] == time_ns) {
+			set(b, pose, vel);
+			return quality[b];
+		}
+
+		long gap = time[b] - time[a];
+		if(gap > max_gap_ns)
+			return -1;
+
+		double t = (double)(time_ns - time[a]) / gap;
+		pose.T.set(x[a] + (x[b] - x[a]) * t, y[a] + (y[b] - y[a]) * t, z[a] + (z[b] - z[a]) * t);
+		if(vel!=null)
+			vel.set(vx[a] + (vx[b] - vx[a]) * t, vy[a] + (vy[b] - vy[a]) * t, vz[a] + (vz[b] - vz[a]) * t);
+		slerp(a, b, t);
+		ConvertRotation3D_F64.quaternionToMatrix(q, pose.R);
+
+		return Math.min(quality[a], quality[b]);
+	}
+
+	/**
+	 * Poses of different odometry segments are not interpolated
+	 */
+	public synchronized void reset() {
+		head  = -1;
+		count = 0;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	private int index(int age) {
+		return (head - count + 1 + age + capacity) % capacity;
+	}
+
+	private void set(int i, Se3_F64 pose, Vector3D_F64 vel) {
+		pose.T.set(x[i], y[i], z[i]);
+		if(vel!=null)
+			vel.set(vx[i], vy[i], vz[i]);
+		q.w = qw[i]; q.x = qx[i]; q.y = qy[i]; q.z = qz[i];
+		ConvertRotation3D_F64.quaternionToMatrix(q, pose.R);
+	}
+
+	private void slerp(int a, int b, double t) {
+		double bw = qw[b], bx = qx[b], by = qy[b], bz = qz[b];
+		double dot = qw[a] * bw + qx[a] * bx + qy[a] * by + qz[a] * bz;
+
+		// shortest path
+		if(dot < 0) {
+			dot = -dot; bw = -bw; bx = -bx; by = -by; bz = -bz;
+		}
+
+		double sa, sb;
+		if(dot > 0.9995) {
+			sa = 1 - t; sb = t;
+		} else {
+			double theta = Math.acos(dot);
+			double s = Math.sin(theta);
+			sa = Math.sin((1 - t) * theta) / s;
+			sb = Math.sin(t * theta) / s;
+		}
+
+		q.w = sa * qw[a] + sb * bw;
+		q.x = sa * qx[a] + sb * bx;
+		q.y = sa * qy[a] + sb * by;
+		q.z = sa * qz[a] + sb * bz;
+		q.normalize();
+	}
+}
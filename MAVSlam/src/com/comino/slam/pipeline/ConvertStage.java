@@ -0,0 +1,68 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.pipeline;
+
+import com.comino.slam.boofcv.tracker.IPointTrackerTwoPassPipelined;
+
+import boofcv.core.image.ConvertImage;
+import boofcv.struct.image.GrayU8;
+
+/**
+ * Converts the images of the camera into the frame. With a pipelined tracker, its pyramid is
+ * built here while the previous frame is tracked.
+ *
+ * @author Eike Mansfeld
+ */
+public class ConvertStage implements IPipelineStage {
+
+	private final IPointTrackerTwoPassPipelined<GrayU8> tracker;
+
+	/**
+	 * @param tracker pipelined tracker to prepare, null if the tracking is not pipelined
+	 */
+	public ConvertStage(IPointTrackerTwoPassPipelined<GrayU8> tracker) {
+		this.tracker = tracker;
+	}
+
+	public int getInputs()  { return Frame.CAPTURE; }
+	public int getOutputs() { return Frame.GRAY | Frame.DEPTH; }
+
+	public boolean process(Frame frame) {
+		ConvertImage.average(frame.rgb, frame.gray);
+		frame.depth.setTo(frame.capture_depth);
+		if(tracker!=null)
+			tracker.prepare(frame.gray);
+		return true;
+	}
+}
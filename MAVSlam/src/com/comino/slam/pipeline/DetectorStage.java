@@ -0,0 +1,88 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+package com.comino.slam.pipeline;
+
+import java.util.List;
+
+import com.comino.slam.boofcv.odometry.MAVDepthVisualOdometry;
+import com.comino.slam.detectors.ISLAMDetector;
+
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+
+/**
+ * Runs the registered detectors on frames with a valid pose, at most once per cycle.
+ *
+ * @author Eike Mansfeld
+ */
+public class DetectorStage implements IPipelineStage {
+
+	private final List<ISLAMDetector> detectors;
+	private final MAVDepthVisualOdometry<GrayU8,GrayU16> odometry;
+	private final int cycle_ms;
+
+	private volatile long detector_tms = 0;
+
+	public DetectorStage(List<ISLAMDetector> detectors, int cycle_ms, MAVDepthVisualOdometry<GrayU8,GrayU16> odometry) {
+		this.detectors = detectors;
+		this.cycle_ms  = cycle_ms;
+		this.odometry  = odometry;
+	}
+
+	public int getInputs()  { return Frame.GRAY | Frame.DEPTH | Frame.POSE; }
+	public int getOutputs() { return 0; }
+
+	public boolean process(Frame frame) {
+		if(detectors.size()>0 && cycle_ms>0) {
+			if((System.currentTimeMillis() - detector_tms) > cycle_ms) {
+				detector_tms = System.currentTimeMillis();
+				for(ISLAMDetector d : detectors) {
+					try {
+						d.process(odometry, frame.depth, frame.gray, frame.frame_ns);
+					} catch(Exception e) {
+						System.out.println(frame.timeDepth+"[vis] Detector exception: "+e.getMessage());
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Restarts the cycle, the detectors are not run before it has passed
+	 */
+	public void reset() {
+		detector_tms = System.currentTimeMillis();
+	}
+}
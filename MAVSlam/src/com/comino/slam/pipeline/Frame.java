@@ -0,0 +1,87 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+/**
+ * Frame passed through the stages of a {@link Pipeline}. Frames are recycled by the pipeline, stages must
+ * not keep references to its images after they returned.
+ *
+ * @author Eike Mansfeld
+ */
+public class Frame {
+
+	// data of a frame declared as inputs and outputs of the stages
+
+	// images of the camera, only valid for stages on the capturing thread
+	public static final int CAPTURE = 1;
+	public static final int GRAY    = 2;
+	public static final int DEPTH   = 4;
+	// the pose of the frame has been estimated
+	public static final int POSE    = 8;
+
+	public final GrayU8  gray;
+	public final GrayU16 depth;
+
+	public Planar<GrayU8> rgb;
+	public GrayU16        capture_depth;
+
+	// timestamp of the camera in ms
+	public long timeDepth;
+	// System.nanoTime() when the frame was received, the odometry may correct it to the capture time
+	public long frame_ns;
+
+	// stages and queues still holding the frame
+	final AtomicInteger refs = new AtomicInteger();
+
+	public Frame(int width, int height) {
+		this.gray  = new GrayU8(width,height);
+		this.depth = new GrayU16(width,height);
+	}
+
+	public static String toString(int data) {
+		StringBuilder b = new StringBuilder();
+		if((data & CAPTURE)!=0) b.append("capture ");
+		if((data & GRAY)!=0)    b.append("gray ");
+		if((data & DEPTH)!=0)   b.append("depth ");
+		if((data & POSE)!=0)    b.append("pose ");
+		return b.toString().trim();
+	}
+}
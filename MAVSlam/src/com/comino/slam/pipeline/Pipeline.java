@@ -0,0 +1,332 @@
+/****************************************************************************
+ *
+ *   Copyright (c) 2017 Eike Mansfeld ecm@gmx.de. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS
+ * OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED
+ * AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ ****************************************************************************/
+
+
+package com.comino.slam.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import boofcv.struct.image.GrayU16;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+/**
+ * Chain of stages processing the frames of the camera. The stages run on the capturing thread until
+ * the chain is continued on another thread. Threads are fed by bounded queues: the main chain blocks
+ * the capturing thread if its queue is full, branches off the main chain drop the frame instead.
+ * The number of frames in the main chain is fixed, the capturing thread waits until one has passed
+ * it. Frames held by branches do not count, they get frames of their own.
+ *
+ * <pre>
+ * Pipeline p = new Pipeline.Builder(width, height, 2)
+ *     .add(convert)
+ *     .branch("Vision stream", 1, 1, stream)
+ *     .thread("Vision tracking", 1)
+ *     .add(odometry)
+ *     .build();
+ * </pre>
+ *
+ * @author Eike Mansfeld
+ */
+public class Pipeline {
+
+	private final BlockingQueue<Frame> free;
+	// frames in the main chain
+	private final Semaphore            inflight;
+	private final Segment              source;
+	private final List<Segment>        segments;
+
+	private Pipeline(Builder builder) {
+		this.source   = builder.segments.get(0);
+		this.segments = builder.segments;
+		this.inflight = new Semaphore(builder.frames);
+
+		// a branch holds at most the queued frames and one per thread
+		int count = builder.frames;
+		for(Segment s : segments) {
+			if(s.drop)
+				count += s.queue.remainingCapacity() + s.threads;
+		}
+		this.free = new ArrayBlockingQueue<Frame>(count);
+		for(int i = 0; i < count; i++)
+			free.add(new Frame(builder.width, builder.height));
+	}
+
+	public void start() {
+		for(Segment s : segments) {
+			for(int i = 0; i < s.threads; i++) {
+				Thread t = new Thread(() -> {
+					while(!Thread.currentThread().isInterrupted()) {
+						try {
+							run(s, s.queue.take());
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}, s.threads > 1 ? s.name+" "+i : s.name);
+				t.setDaemon(true);
+				s.workers.add(t);
+				t.start();
+			}
+		}
+	}
+
+	public void stop() {
+		for(Segment s : segments) {
+			for(Thread t : s.workers)
+				t.interrupt();
+			s.workers.clear();
+		}
+	}
+
+	/**
+	 * Passes the images of the camera to the pipeline, called by the capturing thread.
+	 *
+	 * @param timeDepth Timestamp of the camera in ms
+	 */
+	public void process(Planar<GrayU8> rgb, GrayU16 depth, long timeDepth) {
+		long frame_ns = System.nanoTime();
+		Frame frame;
+		try {
+			inflight.acquire();
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			// does not wait, there is a frame for each holder
+			frame = free.take();
+		} catch (InterruptedException e) {
+			inflight.release();
+			return;
+		}
+		frame.rgb           = rgb;
+		frame.capture_depth = depth;
+		frame.timeDepth     = timeDepth;
+		frame.frame_ns      = frame_ns;
+		frame.refs.set(1);
+		run(source, frame);
+	}
+
+	/**
+	 * @return Frames dropped by the branches
+	 */
+	public long getDroppedCount() {
+		long count = 0;
+		for(Segment s : segments)
+			count += s.dropped.get();
+		return count;
+	}
+
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for(Segment s : segments) {
+			if(b.length() > 0)
+				b.append(" | ");
+			b.append(s.name).append(": ");
+			for(int i = 0; i < s.steps.size(); i++) {
+				if(i > 0)
+					b.append(" > ");
+				Object step = s.steps.get(i);
+				b.append(step instanceof Segment ? "["+((Segment)step).name+"]" : step.getClass().getSimpleName());
+			}
+			if(s.next!=null)
+				b.append(" > [").append(s.next.name).append("]");
+		}
+		return b.toString();
+	}
+
+	private void run(Segment s, Frame frame) {
+		for(Object step : s.steps) {
+			if(step instanceof Segment) {
+				hand((Segment)step, frame);
+				continue;
+			}
+			IPipelineStage stage = (IPipelineStage)step;
+			boolean passed;
+			try {
+				passed = stage.process(frame);
+			} catch(Exception e) {
+				System.out.println(frame.timeDepth+"[vis] "+stage.getClass().getSimpleName()+" exception: "+e.getMessage());
+				passed = false;
+			}
+			if(!passed) {
+				release(frame);
+				if(!s.drop)
+					inflight.release();
+				return;
+			}
+		}
+		if(s.next!=null) {
+			hand(s.next, frame);
+			release(frame);
+		} else {
+			release(frame);
+			if(!s.drop)
+				inflight.release();
+		}
+	}
+
+	private void hand(Segment s, Frame frame) {
+		frame.refs.incrementAndGet();
+		if(s.drop) {
+			if(!s.queue.offer(frame)) {
+				s.dropped.incrementAndGet();
+				release(frame);
+			}
+			return;
+		}
+		try {
+			s.queue.put(frame);
+		} catch (InterruptedException e) {
+			release(frame);
+			inflight.release();
+		}
+	}
+
+	private void release(Frame frame) {
+		if(frame.refs.decrementAndGet() == 0) {
+			frame.rgb = null;
+			frame.capture_depth = null;
+			free.add(frame);
+		}
+	}
+
+	private static class Segment {
+
+		final String               name;
+		final int                  threads;
+		final boolean              drop;
+		final BlockingQueue<Frame> queue;
+
+		// stages and branches in the order they are run
+		final List<Object> steps   = new ArrayList<Object>();
+		final List<Thread> workers = new ArrayList<Thread>();
+		final AtomicLong   dropped = new AtomicLong();
+
+		// main chain continued on another thread
+		Segment next = null;
+
+		Segment(String name, int capacity, int threads, boolean drop) {
+			this.name    = name;
+			this.threads = threads;
+			this.drop    = drop;
+			this.queue   = capacity > 0 ? new ArrayBlockingQueue<Frame>(capacity) : null;
+		}
+	}
+
+	public static class Builder {
+
+		private final int width, height, frames;
+		private final List<Segment> segments = new ArrayList<Segment>();
+
+		private Segment current;
+		// data provided by the stages added so far
+		private int     available = Frame.CAPTURE;
+
+		/**
+		 * @param frames Number of frames in the main chain at the same time
+		 */
+		public Builder(int width, int height, int frames) {
+			this.width  = width;
+			this.height = height;
+			this.frames = frames;
+			this.current = new Segment("capture", 0, 0, false);
+			segments.add(current);
+		}
+
+		/**
+		 * Adds a stage to the main chain, run on the current thread
+		 */
+		public Builder add(IPipelineStage stage) {
+			available = check(stage, available);
+			current.steps.add(stage);
+			return this;
+		}
+
+		/**
+		 * Continues the main chain on new threads. With more than one thread the stages following
+		 * must be thread safe and frames may complete out of order.
+		 *
+		 * @param capacity Frames queued before the capturing thread is blocked
+		 */
+		public Builder thread(String name, int capacity, int threads) {
+			Segment s = new Segment(name, capacity, threads, false);
+			current.next = s;
+			current = s;
+			available &= ~Frame.CAPTURE;
+			segments.add(s);
+			return this;
+		}
+
+		public Builder thread(String name, int capacity) {
+			return thread(name, capacity, 1);
+		}
+
+		/**
+		 * Runs the stages on new threads off the main chain. Frames are dropped if the queue is full.
+		 * The stages see the data provided before the branch.
+		 *
+		 * @param capacity Frames queued before frames are dropped
+		 */
+		public Builder branch(String name, int capacity, int threads, IPipelineStage... stages) {
+			Segment s = new Segment(name, capacity, threads, true);
+			int data = available & ~Frame.CAPTURE;
+			for(IPipelineStage stage : stages) {
+				data = check(stage, data);
+				s.steps.add(stage);
+			}
+			current.steps.add(s);
+			segments.add(s);
+			return this;
+		}
+
+		public Pipeline build() {
+			if(segments.get(0).steps.isEmpty() && segments.get(0).next == null)
+				throw new IllegalStateException("Pipeline has no stages");
+			return new Pipeline(this);
+		}
+
+		private int check(IPipelineStage stage, int data) {
+			int missing = stage.getInputs() & ~data;
+			if(missing != 0)
+				throw new IllegalArgumentException("Pipeline stage "+stage.getClass().getSimpleName()+
+						" requires "+Frame.toString(missing)+" not available here");
+			return data | stage.getOutputs();
+		}
+	}
+}
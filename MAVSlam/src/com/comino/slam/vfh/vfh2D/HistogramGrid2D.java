@@ -37,6 +37,8 @@
 
 package com.comino.slam.vfh.vfh2D;
 
+import java.util.Arrays;
+
 import com.comino.msp.model.DataModel;
 import com.comino.msp.model.segment.Grid;
 import com.comino.slam.vfh.VfhGrid;
@@ -52,6 +54,12 @@ public class HistogramGrid2D {
 	private VfhGrid grid     = null;
 	private VfhGrid window   = null;
 
+	// blocks set in the model and cells changed since the last transfer
+	private boolean[] blocked  = null;
+	private boolean[] changed  = null;
+	private int[]     dirty    = null;
+	private int       dirty_count = 0;
+
 	private long        tms  = 0;
 	private float   centerx  = 0;
 	private float   centery  = 0;
@@ -63,10 +71,17 @@ public class HistogramGrid2D {
 		centery = ceny;
 		grid   = new VfhGrid(dimension, resolution);
 		window = new VfhGrid(windowsize, resolution);
+
+		blocked = new boolean[grid.cells.length];
+		changed = new boolean[grid.cells.length];
+		dirty   = new int[grid.cells.length];
 	}
 
-	public void reset(DataModel model) {
+	public synchronized void reset(DataModel model) {
 		grid.clear();
+		Arrays.fill(blocked, false);
+		Arrays.fill(changed, false);
+		dirty_count = 0;
 		for (int i = 0; i < grid.dimension; ++i) {
 			for (int j = 0; j < grid.dimension; ++j) {
 				model.grid.setBlock(j*grid.resolution/100f-centerx,i*grid.resolution/100f-centery, false);
@@ -82,7 +97,7 @@ public class HistogramGrid2D {
 	// Updates the grid with an relative observation
 	// TODO: 1. Weight increment relative to the distance
 	//       2. Mark surrounding cells with a default if distance is < limit
-	public boolean gridUpdate(float lpos_x, float lpos_y, Point3D_F64 obstacle) {
+	public synchronized boolean gridUpdate(float lpos_x, float lpos_y, Point3D_F64 obstacle) {
 
 		int new_x = (int)Math.floor((lpos_x+centerx+obstacle.x)*100f / grid.resolution);
 		int new_y = (int)Math.floor((lpos_y+centery+obstacle.y)*100f / grid.resolution);
@@ -90,6 +105,7 @@ public class HistogramGrid2D {
 		if (new_x < grid.dimension && new_y < grid.dimension && new_x > 0 && new_y > 0
 				&& grid.cells[new_y * grid.dimension + new_x]<MAX_CERTAINITY) {
 			grid.cells[new_y * grid.dimension + new_x] += 1;
+			setChanged(new_y * grid.dimension + new_x);
 			return true;
 		}
 		return false;
@@ -111,21 +127,25 @@ public class HistogramGrid2D {
 		return window;
 	}
 
-	public void transferGridToModel(DataModel model, int threshold, boolean debug) {
-		for (int i = 0; i < grid.dimension; ++i) {
-			for (int j = 0; j < grid.dimension; ++j) {
-
-				if(grid.cells[i * grid.dimension + j] == 0)
-					continue;
-
-				if(grid.cells[i * grid.dimension + j] > threshold) {
-					model.grid.setBlock(j*grid.resolution/100f-centerx,i*grid.resolution/100f-centery, true);
-					//	System.out.println("ADD: "+(j*grid.resolution/100f-center_x)+ ":"+ (i*grid.resolution/100f-center_y));
-				}
-				else
-					model.grid.setBlock(j*grid.resolution/100f-centerx,i*grid.resolution/100f-centery, false);
+	// Transfers the cells changed since the last transfer. A block is set above the threshold and
+	// cleared at half of it, so that cells fading around the threshold do not toggle the block.
+	public synchronized void transferGridToModel(DataModel model, int threshold, boolean debug) {
+		int i, j, index;
+		for (int k = 0; k < dirty_count; ++k) {
+			index = dirty[k]; changed[index] = false;
+			i = index / grid.dimension; j = index % grid.dimension;
+
+			if(!blocked[index] && grid.cells[index] > threshold) {
+				model.grid.setBlock(j*grid.resolution/100f-centerx,i*grid.resolution/100f-centery, true);
+				blocked[index] = true;
+				//	System.out.println("ADD: "+(j*grid.resolution/100f-center_x)+ ":"+ (i*grid.resolution/100f-center_y));
+			}
+			else if(blocked[index] && grid.cells[index] <= threshold / 2) {
+				model.grid.setBlock(j*grid.resolution/100f-centerx,i*grid.resolution/100f-centery, false);
+				blocked[index] = false;
 			}
 		}
+		dirty_count = 0;
 		if(debug)
 			System.out.println(model.grid);
 	}
@@ -135,13 +155,22 @@ public class HistogramGrid2D {
 	}
 
 
-	public void forget() {
+	public synchronized void forget() {
 		if((System.currentTimeMillis()-tms)>OBLIVISION_TIME_MS) {
 			tms = System.currentTimeMillis();
 			for (int i = 0; i < grid.dimension; ++i)
 				for (int j = 0; j < grid.dimension; ++j)
-					if(grid.cells[i * grid.dimension + j] > 1)
+					if(grid.cells[i * grid.dimension + j] > 1) {
 						grid.cells[i * grid.dimension + j] -= 1;
+						setChanged(i * grid.dimension + j);
+					}
+		}
+	}
+
+	private void setChanged(int index) {
+		if(!changed[index]) {
+			changed[index] = true;
+			dirty[dirty_count++] = index;
 		}
 	}
 